@@ -0,0 +1,104 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.glassfish.jersey.internal.util.collection.MultivaluedStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.MultivaluedMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares header extraction and roles tokenizing of {@link SsoHeaders} with the previous implementation.
+ * <p>
+ * Run with {@code -prof gc} (the default of the benchmarks profile) and compare {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderExtractionBenchmark {
+    private static final String USERNAME_HEADER = "Remote-User";
+    private static final String ROLES_HEADER = "Roles";
+
+    @Param({"1", "50", "500"})
+    public int roles;
+
+    private MultivaluedMap<String, String> headers;
+    private String usernameHeader;
+    private String rolesHeaderPrefix;
+
+    @Setup
+    public void setUp() {
+        headers = new MultivaluedStringMap();
+        for (int i = 0; i < 40; i++) {
+            headers.put("x-proxy-header-" + i, Collections.singletonList("value-" + i));
+        }
+        headers.put("remote-user", Collections.singletonList("horst"));
+        final StringBuilder roleList = new StringBuilder();
+        for (int i = 0; i < roles; i++) {
+            if (i > 0) {
+                roleList.append(", ");
+            }
+            roleList.append("group-").append(i);
+        }
+        headers.put("roles", Collections.singletonList(roleList.toString()));
+        headers.put("roles_1", Collections.singletonList("extra-group"));
+
+        usernameHeader = USERNAME_HEADER.toLowerCase();
+        rolesHeaderPrefix = ROLES_HEADER.toLowerCase();
+    }
+
+    @Benchmark
+    public int legacy() {
+        final String username = headers.getFirst(USERNAME_HEADER.toLowerCase());
+        final List<String> values = headers.keySet().stream()
+                .filter(key -> key.startsWith(ROLES_HEADER.toLowerCase()))
+                .map(key -> headers.getFirst(key))
+                .collect(Collectors.toList());
+        final Set<String> uniqValues = new HashSet<>();
+        for (String csString : values) {
+            for (String value : csString.split(",")) {
+                uniqValues.add(value.trim());
+            }
+        }
+        return username.length() + uniqValues.size();
+    }
+
+    @Benchmark
+    public int ssoHeaders() {
+        final String username = SsoHeaders.first(headers, usernameHeader);
+        return username.length() + SsoHeaders.prefixedCsvValues(headers, rolesHeaderPrefix).size();
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Mapping the groups of one request with the compiled {@link RoleMapping} versus evaluating every rule for
+ * every group. The rules are an even mix of exact, prefix, glob and regex rules over LDAP-like group names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoleMappingBenchmark {
+    @Param({"1000"})
+    public int rules;
+
+    @Param({"300"})
+    public int groups;
+
+    private RoleMapping mapping;
+    private List<NaiveRule> naiveRules;
+    private Set<String> groupNames;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final List<RoleMappingRule> mappingRules = new ArrayList<>(rules);
+        naiveRules = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            final String team = "team-" + random.nextInt(rules);
+            final RoleMappingRule rule;
+            switch (i % 4) {
+                case 0:
+                    rule = RoleMappingRule.create(RoleMappingRule.Type.EXACT, "CN=" + team + ",OU=Groups,DC=example,DC=org", "role-" + i);
+                    break;
+                case 1:
+                    rule = RoleMappingRule.create(RoleMappingRule.Type.PREFIX, "CN=" + team + "-", "role-" + i);
+                    break;
+                case 2:
+                    rule = RoleMappingRule.create(RoleMappingRule.Type.GLOB, "CN=*,OU=" + team + ",*", "role-" + i);
+                    break;
+                default:
+                    rule = RoleMappingRule.create(RoleMappingRule.Type.REGEX, "CN=" + team + "-[a-z]+,OU=Groups,.*", "role-" + i);
+            }
+            mappingRules.add(rule);
+            naiveRules.add(new NaiveRule(rule));
+        }
+        mapping = RoleMapping.compile(mappingRules, false);
+
+        groupNames = new HashSet<>(groups);
+        for (int i = 0; i < groups; i++) {
+            final String team = "team-" + random.nextInt(rules * 2);
+            switch (i % 3) {
+                case 0:
+                    groupNames.add("CN=" + team + ",OU=Groups,DC=example,DC=org");
+                    break;
+                case 1:
+                    groupNames.add("CN=" + team + "-ops,OU=Groups,DC=example,DC=org");
+                    break;
+                default:
+                    groupNames.add("CN=members,OU=" + team + ",DC=example,DC=org");
+            }
+        }
+    }
+
+    @Benchmark
+    public Set<String> compiled() {
+        return mapping.apply(groupNames);
+    }
+
+    @Benchmark
+    public Set<String> linearScan() {
+        final Set<String> roles = new HashSet<>();
+        for (String group : groupNames) {
+            final String lowercaseGroup = group.toLowerCase(Locale.ENGLISH);
+            for (NaiveRule rule : naiveRules) {
+                if (rule.matches(group, lowercaseGroup)) {
+                    roles.add(rule.role);
+                }
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * Straightforward rule evaluation, with the patterns compiled up front as any sensible implementation would.
+     */
+    private static class NaiveRule {
+        private final RoleMappingRule.Type type;
+        private final String pattern;
+        private final Pattern regex;
+        private final String role;
+
+        NaiveRule(RoleMappingRule rule) {
+            this.type = rule.type();
+            this.pattern = rule.pattern().toLowerCase(Locale.ENGLISH);
+            this.role = rule.role();
+            switch (type) {
+                case GLOB:
+                    this.regex = Pattern.compile(pattern.replace(".", "\\.").replace("?", ".").replace("*", ".*"));
+                    break;
+                case REGEX:
+                    this.regex = Pattern.compile(rule.pattern(), Pattern.CASE_INSENSITIVE);
+                    break;
+                default:
+                    this.regex = null;
+            }
+        }
+
+        boolean matches(String group, String lowercaseGroup) {
+            switch (type) {
+                case EXACT:
+                    return lowercaseGroup.equals(pattern);
+                case PREFIX:
+                    return lowercaseGroup.startsWith(pattern);
+                case GLOB:
+                    return regex.matcher(lowercaseGroup).matches();
+                default:
+                    return regex.matcher(group).matches();
+            }
+        }
+    }
+}
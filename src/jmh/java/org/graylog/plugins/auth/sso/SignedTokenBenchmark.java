@@ -0,0 +1,95 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of accepting a signed identity token: full verification of a token which has not been seen before
+ * ({@code cold}) versus a token whose verification result is cached ({@code cached}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignedTokenBenchmark {
+    @Param({"HS256", "RS256"})
+    public String algorithm;
+
+    @Param({"10", "200"})
+    public int groups;
+
+    private CompiledSsoAuthConfig config;
+    private SignedTokenVerifier verifier;
+    private SignedTokenCache cache;
+    private String token;
+    private long nowMillis;
+
+    @Setup
+    public void setUp() {
+        final String secret = SignedTokens.hmacSecret();
+        final KeyPair keyPair = SignedTokens.rsaKeyPair();
+        config = CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                       .usernameHeader("Remote-User")
+                                                       .autoCreateUser(true)
+                                                       .requireTrustedProxies(true)
+                                                       .signedTokenHeader("X-Identity")
+                                                       .signedTokenHmacSecret(secret)
+                                                       .signedTokenPublicKey(SignedTokens.pem(keyPair.getPublic()))
+                                                       .build());
+        verifier = config.signedTokenVerifier();
+        cache = new SignedTokenCache(new SsoAuthMetrics(new MetricRegistry()));
+
+        final String[] groupNames = new String[groups];
+        for (int i = 0; i < groups; i++) {
+            groupNames[i] = "group-" + i;
+        }
+        nowMillis = System.currentTimeMillis();
+        final long expiresAt = TimeUnit.MILLISECONDS.toSeconds(nowMillis) + TimeUnit.DAYS.toSeconds(1);
+        token = algorithm.startsWith("HS")
+                ? SignedTokens.hmac(algorithm, secret, SignedTokens.claims("horst", expiresAt, groupNames))
+                : SignedTokens.rsa(algorithm, keyPair.getPrivate(), SignedTokens.claims("horst", expiresAt, groupNames));
+        cache.verify(config, token, SignedTokenCache.digest(token));
+    }
+
+    @Benchmark
+    public SignedIdentity cold() {
+        return verifier.verify(token, nowMillis);
+    }
+
+    @Benchmark
+    public SignedIdentity cached() {
+        // includes hashing the token, which the realm does for every request
+        return cache.verify(config, token, SignedTokenCache.digest(token));
+    }
+}
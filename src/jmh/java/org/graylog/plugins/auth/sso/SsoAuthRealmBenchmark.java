@@ -0,0 +1,142 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.graylog2.shared.security.HttpHeadersToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link SsoAuthRealm#doGetAuthenticationInfo} against the in-memory stand-ins of
+ * {@link SsoAuthRealmFixture}, so the numbers only contain the cost of the realm itself.
+ * <p>
+ * Run with: {@code mvn -P benchmarks verify -DskipTests -Djmh.args="SsoAuthRealmBenchmark -prof gc"}
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SsoAuthRealmBenchmark {
+    private static final String TRUSTED_PROXY = "10.0.0.1";
+
+    private static SsoAuthConfig.Builder config() {
+        return SsoAuthConfig.builder()
+                .usernameHeader("Remote-User")
+                .fullnameHeader("Remote-Name")
+                .emailHeader("Remote-Email")
+                .rolesHeader("Roles")
+                .autoCreateUser(true)
+                .requireTrustedProxies(true)
+                .syncRoles(false);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Realm {
+        private SsoAuthRealm realm;
+        private SsoAuthRealmFixture fixture;
+        private HttpHeadersToken existingUser;
+        private HttpHeadersToken untrustedProxy;
+        private HttpHeadersToken missingHeader;
+        private final AtomicLong newUsers = new AtomicLong();
+
+        @Setup
+        public void setUp() {
+            fixture = new SsoAuthRealmFixture()
+                    .config(config().build())
+                    .trustedProxies("10.0.0.0/8");
+            fixture.users().add("horst", fixture.roles().readerRoleId());
+            realm = fixture.buildRealm();
+            existingUser = SsoAuthRealmFixture.token(TRUSTED_PROXY, "Remote-User", "horst");
+            untrustedProxy = SsoAuthRealmFixture.token("192.168.0.1", "Remote-User", "horst");
+            missingHeader = SsoAuthRealmFixture.token(TRUSTED_PROXY, "X-Something-Else", "horst");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RoleSync {
+        @Param({"1", "50", "500"})
+        public int roles;
+
+        private SsoAuthRealm realm;
+        private HttpHeadersToken token;
+
+        @Setup
+        public void setUp() {
+            final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                    .config(config().syncRoles(true).build())
+                    .trustedProxies("10.0.0.0/8");
+            final StringBuilder roleHeader = new StringBuilder();
+            final String[] roleIds = new String[roles];
+            for (int i = 0; i < roles; i++) {
+                final String name = "group-" + i;
+                roleIds[i] = fixture.roles().add(name);
+                if (i > 0) {
+                    roleHeader.append(',');
+                }
+                roleHeader.append(name);
+            }
+            // the stored roles already match the header, so this measures the steady state without writes
+            fixture.users().add("horst", roleIds);
+            realm = fixture.buildRealm();
+            token = SsoAuthRealmFixture.token(TRUSTED_PROXY, "Remote-User", "horst", "Roles", roleHeader.toString());
+        }
+    }
+
+    @Benchmark
+    public AuthenticationInfo existingUser(Realm state) {
+        return state.realm.doGetAuthenticationInfo(state.existingUser);
+    }
+
+    @Benchmark
+    public AuthenticationInfo autoCreate(Realm state) {
+        final String username = "new-user-" + state.newUsers.incrementAndGet();
+        final AuthenticationInfo info = state.realm.doGetAuthenticationInfo(
+                SsoAuthRealmFixture.token(TRUSTED_PROXY, "Remote-User", username, "Remote-Email", username + "@example.com"));
+        // keep the user store from growing for the whole run
+        state.fixture.users().remove(username);
+        return info;
+    }
+
+    @Benchmark
+    public AuthenticationInfo roleSync(RoleSync state) {
+        return state.realm.doGetAuthenticationInfo(state.token);
+    }
+
+    @Benchmark
+    public AuthenticationInfo untrustedProxy(Realm state) {
+        return state.realm.doGetAuthenticationInfo(state.untrustedProxy);
+    }
+
+    @Benchmark
+    public AuthenticationInfo missingHeader(Realm state) {
+        return state.realm.doGetAuthenticationInfo(state.missingHeader);
+    }
+}
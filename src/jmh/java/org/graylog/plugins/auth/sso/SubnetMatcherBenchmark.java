@@ -0,0 +1,109 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.graylog2.utilities.IpSubnet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compiled {@link SubnetMatcher} with the previous linear scan over {@link IpSubnet#contains(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubnetMatcherBenchmark {
+    @Param({"10", "100", "10000"})
+    public int subnets;
+
+    private Set<IpSubnet> trustedProxies;
+    private SubnetMatcher<Boolean> matcher;
+    private String trustedAddress;
+    private String untrustedAddress;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        final Random random = new Random(42);
+        trustedProxies = new LinkedHashSet<>();
+        String lastNetwork = null;
+        while (trustedProxies.size() < subnets) {
+            // mix of IPv4 /24 networks and a few IPv6 /48 networks, all below 10.0.0.0/8 or fd00::/8
+            if (trustedProxies.size() % 10 == 9) {
+                trustedProxies.add(new IpSubnet(String.format("fd00:%x:%x::/48", random.nextInt(0x10000), random.nextInt(0x10000))));
+            } else {
+                lastNetwork = String.format("10.%d.%d.0", random.nextInt(256), random.nextInt(256));
+                trustedProxies.add(new IpSubnet(lastNetwork + "/24"));
+            }
+        }
+        matcher = SubnetMatcher.of(trustedProxies);
+        // worst case for the linear scan: the last subnet matches
+        trustedAddress = lastNetwork.substring(0, lastNetwork.length() - 1) + "17";
+        untrustedAddress = "192.168.17.4";
+    }
+
+    @Benchmark
+    public boolean linearScanTrusted() {
+        return linearScan(trustedAddress);
+    }
+
+    @Benchmark
+    public boolean linearScanUntrusted() {
+        return linearScan(untrustedAddress);
+    }
+
+    @Benchmark
+    public boolean matcherTrusted() {
+        return matcher.match(trustedAddress) != null;
+    }
+
+    @Benchmark
+    public boolean matcherUntrusted() {
+        return matcher.match(untrustedAddress) != null;
+    }
+
+    /**
+     * The trusted proxy check as it was implemented in {@code SsoAuthRealm} before the matcher was introduced.
+     */
+    private boolean linearScan(String remoteAddr) {
+        return trustedProxies.stream()
+                .anyMatch(ipSubnet -> {
+                    try {
+                        return ipSubnet.contains(remoteAddr);
+                    } catch (UnknownHostException ignored) {
+                        return false;
+                    }
+                });
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.shared.security.HttpHeadersToken;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives a {@link SsoAuthRealm} built by a {@link SsoAuthRealmFixture} from many threads at once and checks the
+ * stored users afterwards.
+ * <p>
+ * Every thread sends a random mix of {@link RequestType requests} for a shared pool of users, so the same users
+ * are authenticated, created and updated concurrently. The roles sent for the users of the role churn pool change
+ * every {@link #requestsPerEpoch(int)} requests. After the run the harness reports the latency percentiles per
+ * request type, the throughput and these anomalies:
+ * <ul>
+ * <li>errors: exceptions thrown by the realm</li>
+ * <li>unexpected outcomes: rejected valid requests or accepted invalid ones</li>
+ * <li>duplicate creations: users created again while they already existed</li>
+ * <li>lost updates: users whose stored roles are not the newest roles sent for them</li>
+ * </ul>
+ */
+public class RealmLoadHarness {
+    public static final String USERNAME_HEADER = "Remote-User";
+    public static final String EMAIL_HEADER = "Remote-Email";
+    public static final String ROLES_HEADER = "Roles";
+    public static final String TRUSTED_PROXY = "10.0.0.1";
+    public static final String TRUSTED_SUBNET = "10.0.0.0/8";
+    private static final String UNTRUSTED_PROXY = "192.168.0.1";
+
+    public enum RequestType {
+        /**
+         * An existing user with unchanged roles.
+         */
+        EXISTING_USER,
+        /**
+         * A user which does not exist before its first request and is created automatically.
+         */
+        FIRST_LOGIN,
+        /**
+         * An existing user whose roles change every epoch.
+         */
+        ROLE_CHURN,
+        /**
+         * A request from a proxy which is not trusted.
+         */
+        UNTRUSTED_PROXY,
+        /**
+         * A request without the username header.
+         */
+        MISSING_HEADER;
+
+        boolean expectsSuccess() {
+            return this == EXISTING_USER || this == FIRST_LOGIN || this == ROLE_CHURN;
+        }
+    }
+
+    private final SsoAuthRealmFixture fixture;
+    private final Map<RequestType, Integer> weights = new EnumMap<>(RequestType.class);
+    private int threads = 200;
+    private int requestsPerThread = 500;
+    private int users = 300;
+    private int roles = 20;
+    private int requestsPerEpoch = 2_000;
+
+    private String[] roleIds;
+
+    public RealmLoadHarness(SsoAuthRealmFixture fixture) {
+        this.fixture = fixture;
+        weights.put(RequestType.EXISTING_USER, 70);
+        weights.put(RequestType.FIRST_LOGIN, 10);
+        weights.put(RequestType.ROLE_CHURN, 10);
+        weights.put(RequestType.UNTRUSTED_PROXY, 5);
+        weights.put(RequestType.MISSING_HEADER, 5);
+    }
+
+    /**
+     * Configuration using the headers of the generated requests, with role sync enabled and the requests coming
+     * from {@link #TRUSTED_SUBNET}.
+     */
+    public static SsoAuthConfig.Builder config() {
+        return SsoAuthConfig.builder()
+                .usernameHeader(USERNAME_HEADER)
+                .emailHeader(EMAIL_HEADER)
+                .rolesHeader(ROLES_HEADER)
+                .autoCreateUser(true)
+                .requireTrustedProxies(true)
+                .syncRoles(true);
+    }
+
+    public RealmLoadHarness threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public RealmLoadHarness requestsPerThread(int requestsPerThread) {
+        this.requestsPerThread = requestsPerThread;
+        return this;
+    }
+
+    /**
+     * Number of users in each of the pools of existing, new and churning users.
+     */
+    public RealmLoadHarness users(int users) {
+        this.users = users;
+        return this;
+    }
+
+    public RealmLoadHarness requestsPerEpoch(int requestsPerEpoch) {
+        this.requestsPerEpoch = requestsPerEpoch;
+        return this;
+    }
+
+    /**
+     * Sets the relative share of the given request type, {@code 0} to not send it at all.
+     */
+    public RealmLoadHarness weight(RequestType type, int weight) {
+        weights.put(type, weight);
+        return this;
+    }
+
+    /**
+     * Creates the roles and users, runs the load and checks the stored users. The fixture has to be configured
+     * with {@link #config()} and the trusted proxies before, the realm is built by the harness.
+     */
+    public Report run() throws InterruptedException {
+        roleIds = new String[roles];
+        for (int i = 0; i < roles; i++) {
+            roleIds[i] = fixture.roles().add("role-" + i);
+        }
+        for (int i = 0; i < users; i++) {
+            fixture.users().add(username(RequestType.EXISTING_USER, i), roleIds(i, 0));
+            fixture.users().add(username(RequestType.ROLE_CHURN, i), roleIds(i, 0));
+            fixture.ldap().add(username(RequestType.EXISTING_USER, i)).add(username(RequestType.ROLE_CHURN, i));
+        }
+        final SsoAuthRealm realm = fixture.buildRealm();
+        final long duplicatesBefore = fixture.users().duplicateCreations();
+
+        final RequestType[] mix = mix();
+        final AtomicLong issued = new AtomicLong();
+        final AtomicLong epoch = new AtomicLong();
+        final AtomicLongArray newestEpoch = new AtomicLongArray(users);
+        for (int i = 0; i < users; i++) {
+            newestEpoch.set(i, -1L);
+        }
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong unexpectedOutcomes = new AtomicLong();
+        final AtomicReference<Throwable> firstError = new AtomicReference<>();
+        final long[][] latencies = new long[threads][];
+        final byte[][] types = new byte[threads][];
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long[] threadLatencies = latencies[t] = new long[requestsPerThread];
+            final byte[] threadTypes = types[t] = new byte[requestsPerThread];
+            workers[t] = new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < requestsPerThread; i++) {
+                    if (issued.incrementAndGet() % requestsPerEpoch == 0) {
+                        epoch.incrementAndGet();
+                    }
+                    final RequestType type = mix[random.nextInt(mix.length)];
+                    final int user = random.nextInt(users);
+                    long requestEpoch = 0L;
+                    if (type == RequestType.ROLE_CHURN) {
+                        requestEpoch = epoch.get();
+                        newestEpoch.accumulateAndGet(user, requestEpoch, Math::max);
+                    }
+                    final HttpHeadersToken token = token(type, user, requestEpoch);
+
+                    final long begin = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        final AuthenticationInfo info = realm.doGetAuthenticationInfo(token);
+                        success = info != null;
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                        firstError.compareAndSet(null, e);
+                    }
+                    threadLatencies[i] = System.nanoTime() - begin;
+                    threadTypes[i] = (byte) type.ordinal();
+                    if (success != type.expectsSuccess()) {
+                        unexpectedOutcomes.incrementAndGet();
+                    }
+                }
+            }, "load-" + t);
+            workers[t].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsedNanos = System.nanoTime() - begin;
+
+        // flush pending role writes before looking at the stored users
+        fixture.writeBehindQueue().stopAsync().awaitTerminated();
+        fixture.ldapSyncScheduler().stopAsync().awaitTerminated();
+
+        long lostUpdates = 0;
+        for (int i = 0; i < users; i++) {
+            if (!storedRolesMatch(username(RequestType.EXISTING_USER, i), roleIds(i, 0))) {
+                lostUpdates++;
+            }
+            final long newest = newestEpoch.get(i);
+            if (newest >= 0 && !storedRolesMatch(username(RequestType.ROLE_CHURN, i), roleIds(i, newest))) {
+                lostUpdates++;
+            }
+        }
+
+        return new Report(latencies,
+                          types,
+                          elapsedNanos,
+                          errors.get(),
+                          firstError.get(),
+                          unexpectedOutcomes.get(),
+                          fixture.users().duplicateCreations() - duplicatesBefore,
+                          lostUpdates);
+    }
+
+    private RequestType[] mix() {
+        int total = 0;
+        for (int weight : weights.values()) {
+            total += weight;
+        }
+        final RequestType[] mix = new RequestType[total];
+        int index = 0;
+        for (Map.Entry<RequestType, Integer> weight : weights.entrySet()) {
+            for (int i = 0; i < weight.getValue(); i++) {
+                mix[index++] = weight.getKey();
+            }
+        }
+        return mix;
+    }
+
+    private static String username(RequestType type, int user) {
+        return type.name().toLowerCase(Locale.ENGLISH) + "-" + user;
+    }
+
+    private String[] roleIds(int user, long epoch) {
+        return new String[]{roleIds[(int) ((user + epoch) % roles)], roleIds[(int) ((user + epoch + 1) % roles)]};
+    }
+
+    private String roleNames(int user, long epoch) {
+        return "role-" + (user + epoch) % roles + ", role-" + (user + epoch + 1) % roles;
+    }
+
+    private HttpHeadersToken token(RequestType type, int user, long epoch) {
+        final String username = username(type, user);
+        switch (type) {
+            case UNTRUSTED_PROXY:
+                return SsoAuthRealmFixture.token(UNTRUSTED_PROXY, USERNAME_HEADER, username(RequestType.EXISTING_USER, user));
+            case MISSING_HEADER:
+                return SsoAuthRealmFixture.token(TRUSTED_PROXY, "X-Forwarded-User", username(RequestType.EXISTING_USER, user));
+            default:
+                return SsoAuthRealmFixture.token(TRUSTED_PROXY,
+                                                 USERNAME_HEADER, username,
+                                                 EMAIL_HEADER, username + "@example.org",
+                                                 ROLES_HEADER, roleNames(user, epoch));
+        }
+    }
+
+    private boolean storedRolesMatch(String username, String[] expectedRoleIds) {
+        final User user = fixture.users().service().load(username);
+        return user != null && user.getRoleIds().equals(new HashSet<>(Arrays.asList(expectedRoleIds)));
+    }
+
+    public static class Report {
+        private final Map<RequestType, long[]> latencies = new EnumMap<>(RequestType.class);
+        private final long[] allLatencies;
+        private final long elapsedNanos;
+        private final long errors;
+        private final Throwable firstError;
+        private final long unexpectedOutcomes;
+        private final long duplicateCreations;
+        private final long lostUpdates;
+
+        Report(long[][] latencies,
+               byte[][] types,
+               long elapsedNanos,
+               long errors,
+               Throwable firstError,
+               long unexpectedOutcomes,
+               long duplicateCreations,
+               long lostUpdates) {
+            final Map<RequestType, long[]> buffers = new EnumMap<>(RequestType.class);
+            final Map<RequestType, Integer> counts = new EnumMap<>(RequestType.class);
+            int total = 0;
+            for (long[] threadLatencies : latencies) {
+                total += threadLatencies.length;
+            }
+            this.allLatencies = new long[total];
+            int index = 0;
+            for (int t = 0; t < latencies.length; t++) {
+                for (int i = 0; i < latencies[t].length; i++) {
+                    final RequestType type = RequestType.values()[types[t][i]];
+                    final long[] buffer = buffers.computeIfAbsent(type, k -> new long[allLatencies.length]);
+                    final int count = counts.getOrDefault(type, 0);
+                    buffer[count] = latencies[t][i];
+                    counts.put(type, count + 1);
+                    allLatencies[index++] = latencies[t][i];
+                }
+            }
+            Arrays.sort(allLatencies);
+            for (Map.Entry<RequestType, long[]> buffer : buffers.entrySet()) {
+                final long[] sorted = Arrays.copyOf(buffer.getValue(), counts.get(buffer.getKey()));
+                Arrays.sort(sorted);
+                this.latencies.put(buffer.getKey(), sorted);
+            }
+            this.elapsedNanos = elapsedNanos;
+            this.errors = errors;
+            this.firstError = firstError;
+            this.unexpectedOutcomes = unexpectedOutcomes;
+            this.duplicateCreations = duplicateCreations;
+            this.lostUpdates = lostUpdates;
+        }
+
+        public long requests() {
+            return allLatencies.length;
+        }
+
+        public double throughputPerSecond() {
+            return allLatencies.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. {@code 0.999} for p999
+         * @return the latency in nanoseconds
+         */
+        public long percentile(double quantile) {
+            return percentile(allLatencies, quantile);
+        }
+
+        public long percentile(RequestType type, double quantile) {
+            final long[] sorted = latencies.get(type);
+            return sorted == null ? 0L : percentile(sorted, quantile);
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        public long errors() {
+            return errors;
+        }
+
+        public Throwable firstError() {
+            return firstError;
+        }
+
+        public long unexpectedOutcomes() {
+            return unexpectedOutcomes;
+        }
+
+        public long duplicateCreations() {
+            return duplicateCreations;
+        }
+
+        public long lostUpdates() {
+            return lostUpdates;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ENGLISH, "%-16s %9s %10s %10s %10s %10s%n", "request", "count", "p50 us", "p99 us", "p999 us", "max us"));
+            for (Map.Entry<RequestType, long[]> entry : latencies.entrySet()) {
+                appendRow(report, entry.getKey().name().toLowerCase(Locale.ENGLISH), entry.getValue());
+            }
+            appendRow(report, "all", allLatencies);
+            report.append(String.format(Locale.ENGLISH, "throughput: %.0f requests/s in %d ms%n",
+                                        throughputPerSecond(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+            report.append(String.format(Locale.ENGLISH, "anomalies: %d errors, %d unexpected outcomes, %d duplicate creations, %d lost updates%n",
+                                        errors, unexpectedOutcomes, duplicateCreations, lostUpdates));
+            return report.toString();
+        }
+
+        private static void appendRow(StringBuilder report, String name, long[] sorted) {
+            report.append(String.format(Locale.ENGLISH, "%-16s %9d %10.1f %10.1f %10.1f %10.1f%n",
+                                        name,
+                                        sorted.length,
+                                        percentile(sorted, 0.5) / 1000.0,
+                                        percentile(sorted, 0.99) / 1000.0,
+                                        percentile(sorted, 0.999) / 1000.0,
+                                        sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Load scenarios for {@link SsoAuthRealm} against the in-memory stand-ins, see {@link RealmLoadHarness}.
+ * <p>
+ * Run with: {@code mvn -P load verify}, optionally with {@code -Dload.threads=200 -Dload.requests=500
+ * -Dload.users=300 -Dload.latencyMicros=500} to change the number of threads, the requests per thread, the
+ * size of the user pools and the latency of the simulated database.
+ */
+public class SsoAuthRealmLoadIT {
+    private static final int THREADS = Integer.getInteger("load.threads", 200);
+    private static final int REQUESTS_PER_THREAD = Integer.getInteger("load.requests", 500);
+    private static final int USERS = Integer.getInteger("load.users", 300);
+    private static final long LATENCY_MICROS = Long.getLong("load.latencyMicros", 500L);
+
+    private static RealmLoadHarness harness(SsoAuthRealmFixture fixture) {
+        return new RealmLoadHarness(fixture)
+                .threads(THREADS)
+                .requestsPerThread(REQUESTS_PER_THREAD)
+                .users(USERS);
+    }
+
+    private static SsoAuthRealmFixture fixture(SsoAuthConfig config) {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(config)
+                .trustedProxies(RealmLoadHarness.TRUSTED_SUBNET);
+        fixture.users().withLatency(LATENCY_MICROS, TimeUnit.MICROSECONDS);
+        fixture.roles().withLatency(LATENCY_MICROS, TimeUnit.MICROSECONDS);
+        return fixture;
+    }
+
+    private static void check(String scenario, RealmLoadHarness.Report report) {
+        System.out.println("=== " + scenario + " (" + THREADS + " threads)\n" + report);
+        if (report.firstError() != null) {
+            report.firstError().printStackTrace(System.out);
+        }
+        assertThat(report.errors()).as("errors").isZero();
+        assertThat(report.unexpectedOutcomes()).as("unexpected outcomes").isZero();
+        assertThat(report.duplicateCreations()).as("duplicate creations").isZero();
+        // lost updates are only reported: role sync is last-writer-wins, so a request with older roles which
+        // overtakes a newer one is expected to win
+    }
+
+    @Test
+    public void steadyStateWithAuthenticationCache() throws Exception {
+        final SsoAuthRealmFixture fixture = fixture(RealmLoadHarness.config()
+                                                            .authCacheMaxSize(10_000)
+                                                            .build());
+
+        check("steady state with authentication cache", harness(fixture).run());
+    }
+
+    @Test
+    public void firstLoginStorm() throws Exception {
+        final SsoAuthRealmFixture fixture = fixture(RealmLoadHarness.config().build());
+        final RealmLoadHarness harness = harness(fixture)
+                .weight(RealmLoadHarness.RequestType.EXISTING_USER, 10)
+                .weight(RealmLoadHarness.RequestType.FIRST_LOGIN, 80)
+                .weight(RealmLoadHarness.RequestType.ROLE_CHURN, 0);
+
+        check("first login storm", harness.run());
+    }
+
+    @Test
+    public void roleChurnWithSlowDirectory() throws Exception {
+        final SsoAuthRealmFixture fixture = fixture(RealmLoadHarness.config()
+                                                            .ldapSyncIntervalSeconds(1)
+                                                            .build());
+        fixture.ldap().enabled(true).withLatency(LATENCY_MICROS * 10, TimeUnit.MICROSECONDS);
+        final RealmLoadHarness harness = harness(fixture)
+                .weight(RealmLoadHarness.RequestType.ROLE_CHURN, 60)
+                .requestsPerEpoch(500);
+
+        check("role churn with slow directory", harness.run());
+    }
+
+    @Test
+    public void roleChurnWithWriteBehind() throws Exception {
+        final SsoAuthRealmFixture fixture = fixture(RealmLoadHarness.config()
+                                                            .writeBehind(true)
+                                                            .build());
+        fixture.writeBehindQueue().startAsync().awaitRunning();
+        final RealmLoadHarness harness = harness(fixture)
+                .weight(RealmLoadHarness.RequestType.ROLE_CHURN, 60)
+                .requestsPerEpoch(500);
+
+        check("role churn with write-behind", harness.run());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket admission control for the expensive steps of the realm, limited per source proxy address and
+ * across all proxies. Every {@link Operation} has buckets and limits of its own, so a burst of LDAP syncs cannot
+ * use up the tokens for the first logins of new users.
+ * <p>
+ * Admission never blocks: callers which are not admitted have to fall back to the locally stored state or
+ * reject the request, so that a flood of new users after an IdP outage cannot pile up on the HTTP threads.
+ */
+@Singleton
+public class AdmissionController {
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final int MAX_TRACKED_SOURCES = 10_000;
+    private static final long SOURCE_IDLE_MINUTES = 10;
+
+    public enum Operation {
+        @JsonProperty("ldap_sync") LDAP_SYNC("ldapSync"),
+        @JsonProperty("auto_create") AUTO_CREATE("autoCreate"),
+        @JsonProperty("role_write") ROLE_WRITE("roleWrite");
+
+        private final String metricName;
+
+        Operation(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String metricName() {
+            return metricName;
+        }
+    }
+
+    private final SsoAuthMetrics metrics;
+    private final Ticker ticker;
+
+    private final PerConfig<Limits[]> limits;
+
+    @Inject
+    public AdmissionController(SsoAuthMetrics metrics) {
+        this(metrics, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    AdmissionController(SsoAuthMetrics metrics, Ticker ticker) {
+        this.metrics = metrics;
+        this.ticker = ticker;
+        this.limits = new PerConfig<>(this::build);
+    }
+
+    /**
+     * Takes a token from the bucket of the source address and the global bucket of the given operation.
+     *
+     * @return {@code true} if the operation may run, {@code false} if it has been rejected by a limit
+     */
+    public boolean tryAcquire(CompiledSsoAuthConfig config, String source, Operation operation) {
+        final Limits[] all = limits.get(config);
+        final Limits current = all == null ? null : all[operation.ordinal()];
+        if (current == null) {
+            return true;
+        }
+
+        final long now = ticker.read();
+        final TokenBucket sourceBucket = current.sourceBuckets == null ? null : current.sourceBuckets.getUnchecked(source);
+        if (sourceBucket != null && !sourceBucket.tryAcquire(now)) {
+            return reject(operation, source, "source");
+        }
+        if (current.globalBucket != null && !current.globalBucket.tryAcquire(now)) {
+            if (sourceBucket != null) {
+                sourceBucket.release();
+            }
+            return reject(operation, source, "global");
+        }
+        return true;
+    }
+
+    private boolean reject(Operation operation, String source, String limit) {
+        metrics.admissionRejected(operation).inc();
+        LOG.debug("Rejected {} for request from {}, {} rate limit exceeded", operation, source, limit);
+        return false;
+    }
+
+    @Nullable
+    private Limits[] build(CompiledSsoAuthConfig config) {
+        final SsoAuthConfig source = config.source();
+        final AdmissionLimit[] operationLimits = new AdmissionLimit[Operation.values().length];
+        for (Operation operation : Operation.values()) {
+            operationLimits[operation.ordinal()] = AdmissionLimit.defaults(operation, source);
+        }
+        for (AdmissionLimit limit : source.admissionLimits()) {
+            operationLimits[limit.operation().ordinal()] = limit;
+        }
+
+        final Limits[] result = new Limits[operationLimits.length];
+        boolean limited = false;
+        for (int i = 0; i < operationLimits.length; i++) {
+            result[i] = build(operationLimits[i]);
+            limited |= result[i] != null;
+        }
+        return limited ? result : null;
+    }
+
+    @Nullable
+    private Limits build(AdmissionLimit limit) {
+        final long now = ticker.read();
+        final TokenBucket globalBucket = limit.globalRate() > 0
+                ? new TokenBucket(limit.globalRate(), limit.globalBurst(), now)
+                : null;
+        LoadingCache<String, TokenBucket> sourceBuckets = null;
+        if (limit.proxyRate() > 0) {
+            final long rate = limit.proxyRate();
+            final long burst = limit.proxyBurst();
+            sourceBuckets = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_TRACKED_SOURCES)
+                    .expireAfterAccess(SOURCE_IDLE_MINUTES, TimeUnit.MINUTES)
+                    .ticker(ticker)
+                    .build(new CacheLoader<String, TokenBucket>() {
+                        @Override
+                        public TokenBucket load(String key) {
+                            return new TokenBucket(rate, burst, ticker.read());
+                        }
+                    });
+        }
+        return globalBucket == null && sourceBuckets == null ? null : new Limits(globalBucket, sourceBuckets);
+    }
+
+    private static class Limits {
+        private final TokenBucket globalBucket;
+        private final LoadingCache<String, TokenBucket> sourceBuckets;
+
+        private Limits(@Nullable TokenBucket globalBucket, @Nullable LoadingCache<String, TokenBucket> sourceBuckets) {
+            this.globalBucket = globalBucket;
+            this.sourceBuckets = sourceBuckets;
+        }
+    }
+}
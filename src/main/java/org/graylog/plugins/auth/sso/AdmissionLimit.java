@@ -0,0 +1,72 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+/**
+ * Admission limits of one {@link AdmissionController.Operation operation}, which replace the default limits of
+ * the {@link SsoAuthConfig} for that operation. A rate of {@code 0} disables the limit, a burst of {@code 0}
+ * allows one second worth of operations.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class AdmissionLimit {
+    @JsonProperty("operation")
+    public abstract AdmissionController.Operation operation();
+
+    @JsonProperty("global_rate")
+    public abstract long globalRate();
+
+    @JsonProperty("global_burst")
+    public abstract long globalBurst();
+
+    @JsonProperty("proxy_rate")
+    public abstract long proxyRate();
+
+    @JsonProperty("proxy_burst")
+    public abstract long proxyBurst();
+
+    /**
+     * @throws IllegalArgumentException if {@code operation} is missing, which Jackson reports as a mapping error
+     */
+    @JsonCreator
+    public static AdmissionLimit create(@JsonProperty("operation") AdmissionController.Operation operation,
+                                        @JsonProperty("global_rate") long globalRate,
+                                        @JsonProperty("global_burst") long globalBurst,
+                                        @JsonProperty("proxy_rate") long proxyRate,
+                                        @JsonProperty("proxy_burst") long proxyBurst) {
+        if (operation == null) {
+            throw new IllegalArgumentException("Admission limit without operation");
+        }
+        return new AutoValue_AdmissionLimit(operation, globalRate, globalBurst, proxyRate, proxyBurst);
+    }
+
+    /**
+     * The limits of {@code config} which apply to operations without limits of their own.
+     */
+    public static AdmissionLimit defaults(AdmissionController.Operation operation, SsoAuthConfig config) {
+        return create(operation,
+                      config.admissionGlobalRate(),
+                      config.admissionGlobalBurst(),
+                      config.admissionProxyRate(),
+                      config.admissionProxyBurst());
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker for one dependency of the realm.
+ * <p>
+ * While {@link State#CLOSED closed}, the outcomes of the last {@code windowSize} calls are recorded. Once the window
+ * is full and the share of failed calls or of slow calls reaches its threshold, the breaker opens and callers skip
+ * the dependency. After the open period a single probe call is let through (see {@link #tryProbe()}), which closes
+ * the breaker if it succeeds in time and opens it again otherwise. Every state change is logged once.
+ * <p>
+ * Calls fail if they throw a {@link RuntimeException}, checked exceptions are outcomes of a working dependency.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private final String name;
+    private final Ticker ticker;
+
+    // all fields below are written while holding the lock, settings and state are also read without it
+    private volatile Settings settings = Settings.DISABLED;
+    private volatile State state = State.CLOSED;
+    private boolean[] failedCalls = new boolean[0];
+    private boolean[] slowCalls = new boolean[0];
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slow;
+    private long openedAt;
+    private boolean probeRunning;
+
+    CircuitBreaker(String name, Ticker ticker) {
+        this.name = name;
+        this.ticker = ticker;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Applies new thresholds, resetting the breaker if they differ from the current ones.
+     */
+    synchronized void configure(Settings newSettings) {
+        if (settings.equals(newSettings)) {
+            return;
+        }
+        settings = newSettings;
+        failedCalls = new boolean[newSettings.windowSize];
+        slowCalls = new boolean[newSettings.windowSize];
+        probeRunning = false;
+        transition(State.CLOSED, "thresholds changed");
+    }
+
+    /**
+     * @return {@code false} if callers should skip the dependency because the breaker is open
+     */
+    public boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Moves an open breaker whose open period has passed to {@link State#HALF_OPEN half-open}.
+     *
+     * @return {@code true} if the caller has to make one probe call, followed by {@link #finishProbe()}
+     */
+    public synchronized boolean tryProbe() {
+        if (state == State.CLOSED || probeRunning) {
+            return false;
+        }
+        if (state == State.OPEN) {
+            if (ticker.read() - openedAt < settings.openNanos) {
+                return false;
+            }
+            transition(State.HALF_OPEN, "probing");
+        }
+        probeRunning = true;
+        return true;
+    }
+
+    /**
+     * Ends a probe, re-opening the breaker if the probe did not record an outcome.
+     */
+    public synchronized void finishProbe() {
+        if (probeRunning) {
+            probeRunning = false;
+            if (state == State.HALF_OPEN) {
+                open("probe did not complete");
+            }
+        }
+    }
+
+    /**
+     * Makes the given call and records its outcome.
+     */
+    public <T, E extends Exception> T call(Call<T, E> call) throws E {
+        if (!settings.enabled) {
+            return call.call();
+        }
+        final long start = ticker.read();
+        final T result;
+        try {
+            result = call.call();
+        } catch (RuntimeException e) {
+            record(true, ticker.read() - start);
+            throw e;
+        }
+        record(false, ticker.read() - start);
+        return result;
+    }
+
+    private synchronized void record(boolean failed, long durationNanos) {
+        final boolean slowCall = durationNanos >= settings.slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                probeRunning = false;
+                if (failed || slowCall) {
+                    open(failed ? "probe failed" : "probe was slow");
+                } else {
+                    transition(State.CLOSED, "probe succeeded");
+                }
+                break;
+            case CLOSED:
+                if (recorded == failedCalls.length) {
+                    failures -= failedCalls[next] ? 1 : 0;
+                    slow -= slowCalls[next] ? 1 : 0;
+                } else {
+                    recorded++;
+                }
+                failedCalls[next] = failed;
+                slowCalls[next] = slowCall;
+                failures += failed ? 1 : 0;
+                slow += slowCall ? 1 : 0;
+                next = (next + 1) % failedCalls.length;
+                if (recorded == failedCalls.length) {
+                    if (settings.failureRatePercent > 0 && failures * 100L >= (long) settings.failureRatePercent * recorded) {
+                        open(failures + " of the last " + recorded + " calls failed");
+                    } else if (settings.slowCallRatePercent > 0 && slow * 100L >= (long) settings.slowCallRatePercent * recorded) {
+                        open(slow + " of the last " + recorded + " calls were slow");
+                    }
+                }
+                break;
+            default:
+                // late calls which were started before the breaker opened
+                break;
+        }
+    }
+
+    private void open(String reason) {
+        openedAt = ticker.read();
+        transition(State.OPEN, reason);
+    }
+
+    private void transition(State newState, String reason) {
+        if (newState == State.CLOSED) {
+            next = 0;
+            recorded = 0;
+            failures = 0;
+            slow = 0;
+        }
+        if (state != newState) {
+            if (newState == State.OPEN) {
+                LOG.warn("Circuit breaker for {} is now {}: {}", name, newState, reason);
+            } else {
+                LOG.info("Circuit breaker for {} is now {}: {}", name, newState, reason);
+            }
+            state = newState;
+        }
+    }
+
+    static class Settings {
+        static final Settings DISABLED = new Settings(false, 1, 100, Long.MAX_VALUE, 100, 0L);
+
+        private final boolean enabled;
+        private final int windowSize;
+        private final int failureRatePercent;
+        private final long slowCallNanos;
+        private final int slowCallRatePercent;
+        private final long openNanos;
+
+        Settings(boolean enabled, int windowSize, int failureRatePercent, long slowCallNanos, int slowCallRatePercent, long openNanos) {
+            this.enabled = enabled;
+            this.windowSize = Math.max(1, windowSize);
+            this.failureRatePercent = failureRatePercent;
+            this.slowCallNanos = slowCallNanos;
+            this.slowCallRatePercent = slowCallRatePercent;
+            this.openNanos = openNanos;
+        }
+
+        static Settings fromConfig(SsoAuthConfig config) {
+            if (!config.circuitBreaker()) {
+                return DISABLED;
+            }
+            return new Settings(true,
+                                (int) Math.min(config.circuitBreakerWindowSize(), 10_000L),
+                                (int) config.circuitBreakerFailureRate(),
+                                config.circuitBreakerSlowCallMillis() > 0
+                                        ? TimeUnit.MILLISECONDS.toNanos(config.circuitBreakerSlowCallMillis())
+                                        : Long.MAX_VALUE,
+                                (int) config.circuitBreakerSlowCallRate(),
+                                TimeUnit.SECONDS.toNanos(config.circuitBreakerOpenSeconds()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings other = (Settings) o;
+            return enabled == other.enabled
+                    && windowSize == other.windowSize
+                    && failureRatePercent == other.failureRatePercent
+                    && slowCallNanos == other.slowCallNanos
+                    && slowCallRatePercent == other.slowCallRatePercent
+                    && openNanos == other.openNanos;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, windowSize, failureRatePercent, slowCallNanos, slowCallRatePercent, openNanos);
+        }
+    }
+}
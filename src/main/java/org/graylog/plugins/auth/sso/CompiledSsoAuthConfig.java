@@ -0,0 +1,343 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.graylog2.utilities.IpSubnet;
+
+import javax.annotation.Nullable;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Immutable, precomputed view of a {@link SsoAuthConfig} used on the authentication hot path.
+ * <p>
+ * Header names are stored lowercased (Jersey hands us lowercased header keys), so that the realm does not need
+ * to touch the cluster config for every request. Signed token keys are parsed and role mapping rules compiled once
+ * as well. Role names, including the default group, are resolved by the {@link RoleNameResolver} when they are
+ * used, so role changes do not replace the config.
+ * <p>
+ * Every {@link SsoHeaderProfile header profile} is compiled into a config of its own, which shares everything but
+ * the header settings with its {@link #root() root config}. The profiles are indexed by their subnets, so
+ * {@link #forRemoteAddress(String)} selects the profile of a request with a single trie lookup.
+ */
+public final class CompiledSsoAuthConfig {
+    private static final String DEFAULT_EMAIL_DOMAIN = "localhost";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+    private static final HashFunction ETAG_HASH = Hashing.sha256();
+    private static final String ETAG_SECRET_MESSAGE = "graylog-sso-config-etag";
+
+    private final SsoAuthConfig source;
+    private final String usernameHeader;
+    private final String fullnameHeader;
+    private final String emailHeader;
+    private final String rolesHeaderPrefix;
+    private final String defaultEmailDomain;
+    private final long ldapSyncIntervalNanos;
+    private final long ldapSyncTimeoutNanos;
+    private final String signedTokenHeader;
+    private final SignedTokenVerifier signedTokenVerifier;
+    private final RoleMapping roleMapping;
+    private final String etag;
+    private final CompiledSsoAuthConfig root;
+    private final String profileName;
+    private final SubnetMatcher<CompiledSsoAuthConfig> profiles;
+
+    private CompiledSsoAuthConfig(SsoAuthConfig source,
+                                  @Nullable CompiledSsoAuthConfig root,
+                                  @Nullable String profileName) {
+        this.source = source;
+        this.usernameHeader = lowercase(requireNonNull(source.usernameHeader(), "usernameHeader"));
+        this.fullnameHeader = lowercase(source.fullnameHeader());
+        this.emailHeader = lowercase(source.emailHeader());
+        this.rolesHeaderPrefix = lowercase(source.rolesHeader());
+        this.defaultEmailDomain = source.defaultEmailDomain() == null ? DEFAULT_EMAIL_DOMAIN : source.defaultEmailDomain();
+        this.ldapSyncIntervalNanos = TimeUnit.SECONDS.toNanos(source.ldapSyncIntervalSeconds());
+        this.ldapSyncTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(source.ldapSyncTimeoutMillis());
+        this.profileName = profileName;
+        if (root == null) {
+            this.root = this;
+            this.signedTokenVerifier = SignedTokenVerifier.fromConfig(source);
+            this.roleMapping = RoleMapping.compile(source.roleMappingRules(), source.roleMappingPassthrough());
+            this.etag = etag(source);
+            this.profiles = compileProfiles(source);
+        } else {
+            this.root = root;
+            this.signedTokenVerifier = root.signedTokenVerifier;
+            this.roleMapping = root.roleMapping;
+            this.etag = root.etag;
+            this.profiles = SubnetMatcher.<CompiledSsoAuthConfig>builder().build();
+        }
+        this.signedTokenHeader = signedTokenVerifier == null ? null : lowercase(source.signedTokenHeader());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the signed token keys, the role mapping rules or the header profiles are invalid
+     */
+    public static CompiledSsoAuthConfig compile(SsoAuthConfig config) {
+        return new CompiledSsoAuthConfig(config, null, null);
+    }
+
+    private SubnetMatcher<CompiledSsoAuthConfig> compileProfiles(SsoAuthConfig config) {
+        final SubnetMatcher.Builder<CompiledSsoAuthConfig> builder = SubnetMatcher.builder();
+        for (SsoHeaderProfile profile : config.headerProfiles()) {
+            final List<IpSubnet> subnets = parseProfile(profile);
+            // requests from the subnets of a profile are trusted by definition
+            final SsoAuthConfig profileConfig = config.toBuilder()
+                    .usernameHeader(profile.usernameHeader())
+                    .fullnameHeader(profile.fullnameHeader())
+                    .emailHeader(profile.emailHeader())
+                    .autoCreateUser(profile.autoCreateUser())
+                    .syncRoles(profile.syncRoles())
+                    .rolesHeader(profile.rolesHeader())
+                    .requireTrustedProxies(false)
+                    .headerProfiles(ImmutableList.of())
+                    .build();
+            final CompiledSsoAuthConfig compiled = new CompiledSsoAuthConfig(profileConfig, this, profile.name());
+            for (IpSubnet subnet : subnets) {
+                builder.add(subnet, compiled);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Checks that the given configuration can be compiled.
+     *
+     * @throws IllegalArgumentException if the signed token keys, the role mapping rules, the header profiles or
+     *                                  the admission limits are invalid
+     */
+    public static void validate(SsoAuthConfig config) {
+        SignedTokenVerifier.fromConfig(config);
+        RoleMapping.compile(config.roleMappingRules(), config.roleMappingPassthrough());
+        final Set<String> profileNames = new HashSet<>();
+        for (SsoHeaderProfile profile : config.headerProfiles()) {
+            if (!profileNames.add(profile.name())) {
+                throw new IllegalArgumentException("Duplicate header profile " + profile.name());
+            }
+            parseProfile(profile);
+        }
+        final Set<AdmissionController.Operation> limitedOperations = EnumSet.noneOf(AdmissionController.Operation.class);
+        for (AdmissionLimit limit : config.admissionLimits()) {
+            if (!limitedOperations.add(limit.operation())) {
+                throw new IllegalArgumentException("Duplicate admission limit for " + limit.operation());
+            }
+        }
+    }
+
+    private static List<IpSubnet> parseProfile(SsoHeaderProfile profile) {
+        if (isNullOrEmpty(profile.name())) {
+            throw new IllegalArgumentException("Header profiles need a name");
+        }
+        if (isNullOrEmpty(profile.usernameHeader())) {
+            throw new IllegalArgumentException("Header profile " + profile.name() + " has no username header");
+        }
+        final List<IpSubnet> subnets = new ArrayList<>(profile.trustedProxies().size());
+        for (String cidr : profile.trustedProxies()) {
+            if (cidr == null || cidr.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                subnets.add(new IpSubnet(cidr.trim()));
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid subnet " + cidr + " in header profile " + profile.name(), e);
+            }
+        }
+        if (subnets.isEmpty()) {
+            throw new IllegalArgumentException("Header profile " + profile.name() + " has no trusted proxies");
+        }
+        return subnets;
+    }
+
+    /**
+     * Computes the entity tag of the given configuration. The node-local trusted proxies are not part of the
+     * stored configuration and do not contribute to the tag, so all nodes compute the same tag for the same
+     * configuration.
+     * <p>
+     * The tag is readable by everyone who may read the config, so the HMAC secret only contributes a MAC of a
+     * constant keyed with the secret. That reveals no more about the secret than any token signed with it.
+     *
+     * @return the unquoted entity tag
+     */
+    public static String etag(SsoAuthConfig config) {
+        final SsoAuthConfig withoutSecrets = config.toBuilder()
+                .trustedProxies(null)
+                .signedTokenHmacSecret(secretDigest(config.signedTokenHmacSecret()))
+                .build();
+        try {
+            final byte[] json = OBJECT_MAPPER.writeValueAsBytes(withoutSecrets);
+            return ETAG_HASH.hashBytes(json).toString().substring(0, 32);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to serialize SSO authenticator config", e);
+        }
+    }
+
+    @Nullable
+    private static String secretDigest(@Nullable String secret) {
+        if (isNullOrEmpty(secret)) {
+            return secret;
+        }
+        return Hashing.hmacSha256(secret.getBytes(StandardCharsets.UTF_8))
+                .hashString(ETAG_SECRET_MESSAGE, StandardCharsets.UTF_8)
+                .toString();
+    }
+
+    @Nullable
+    private static String lowercase(@Nullable String headerName) {
+        return headerName == null ? null : headerName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Selects the header profile for requests from the given address.
+     *
+     * @param remoteAddress the address as parsed by {@link SubnetMatcher#parseAddress(String)}
+     * @return the config of the profile with the most specific subnet containing the address, or this config if
+     * there is no such profile
+     */
+    public CompiledSsoAuthConfig forRemoteAddress(@Nullable byte[] remoteAddress) {
+        if (profiles.isEmpty()) {
+            return this;
+        }
+        final CompiledSsoAuthConfig profile = profiles.match(remoteAddress);
+        return profile == null ? this : profile;
+    }
+
+    /**
+     * @return the config the header profiles were compiled from, or this config if it is the root config itself.
+     * Caches and admission limits are shared by all profiles and keyed by the root config.
+     */
+    public CompiledSsoAuthConfig root() {
+        return root;
+    }
+
+    /**
+     * @return the name of the header profile or {@code null} for the root config
+     */
+    @Nullable
+    public String profileName() {
+        return profileName;
+    }
+
+    public SsoAuthConfig source() {
+        return source;
+    }
+
+    /**
+     * @return the unquoted entity tag of the source configuration
+     * @see #etag(SsoAuthConfig)
+     */
+    public String etag() {
+        return etag;
+    }
+
+    public String usernameHeader() {
+        return usernameHeader;
+    }
+
+    @Nullable
+    public String fullnameHeader() {
+        return fullnameHeader;
+    }
+
+    @Nullable
+    public String emailHeader() {
+        return emailHeader;
+    }
+
+    @Nullable
+    public String rolesHeaderPrefix() {
+        return rolesHeaderPrefix;
+    }
+
+    public String defaultEmailDomain() {
+        return defaultEmailDomain;
+    }
+
+    @Nullable
+    public String defaultGroup() {
+        return source.defaultGroup();
+    }
+
+    public long ldapSyncIntervalNanos() {
+        return ldapSyncIntervalNanos;
+    }
+
+    /**
+     * @return the deadline of LDAP syncs on the request path, {@code 0} for none
+     */
+    public long ldapSyncTimeoutNanos() {
+        return ldapSyncTimeoutNanos;
+    }
+
+    /**
+     * @return the header carrying signed identity tokens or {@code null} if signed tokens are disabled
+     */
+    @Nullable
+    public String signedTokenHeader() {
+        return signedTokenHeader;
+    }
+
+    @Nullable
+    public SignedTokenVerifier signedTokenVerifier() {
+        return signedTokenVerifier;
+    }
+
+    public RoleMapping roleMapping() {
+        return roleMapping;
+    }
+
+    public boolean autoCreateUser() {
+        return source.autoCreateUser();
+    }
+
+    public boolean requireTrustedProxies() {
+        return source.requireTrustedProxies();
+    }
+
+    public boolean syncRoles() {
+        return source.syncRoles();
+    }
+
+    public SsoAuthConfig.SessionPolicy sessionPolicy() {
+        return source.sessionPolicy();
+    }
+
+    public boolean writeBehind() {
+        return source.writeBehind();
+    }
+
+    public boolean stageTiming() {
+        return source.stageTiming();
+    }
+}
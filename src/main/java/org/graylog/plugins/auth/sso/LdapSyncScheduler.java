@@ -0,0 +1,128 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The executors and the clock of {@link LdapUserSync}, shut down with the node.
+ * <p>
+ * Background refreshes run on a single thread with a bounded queue. Syncs on the request path run on a bounded
+ * pool, on virtual threads if the JVM has them. Threads are started on demand and time out when idle.
+ */
+@Singleton
+public class LdapSyncScheduler extends AbstractIdleService {
+    private static final int MAX_PENDING_REFRESHES = 1_000;
+    private static final int MAX_SYNC_THREADS = 16;
+    private static final int MAX_QUEUED_SYNCS = 256;
+    private static final long IDLE_SECONDS = 60L;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    private final ExecutorService refreshExecutor;
+    private final ThreadPoolExecutor syncExecutor;
+    private final Ticker ticker;
+
+    @Inject
+    public LdapSyncScheduler() {
+        this(defaultRefreshExecutor(), defaultSyncExecutor(), Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    LdapSyncScheduler(ExecutorService refreshExecutor, Ticker ticker) {
+        this(refreshExecutor, defaultSyncExecutor(), ticker);
+    }
+
+    @VisibleForTesting
+    LdapSyncScheduler(ExecutorService refreshExecutor, ThreadPoolExecutor syncExecutor, Ticker ticker) {
+        this.refreshExecutor = refreshExecutor;
+        this.syncExecutor = syncExecutor;
+        this.ticker = ticker;
+    }
+
+    ExecutorService refreshExecutor() {
+        return refreshExecutor;
+    }
+
+    ThreadPoolExecutor syncExecutor() {
+        return syncExecutor;
+    }
+
+    /**
+     * The clock the sync intervals are measured with.
+     */
+    Ticker ticker() {
+        return ticker;
+    }
+
+    @Override
+    protected void startUp() {
+    }
+
+    @Override
+    protected void shutDown() throws InterruptedException {
+        // pending refreshes are repeated by the next request, waiting requests give up after their deadline
+        refreshExecutor.shutdownNow();
+        syncExecutor.shutdownNow();
+        refreshExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        syncExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static ExecutorService defaultRefreshExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                                                                   new ArrayBlockingQueue<>(MAX_PENDING_REFRESHES),
+                                                                   new ThreadFactoryBuilder()
+                                                                           .setNameFormat("sso-ldap-refresh-%d")
+                                                                           .setDaemon(true)
+                                                                           .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadPoolExecutor defaultSyncExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SYNC_THREADS, MAX_SYNC_THREADS, IDLE_SECONDS, TimeUnit.SECONDS,
+                                                                   new ArrayBlockingQueue<>(MAX_QUEUED_SYNCS),
+                                                                   syncThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory syncThreadFactory() {
+        try {
+            // Thread.ofVirtual().name("sso-ldap-sync-", 0).factory() on Java 21 and later, we compile against Java 8
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "sso-ldap-sync-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return new ThreadFactoryBuilder()
+                    .setNameFormat("sso-ldap-sync-%d")
+                    .setDaemon(true)
+                    .build();
+        }
+    }
+}
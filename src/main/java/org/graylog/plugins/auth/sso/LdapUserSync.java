@@ -0,0 +1,300 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.security.realm.LdapUserAuthenticator;
+import org.graylog2.shared.users.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Synchronizes header-authenticated users with LDAP, at most once per configured interval and user.
+ * <p>
+ * Users which have never been synced on this node are synced on the calling thread, because the sync might
+ * create the user. Between syncs the locally stored user is returned, and once the interval has passed the
+ * stored user is still returned while a refresh runs in the background. Users {@link #markStored(String) marked}
+ * by the startup warm-up are treated like users whose interval has passed. The first load of a user is served
+ * from the {@link WarmedUserCache} if the warm-up loaded it, with or without LDAP.
+ * <p>
+ * With a sync deadline, syncs on the request path run on the bounded executor of the {@link LdapSyncScheduler}.
+ * A request whose sync misses the deadline, or cannot be started because the executor is saturated, continues
+ * with the stored user while the sync finishes in the background. Concurrent requests of the same user
+ * wait for the same sync.
+ */
+@Singleton
+public class LdapUserSync {
+    private static final Logger LOG = LoggerFactory.getLogger(LdapUserSync.class);
+
+    private static final int MAX_TRACKED_USERS = 100_000;
+    // sync time of users which are known to be stored but have not been synced on this node yet
+    private static final long NOT_SYNCED = Long.MIN_VALUE;
+
+    private final LdapUserAuthenticator ldapAuthenticator;
+    private final UserService userService;
+    private final SsoAuthMetrics metrics;
+    private final SsoCircuitBreakers circuitBreakers;
+    private final WarmedUserCache warmedUsers;
+    private final ExecutorService refreshExecutor;
+    private final ThreadPoolExecutor syncExecutor;
+    private final Ticker ticker;
+    private final Cache<String, Long> lastSyncs = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_USERS)
+            .build();
+    private final Set<String> pendingRefreshes = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Future<User>> runningSyncs = new ConcurrentHashMap<>();
+
+    @Inject
+    public LdapUserSync(LdapUserAuthenticator ldapAuthenticator,
+                        UserService userService,
+                        SsoAuthMetrics metrics,
+                        SsoCircuitBreakers circuitBreakers,
+                        LdapSyncScheduler scheduler,
+                        WarmedUserCache warmedUsers) {
+        this.ldapAuthenticator = ldapAuthenticator;
+        this.userService = userService;
+        this.metrics = metrics;
+        this.circuitBreakers = circuitBreakers;
+        this.warmedUsers = warmedUsers;
+        this.refreshExecutor = scheduler.refreshExecutor();
+        this.syncExecutor = scheduler.syncExecutor();
+        this.ticker = scheduler.ticker();
+        metrics.registerGauge("ldapSync.active", (Gauge<Integer>) syncExecutor::getActiveCount);
+        metrics.registerGauge("ldapSync.queueDepth", (Gauge<Integer>) () -> syncExecutor.getQueue().size());
+        metrics.registerGauge("warmUp.users", (Gauge<Long>) warmedUsers::size);
+    }
+
+    /**
+     * Returns the user with the given name, synchronized from LDAP if LDAP is enabled and the user is due for
+     * a sync, or {@code null} if no such user exists.
+     *
+     * @param resyncIntervalNanos minimum time between two syncs of the same user, {@code 0} to always sync
+     */
+    @Nullable
+    public User loadUser(String username, long resyncIntervalNanos) {
+        return loadUser(username, resyncIntervalNanos, () -> true);
+    }
+
+    /**
+     * Like {@link #loadUser(String, long)}, but only syncs on the calling thread if {@code admitSync} allows it.
+     * Otherwise the locally stored user is returned as is. Background refreshes are not subject to admission,
+     * they are bounded by the refresh queue already.
+     */
+    @Nullable
+    public User loadUser(String username, long resyncIntervalNanos, BooleanSupplier admitSync) {
+        return loadUser(username, resyncIntervalNanos, 0L, admitSync);
+    }
+
+    /**
+     * Like {@link #loadUser(String, long, BooleanSupplier)}, but waits at most {@code syncTimeoutNanos} for a sync
+     * and returns the stored user otherwise.
+     *
+     * @param syncTimeoutNanos deadline of a sync, {@code 0} to sync on the calling thread without deadline
+     */
+    @Nullable
+    public User loadUser(String username, long resyncIntervalNanos, long syncTimeoutNanos, BooleanSupplier admitSync) {
+        if (!ldapAuthenticator.isEnabled()) {
+            return load(username);
+        }
+        final CircuitBreaker ldapBreaker = circuitBreakers.ldap();
+        if (!ldapBreaker.allowRequest()) {
+            LOG.debug("LDAP circuit breaker is {}, continuing with the stored user {}", ldapBreaker.state(), username);
+            circuitBreakers.rejected(ldapBreaker, () -> sync(username));
+            return load(username);
+        }
+        if (resyncIntervalNanos <= 0) {
+            return syncOrLoad(username, syncTimeoutNanos, admitSync);
+        }
+
+        final Long lastSync = lastSyncs.getIfPresent(username);
+        if (lastSync == null) {
+            return syncOrLoad(username, syncTimeoutNanos, admitSync);
+        }
+
+        final User user = load(username);
+        if (user == null) {
+            // the user vanished since the last sync, let LDAP decide whether it should exist
+            return admitSync.getAsBoolean() ? sync(username, syncTimeoutNanos) : null;
+        }
+        if (lastSync == NOT_SYNCED || ticker.read() - lastSync >= resyncIntervalNanos) {
+            scheduleRefresh(username);
+        }
+        return user;
+    }
+
+    public boolean isEnabled() {
+        return ldapAuthenticator.isEnabled();
+    }
+
+    /**
+     * Marks an existing user as known on this node without syncing it. The first request of the user is then
+     * served from the stored user and the sync runs in the background, instead of on the request thread.
+     * Users which have already been synced are left alone.
+     */
+    public void markStored(String username) {
+        lastSyncs.asMap().putIfAbsent(username, NOT_SYNCED);
+    }
+
+    /**
+     * @return {@code true} while a sync of the given user is running on the sync executor, during which the user
+     * must not be created by anybody else
+     */
+    public boolean isSyncRunning(String username) {
+        return runningSyncs.containsKey(username);
+    }
+
+    /**
+     * @return {@code true} while LDAP is enabled but skipped because its circuit breaker is open, during which
+     * unknown users must not be created because LDAP could not be asked for them
+     */
+    public boolean isSyncSuspended() {
+        return ldapAuthenticator.isEnabled() && !circuitBreakers.ldap().allowRequest();
+    }
+
+    @Nullable
+    private User syncOrLoad(String username, long syncTimeoutNanos, BooleanSupplier admitSync) {
+        if (!admitSync.getAsBoolean()) {
+            return load(username);
+        }
+        final User user = sync(username, syncTimeoutNanos);
+        return user != null ? user : load(username);
+    }
+
+    /**
+     * @return the synced user, or {@code null} if the user does not exist in LDAP or the sync did not finish in time
+     */
+    @Nullable
+    private User sync(String username, long timeoutNanos) {
+        if (timeoutNanos <= 0) {
+            return sync(username);
+        }
+        final Future<User> future = startSync(username);
+        if (future == null) {
+            metrics.ldapSyncRejected().inc();
+            LOG.debug("Too many running LDAP syncs, continuing with the stored user {}", username);
+            return null;
+        }
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            metrics.ldapSyncTimeouts().inc();
+            LOG.debug("LDAP sync of user {} did not finish in time, continuing with the stored user", username);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Nullable
+    private Future<User> startSync(String username) {
+        final Future<User> running = runningSyncs.get(username);
+        if (running != null) {
+            return running;
+        }
+        final FutureTask<User> task = new FutureTask<User>(() -> sync(username)) {
+            @Override
+            protected void done() {
+                runningSyncs.remove(username, this);
+            }
+        };
+        final Future<User> concurrent = runningSyncs.putIfAbsent(username, task);
+        if (concurrent != null) {
+            return concurrent;
+        }
+        try {
+            syncExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            runningSyncs.remove(username, task);
+            return null;
+        }
+        return task;
+    }
+
+    @Nullable
+    private User load(String username) {
+        final User warmedUser = warmedUsers.take(username);
+        if (warmedUser != null) {
+            return warmedUser;
+        }
+        final long start = metrics.userLoad().start();
+        try {
+            return circuitBreakers.mongo().call(() -> userService.load(username));
+        } finally {
+            metrics.userLoad().stop(start);
+        }
+    }
+
+    @Nullable
+    private User sync(String username) {
+        final long start = metrics.ldapSync().start();
+        final User user;
+        try {
+            user = circuitBreakers.ldap().call(() -> ldapAuthenticator.syncLdapUser(username));
+        } finally {
+            metrics.ldapSync().stop(start);
+        }
+        if (user != null) {
+            lastSyncs.put(username, ticker.read());
+        }
+        return user;
+    }
+
+    private void scheduleRefresh(String username) {
+        if (!pendingRefreshes.add(username)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    sync(username);
+                } catch (Exception e) {
+                    LOG.warn("Background LDAP sync of user {} failed", username, e);
+                } finally {
+                    pendingRefreshes.remove(username);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingRefreshes.remove(username);
+            LOG.debug("Too many pending LDAP syncs, not refreshing user {} this time", username);
+        }
+    }
+}
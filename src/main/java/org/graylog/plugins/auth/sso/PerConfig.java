@@ -0,0 +1,89 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import javax.annotation.Nullable;
+import java.util.function.Function;
+
+/**
+ * Holds a value derived from a {@link CompiledSsoAuthConfig}, such as a cache or a set of rate limiters, and
+ * rebuilds it whenever it is asked for a different config instance.
+ * <p>
+ * The common case of an unchanged config costs one volatile read and an identity comparison. Rebuilds are
+ * serialized, and the previous value is handed to {@link #retire(Object)} once it has been replaced.
+ *
+ * @param <T> the type of the derived value, which is {@code null} if the config disables the feature
+ */
+class PerConfig<T> {
+    private final Function<CompiledSsoAuthConfig, T> factory;
+
+    private volatile State<T> state = new State<>(null, null);
+
+    PerConfig(Function<CompiledSsoAuthConfig, T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the value for {@code config}, building it if the config has changed since the last call.
+     */
+    @Nullable
+    T get(CompiledSsoAuthConfig config) {
+        final State<T> current = state;
+        if (current.config == config) {
+            return current.value;
+        }
+        return rebuild(config);
+    }
+
+    /**
+     * Returns the value for the most recently seen config without checking for a newer one.
+     */
+    @Nullable
+    T current() {
+        return state.value;
+    }
+
+    /**
+     * Called with the replaced value after a rebuild, while holding the rebuild lock.
+     */
+    protected void retire(T previous) {
+    }
+
+    @Nullable
+    private synchronized T rebuild(CompiledSsoAuthConfig config) {
+        final State<T> current = state;
+        if (current.config == config) {
+            return current.value;
+        }
+        final T value = factory.apply(config);
+        state = new State<>(config, value);
+        if (current.value != null) {
+            retire(current.value);
+        }
+        return value;
+    }
+
+    private static class State<T> {
+        private final CompiledSsoAuthConfig config;
+        private final T value;
+
+        private State(@Nullable CompiledSsoAuthConfig config, @Nullable T value) {
+            this.config = config;
+            this.value = value;
+        }
+    }
+}
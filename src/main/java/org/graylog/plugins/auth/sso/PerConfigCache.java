@@ -0,0 +1,48 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
+import java.util.function.Function;
+
+/**
+ * A {@link PerConfig} holder for Guava caches, which empties the previous cache on a config change and keeps
+ * its statistics so that hit and miss counts survive rebuilds.
+ */
+class PerConfigCache<K, V> extends PerConfig<Cache<K, V>> {
+    private volatile CacheStats previousStats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+    PerConfigCache(Function<CompiledSsoAuthConfig, Cache<K, V>> factory) {
+        super(factory);
+    }
+
+    /**
+     * Hit, miss and eviction counts accumulated over all cache generations.
+     */
+    CacheStats stats() {
+        final Cache<K, V> cache = current();
+        return cache == null ? previousStats : previousStats.plus(cache.stats());
+    }
+
+    @Override
+    protected void retire(Cache<K, V> previous) {
+        previousStats = previousStats.plus(previous.stats());
+        previous.invalidateAll();
+    }
+}
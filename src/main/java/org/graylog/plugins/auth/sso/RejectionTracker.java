@@ -0,0 +1,200 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the rejected requests of this node per source address and limits how often rejections are logged.
+ * <p>
+ * Both are meant for the reject paths of the realm, which a misbehaving client can hit at a high rate. Recording
+ * a rejection of an already tracked source and user does not lock. Logging is limited per {@link Reason} to a
+ * burst of {@value #LOG_BURST} messages and one message per second after that, the number of rejections which were
+ * not logged in between is reported with the next message.
+ * <p>
+ * Rejections are also coalesced for the audit log: only the first rejection per user, reason and source within
+ * {@link #AUDIT_WINDOW_NANOS} is audited, together with the number of rejections of the same user, reason and
+ * source since the previous audited one. Every rejected user of a proxy is audited, repeated requests of the same
+ * user are summarized.
+ */
+@Singleton
+public class RejectionTracker {
+    private static final long MAX_TRACKED_SOURCES = 10_000;
+    private static final long MAX_AUDITED_KEYS = 10_000;
+    private static final long LOG_RATE_PER_SECOND = 1;
+    private static final long LOG_BURST = 10;
+    static final long AUDIT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Returned by {@link #record(String, Reason, String)} for rejections which must not be audited.
+     */
+    public static final long NOT_AUDITED = -1L;
+
+    public enum Reason {
+        UNTRUSTED_PROXY, INVALID_TOKEN, UNKNOWN_USER
+    }
+
+    private static final int REASONS = Reason.values().length;
+
+    private final Ticker ticker;
+    private final Cache<String, SourceState> sources = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_SOURCES)
+            .build();
+    private final Cache<AuditKey, AuditState> audited = CacheBuilder.newBuilder()
+            .maximumSize(MAX_AUDITED_KEYS)
+            .build();
+    private final TokenBucket[] logBuckets = new TokenBucket[REASONS];
+    private final AtomicLong[] suppressed = new AtomicLong[REASONS];
+
+    @Inject
+    public RejectionTracker() {
+        this(Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    RejectionTracker(Ticker ticker) {
+        this.ticker = ticker;
+        for (int i = 0; i < REASONS; i++) {
+            logBuckets[i] = new TokenBucket(LOG_RATE_PER_SECOND, LOG_BURST, ticker.read());
+            suppressed[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Counts a rejected request of the given source.
+     *
+     * @param username the claimed user name, {@code null} if it is not known
+     * @return the number of rejections of the user from the source for the same reason since the last audited one
+     * if this rejection should be audited, {@link #NOT_AUDITED} otherwise
+     */
+    public long record(String source, Reason reason, @Nullable String username) {
+        final long now = ticker.read();
+        SourceState state = sources.getIfPresent(source);
+        if (state == null) {
+            state = sources.asMap().computeIfAbsent(source, key -> new SourceState());
+        }
+        state.counts.incrementAndGet(reason.ordinal());
+
+        final AuditKey key = new AuditKey(source, reason, username);
+        AuditState audit = audited.getIfPresent(key);
+        if (audit == null) {
+            audit = audited.asMap().computeIfAbsent(key, k -> new AuditState(now));
+        }
+        final long count = audit.count.incrementAndGet();
+        final long windowEnd = audit.windowEnd.get();
+        if (now - windowEnd < 0 || !audit.windowEnd.compareAndSet(windowEnd, now + AUDIT_WINDOW_NANOS)) {
+            return NOT_AUDITED;
+        }
+        return count - audit.auditedCount.getAndSet(count) - 1;
+    }
+
+    /**
+     * @return {@code true} if a rejection for the given reason may be logged now, in which case
+     * {@link #takeSuppressed(Reason)} returns the number of rejections which were not logged since the last message
+     */
+    public boolean shouldLog(Reason reason) {
+        if (logBuckets[reason.ordinal()].tryAcquire(ticker.read())) {
+            return true;
+        }
+        suppressed[reason.ordinal()].incrementAndGet();
+        return false;
+    }
+
+    public long takeSuppressed(Reason reason) {
+        return suppressed[reason.ordinal()].getAndSet(0L);
+    }
+
+    /**
+     * @return the sources with the most rejections first, at most {@code limit} of them
+     */
+    public List<SourceRejections> top(int limit) {
+        final List<SourceRejections> result = new ArrayList<>();
+        for (Map.Entry<String, SourceState> entry : sources.asMap().entrySet()) {
+            final AtomicLongArray counts = entry.getValue().counts;
+            result.add(SourceRejections.create(entry.getKey(),
+                                               counts.get(Reason.UNTRUSTED_PROXY.ordinal()),
+                                               counts.get(Reason.INVALID_TOKEN.ordinal()),
+                                               counts.get(Reason.UNKNOWN_USER.ordinal())));
+        }
+        result.sort(Comparator.comparingLong(SourceRejections::total).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    public long trackedSources() {
+        return sources.size();
+    }
+
+    private static class SourceState {
+        private final AtomicLongArray counts = new AtomicLongArray(REASONS);
+    }
+
+    private static class AuditKey {
+        private final String source;
+        private final Reason reason;
+        private final String username;
+
+        private AuditKey(String source, Reason reason, @Nullable String username) {
+            this.source = source;
+            this.reason = reason;
+            this.username = username;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final AuditKey that = (AuditKey) o;
+            return reason == that.reason && source.equals(that.source) && Objects.equals(username, that.username);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, reason, username);
+        }
+    }
+
+    private static class AuditState {
+        private final AtomicLong count = new AtomicLong();
+        // the end of the audit window opened by the last audited rejection
+        private final AtomicLong windowEnd;
+        // the count of the last audited rejection
+        private final AtomicLong auditedCount = new AtomicLong();
+
+        private AuditState(long now) {
+            this.windowEnd = new AtomicLong(now);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a list of {@link RoleMappingRule}s, mapping external group names to Graylog role names.
+ * <p>
+ * Exact rules are looked up in a hash map. All other rules are reduced to a literal keyword which every
+ * matching group has to contain, and the keywords of all rules are searched at once with an Aho-Corasick
+ * automaton. Prefix, suffix and infix rules are decided by the position of the keyword alone, while glob and
+ * regex rules are only evaluated with their {@link Pattern} if their keyword occurs. Only rules from which no
+ * keyword can be derived (e.g. regular expressions with alternations) are evaluated for every group.
+ * Mapping a group therefore costs about one hash lookup and one pass over its characters, independent of
+ * the number of rules.
+ */
+public final class RoleMapping {
+    private static final RoleMapping EMPTY = new RoleMapping(true, new HashMap<>(), null, new String[0], new Pattern[0], new int[0]);
+    private static final int PATTERN_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+    private static final String PREDEFINED_CLASSES = "dDsSwWbBAzZGhHvVR";
+
+    private final boolean passthrough;
+    private final Map<String, String[]> exactRules;
+    private final KeywordAutomaton automaton;
+    private final String[] ruleRoles;
+    private final Pattern[] rulePatterns;
+    private final int[] unanchoredRules;
+
+    private RoleMapping(boolean passthrough,
+                        Map<String, String[]> exactRules,
+                        @Nullable KeywordAutomaton automaton,
+                        String[] ruleRoles,
+                        Pattern[] rulePatterns,
+                        int[] unanchoredRules) {
+        this.passthrough = passthrough;
+        this.exactRules = exactRules;
+        this.automaton = automaton;
+        this.ruleRoles = ruleRoles;
+        this.rulePatterns = rulePatterns;
+        this.unanchoredRules = unanchoredRules;
+    }
+
+    public static RoleMapping empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param passthrough whether groups which are not matched by any rule are used as role names as they are
+     * @throws IllegalArgumentException if a rule is incomplete or has an invalid regular expression
+     */
+    public static RoleMapping compile(List<RoleMappingRule> rules, boolean passthrough) {
+        if (rules.isEmpty()) {
+            return EMPTY;
+        }
+        final Map<String, List<String>> exactRules = new HashMap<>();
+        final List<String> ruleRoles = new ArrayList<>();
+        final List<Pattern> rulePatterns = new ArrayList<>();
+        final List<Integer> unanchoredRules = new ArrayList<>();
+        final KeywordAutomaton.Builder automaton = new KeywordAutomaton.Builder();
+
+        for (RoleMappingRule rule : rules) {
+            final String pattern = rule.pattern();
+            if (rule.type() == null || pattern == null || pattern.isEmpty() || rule.role() == null || rule.role().trim().isEmpty()) {
+                throw new IllegalArgumentException("Role mapping rules need a type, a pattern and a role: " + rule);
+            }
+            final String role = rule.role().trim();
+            final int index = ruleRoles.size();
+            switch (rule.type()) {
+                case EXACT:
+                    exactRules.computeIfAbsent(lowercase(pattern), k -> new ArrayList<>()).add(role);
+                    continue;
+                case PREFIX:
+                    automaton.add(lowercase(pattern), index, KeywordAutomaton.PREFIX);
+                    ruleRoles.add(role);
+                    rulePatterns.add(null);
+                    continue;
+                case GLOB:
+                    if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+                        exactRules.computeIfAbsent(lowercase(pattern), k -> new ArrayList<>()).add(role);
+                        continue;
+                    }
+                    ruleRoles.add(role);
+                    rulePatterns.add(addGlob(automaton, pattern, index, unanchoredRules));
+                    continue;
+                case REGEX:
+                    final Pattern compiled = Pattern.compile(pattern, PATTERN_FLAGS);
+                    final String keyword = requiredLiteral(pattern);
+                    if (keyword == null) {
+                        unanchoredRules.add(index);
+                    } else {
+                        automaton.add(lowercase(keyword), index, KeywordAutomaton.VERIFY);
+                    }
+                    ruleRoles.add(role);
+                    rulePatterns.add(compiled);
+                    continue;
+                default:
+                    throw new IllegalArgumentException("Unknown role mapping rule type " + rule.type());
+            }
+        }
+
+        final Map<String, String[]> exact = new HashMap<>(exactRules.size() * 2);
+        for (Map.Entry<String, List<String>> entry : exactRules.entrySet()) {
+            exact.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+        }
+        return new RoleMapping(passthrough,
+                               exact,
+                               automaton.isEmpty() ? null : automaton.build(),
+                               ruleRoles.toArray(new String[0]),
+                               rulePatterns.toArray(new Pattern[0]),
+                               unanchoredRules.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Registers a glob rule with the automaton, in the cheapest form its shape allows.
+     *
+     * @return the pattern to verify candidates with, or {@code null} if the keyword position decides the match
+     */
+    @Nullable
+    private static Pattern addGlob(KeywordAutomaton.Builder automaton, String glob, int index, List<Integer> unanchoredRules) {
+        final String lowercaseGlob = lowercase(glob);
+        if (glob.indexOf('?') < 0) {
+            final int firstStar = glob.indexOf('*');
+            final int lastStar = glob.lastIndexOf('*');
+            final int length = glob.length();
+            if (firstStar == lastStar && firstStar == length - 1 && length > 1) {
+                automaton.add(lowercaseGlob.substring(0, length - 1), index, KeywordAutomaton.PREFIX);
+                return null;
+            }
+            if (firstStar == lastStar && firstStar == 0 && length > 1) {
+                automaton.add(lowercaseGlob.substring(1), index, KeywordAutomaton.SUFFIX);
+                return null;
+            }
+            if (firstStar == 0 && lastStar == length - 1 && length > 2 && glob.indexOf('*', 1) == lastStar) {
+                automaton.add(lowercaseGlob.substring(1, length - 1), index, KeywordAutomaton.INFIX);
+                return null;
+            }
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        String keyword = "";
+        int literalStart = 0;
+        for (int i = 0; i <= glob.length(); i++) {
+            final char c = i < glob.length() ? glob.charAt(i) : '*';
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    final String literal = glob.substring(literalStart, i);
+                    regex.append(Pattern.quote(literal));
+                    if (literal.length() > keyword.length()) {
+                        keyword = literal;
+                    }
+                }
+                if (i < glob.length()) {
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                literalStart = i + 1;
+            }
+        }
+        if (keyword.isEmpty()) {
+            unanchoredRules.add(index);
+        } else {
+            automaton.add(lowercase(keyword), index, KeywordAutomaton.VERIFY);
+        }
+        return Pattern.compile(regex.toString(), PATTERN_FLAGS | Pattern.DOTALL);
+    }
+
+    /**
+     * Returns the longest run of literal characters which every string matching the regular expression has to
+     * contain, or {@code null} if none can be determined safely. The analysis is deliberately conservative:
+     * anything inside groups and all expressions with alternations are skipped.
+     */
+    @VisibleForTesting
+    @Nullable
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0 || regex.contains("\\Q") || regex.startsWith("(?")) {
+            return null;
+        }
+        String longest = "";
+        final StringBuilder current = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            int next = i + 1;
+            boolean literal = false;
+            char literalChar = c;
+            switch (c) {
+                case '\\':
+                    if (next >= regex.length()) {
+                        return null;
+                    }
+                    final char escaped = regex.charAt(next);
+                    if (!Character.isLetterOrDigit(escaped)) {
+                        literal = true;
+                        literalChar = escaped;
+                    } else if (PREDEFINED_CLASSES.indexOf(escaped) < 0) {
+                        // octal, hex, unicode and property escapes are not worth the trouble
+                        return null;
+                    }
+                    next = i + 2;
+                    break;
+                case '[':
+                    next = skipCharacterClass(regex, i);
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                case '{':
+                    next = regex.indexOf('}', i) + 1;
+                    if (next == 0) {
+                        return null;
+                    }
+                    break;
+                case '*':
+                case '?':
+                case '+':
+                    // handled together with the preceding element below
+                    break;
+                default:
+                    literal = true;
+            }
+
+            final char quantifier = next < regex.length() ? regex.charAt(next) : 0;
+            final boolean optional = quantifier == '*' || quantifier == '?' || quantifier == '{';
+            if (literal && depth == 0 && !optional) {
+                current.append(literalChar);
+            }
+            if (!literal || depth != 0 || optional || quantifier == '+') {
+                if (current.length() > longest.length()) {
+                    longest = current.toString();
+                }
+                current.setLength(0);
+            }
+            i = next;
+        }
+        if (current.length() > longest.length()) {
+            longest = current.toString();
+        }
+        return longest.isEmpty() ? null : longest;
+    }
+
+    private static int skipCharacterClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        // a closing bracket right at the start is a literal
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        while (i < regex.length() && regex.charAt(i) != ']') {
+            i += regex.charAt(i) == '\\' ? 2 : 1;
+        }
+        return i + 1;
+    }
+
+    private static String lowercase(String value) {
+        return value.toLowerCase(Locale.ENGLISH);
+    }
+
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * Maps the given external groups to role names.
+     */
+    public Set<String> apply(Collection<String> groups) {
+        if (isEmpty()) {
+            return groups instanceof Set ? (Set<String>) groups : new HashSet<>(groups);
+        }
+        final Set<String> roles = new HashSet<>();
+        for (String group : groups) {
+            if (!mapGroup(group, roles) && passthrough) {
+                roles.add(group);
+            }
+        }
+        return roles;
+    }
+
+    private boolean mapGroup(String group, Set<String> roles) {
+        final String lowercaseGroup = lowercase(group);
+        boolean matched = false;
+
+        final String[] exactRoles = exactRules.get(lowercaseGroup);
+        if (exactRoles != null) {
+            roles.addAll(Arrays.asList(exactRoles));
+            matched = true;
+        }
+        if (automaton != null) {
+            matched |= automaton.scan(lowercaseGroup, group, this, roles);
+        }
+        for (int rule : unanchoredRules) {
+            if (rulePatterns[rule].matcher(group).matches()) {
+                roles.add(ruleRoles[rule]);
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Aho-Corasick automaton over the lowercased rule keywords.
+     */
+    private static final class KeywordAutomaton {
+        static final byte PREFIX = 0;
+        static final byte SUFFIX = 1;
+        static final byte INFIX = 2;
+        static final byte VERIFY = 3;
+
+        private static final long[] NO_OUTPUTS = new long[0];
+
+        private final Node root;
+
+        private KeywordAutomaton(Node root) {
+            this.root = root;
+        }
+
+        /**
+         * Adds the roles of all rules whose keyword occurs in the group at a matching position.
+         */
+        boolean scan(String lowercaseGroup, String group, RoleMapping mapping, Set<String> roles) {
+            boolean matched = false;
+            BitSet verified = null;
+            Node state = root;
+            final int last = lowercaseGroup.length() - 1;
+            for (int i = 0; i <= last; i++) {
+                final char c = lowercaseGroup.charAt(i);
+                Node next = state.next(c);
+                while (next == null && state != root) {
+                    state = state.fail;
+                    next = state.next(c);
+                }
+                state = next == null ? root : next;
+
+                for (long output : state.outputs) {
+                    final int rule = (int) (output >>> 32);
+                    final int kind = (int) (output >>> 24) & 0xff;
+                    final int keywordLength = (int) output & 0xffffff;
+                    final boolean hit;
+                    switch (kind) {
+                        case PREFIX:
+                            hit = i + 1 == keywordLength;
+                            break;
+                        case SUFFIX:
+                            hit = i == last;
+                            break;
+                        case INFIX:
+                            hit = true;
+                            break;
+                        default:
+                            if (verified == null) {
+                                verified = new BitSet();
+                            }
+                            if (verified.get(rule)) {
+                                continue;
+                            }
+                            verified.set(rule);
+                            hit = mapping.rulePatterns[rule].matcher(group).matches();
+                    }
+                    if (hit) {
+                        roles.add(mapping.ruleRoles[rule]);
+                        matched = true;
+                    }
+                }
+            }
+            return matched;
+        }
+
+        private static final class Node {
+            private char[] keys = new char[0];
+            private Node[] children = new Node[0];
+            private Node fail;
+            private long[] outputs = NO_OUTPUTS;
+
+            @Nullable
+            Node next(char c) {
+                final int index = Arrays.binarySearch(keys, c);
+                return index >= 0 ? children[index] : null;
+            }
+        }
+
+        static final class Builder {
+            private final TreeNode root = new TreeNode();
+            private boolean empty = true;
+
+            void add(String keyword, int rule, byte kind) {
+                TreeNode node = root;
+                for (int i = 0; i < keyword.length(); i++) {
+                    node = node.children.computeIfAbsent(keyword.charAt(i), k -> new TreeNode());
+                }
+                node.outputs.add(((long) rule << 32) | ((long) kind << 24) | keyword.length());
+                empty = false;
+            }
+
+            boolean isEmpty() {
+                return empty;
+            }
+
+            KeywordAutomaton build() {
+                final Node compiledRoot = freeze(root);
+
+                // breadth first, so the failure target of a node is complete before the node itself
+                compiledRoot.fail = compiledRoot;
+                final ArrayDeque<Node> queue = new ArrayDeque<>();
+                for (Node child : compiledRoot.children) {
+                    child.fail = compiledRoot;
+                    queue.add(child);
+                }
+                while (!queue.isEmpty()) {
+                    final Node node = queue.poll();
+                    for (int i = 0; i < node.keys.length; i++) {
+                        final Node child = node.children[i];
+                        Node fail = node.fail;
+                        Node target = fail.next(node.keys[i]);
+                        while (target == null && fail != compiledRoot) {
+                            fail = fail.fail;
+                            target = fail.next(node.keys[i]);
+                        }
+                        child.fail = target == null ? compiledRoot : target;
+                        if (child.fail.outputs.length > 0) {
+                            final long[] merged = Arrays.copyOf(child.outputs, child.outputs.length + child.fail.outputs.length);
+                            System.arraycopy(child.fail.outputs, 0, merged, child.outputs.length, child.fail.outputs.length);
+                            child.outputs = merged;
+                        }
+                        queue.add(child);
+                    }
+                }
+                return new KeywordAutomaton(compiledRoot);
+            }
+
+            private static Node freeze(TreeNode treeNode) {
+                final Node node = new Node();
+                node.keys = new char[treeNode.children.size()];
+                node.children = new Node[treeNode.children.size()];
+                int i = 0;
+                for (Map.Entry<Character, TreeNode> child : treeNode.children.entrySet()) {
+                    node.keys[i] = child.getKey();
+                    node.children[i] = freeze(child.getValue());
+                    i++;
+                }
+                if (!treeNode.outputs.isEmpty()) {
+                    node.outputs = treeNode.outputs.stream().mapToLong(Long::longValue).toArray();
+                }
+                return node;
+            }
+        }
+
+        private static final class TreeNode {
+            // sorted, so the frozen nodes can use binary search
+            private final TreeMap<Character, TreeNode> children = new TreeMap<>();
+            private final List<Long> outputs = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+/**
+ * Maps external groups matching a pattern to a Graylog role. Patterns are matched case-insensitively
+ * against the whole group name.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class RoleMappingRule {
+    public enum Type {
+        /**
+         * The group equals the pattern.
+         */
+        @JsonProperty("exact") EXACT,
+        /**
+         * The group starts with the pattern.
+         */
+        @JsonProperty("prefix") PREFIX,
+        /**
+         * The group matches the pattern, in which {@code *} stands for any number of characters and {@code ?}
+         * for a single character.
+         */
+        @JsonProperty("glob") GLOB,
+        /**
+         * The group matches the Java regular expression.
+         */
+        @JsonProperty("regex") REGEX
+    }
+
+    @JsonProperty("type")
+    public abstract Type type();
+
+    @JsonProperty("pattern")
+    public abstract String pattern();
+
+    @JsonProperty("role")
+    public abstract String role();
+
+    @JsonCreator
+    public static RoleMappingRule create(@JsonProperty("type") Type type,
+                                         @JsonProperty("pattern") String pattern,
+                                         @JsonProperty("role") String role) {
+        return new AutoValue_RoleMappingRule(type, pattern, role);
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.shared.users.Role;
+import org.graylog2.users.RoleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Node-local, case-insensitive mapping of role names to role ids.
+ * <p>
+ * All roles are loaded in bulk and reloaded in the background once the mapping is older than
+ * {@link #REFRESH_INTERVAL_NANOS}, because Graylog does not publish events for role changes. Names which cannot
+ * be resolved trigger a synchronous reload (at most once per {@link #MIN_RELOAD_INTERVAL_NANOS}) and are then
+ * remembered as unknown until the next reload, so that in the steady state no role queries are made at all.
+ */
+@Singleton
+public class RoleNameResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(RoleNameResolver.class);
+
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long MIN_RELOAD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long UNKNOWN_NAME_TTL_SECONDS = 60;
+    private static final int MAX_UNKNOWN_NAMES = 10_000;
+
+    private final RoleService roleService;
+    private final Executor refreshExecutor;
+    private final Ticker ticker;
+    private final Cache<String, Boolean> unknownNames;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+    private volatile long lastReloadAttempt;
+
+    @Inject
+    public RoleNameResolver(RoleService roleService) {
+        this(roleService,
+             Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                                       .setNameFormat("sso-role-refresh-%d")
+                                                       .setDaemon(true)
+                                                       .build()),
+             Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    RoleNameResolver(RoleService roleService, Executor refreshExecutor, Ticker ticker) {
+        this.roleService = roleService;
+        this.refreshExecutor = refreshExecutor;
+        this.ticker = ticker;
+        this.unknownNames = CacheBuilder.newBuilder()
+                .maximumSize(MAX_UNKNOWN_NAMES)
+                .expireAfterWrite(UNKNOWN_NAME_TTL_SECONDS, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    /**
+     * Resolves all given role names in a single pass, names of roles that do not exist are skipped.
+     *
+     * @return the ids of all existing roles in {@code roleNames}
+     */
+    public Set<String> resolve(Collection<String> roleNames) {
+        Snapshot current = current();
+        final Set<String> roleIds = new HashSet<>(roleNames.size() * 2);
+        List<String> misses = null;
+        for (String roleName : roleNames) {
+            final String name = roleName.toLowerCase(Locale.ENGLISH);
+            final String roleId = current.roleIds.get(name);
+            if (roleId != null) {
+                roleIds.add(roleId);
+            } else if (unknownNames.getIfPresent(name) == null) {
+                if (misses == null) {
+                    misses = new ArrayList<>();
+                }
+                misses.add(name);
+            }
+        }
+
+        if (misses != null) {
+            current = reloadIfAllowed(current);
+            for (String name : misses) {
+                final String roleId = current.roleIds.get(name);
+                if (roleId != null) {
+                    roleIds.add(roleId);
+                } else {
+                    LOG.debug("Role {} does not exist, ignoring it", name);
+                    unknownNames.put(name, Boolean.TRUE);
+                }
+            }
+        }
+        return roleIds;
+    }
+
+    /**
+     * @return the id of the role with the given name, or {@code null} if there is no such role
+     */
+    @Nullable
+    public String resolve(String roleName) {
+        final Set<String> roleIds = resolve(Collections.singleton(roleName));
+        return roleIds.isEmpty() ? null : roleIds.iterator().next();
+    }
+
+    /**
+     * Hash of all role names and ids, which changes whenever roles are created, renamed or deleted. Nodes which
+     * loaded the same roles return the same version.
+     */
+    public long version() {
+        return current().version;
+    }
+
+    /**
+     * Loads all role names on the calling thread, unless they have been loaded already.
+     *
+     * @return the number of known role names
+     */
+    public int preload() {
+        final Snapshot current = snapshot;
+        return (current != null ? current : reload()).roleIds.size();
+    }
+
+    public String readerRoleId() {
+        return roleService.getReaderRoleObjectId();
+    }
+
+    private Snapshot current() {
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return reload();
+        }
+        if (ticker.read() - current.loadedAt >= REFRESH_INTERVAL_NANOS) {
+            scheduleRefresh();
+        }
+        return current;
+    }
+
+    private Snapshot reloadIfAllowed(Snapshot current) {
+        if (ticker.read() - lastReloadAttempt < MIN_RELOAD_INTERVAL_NANOS) {
+            return current;
+        }
+        try {
+            return reload();
+        } catch (Exception e) {
+            LOG.warn("Unable to reload roles, keeping the previous role names", e);
+            return current;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized Snapshot reload() {
+        lastReloadAttempt = ticker.read();
+        final ImmutableMap.Builder<String, String> roleIds = ImmutableMap.builder();
+        final Set<String> names = new HashSet<>();
+        for (Role role : roleService.loadAll()) {
+            final String name = role.getName().toLowerCase(Locale.ENGLISH);
+            if (names.add(name)) {
+                roleIds.put(name, role.getId());
+            }
+        }
+        final ImmutableMap<String, String> loadedRoleIds = roleIds.build();
+        final Snapshot loaded = new Snapshot(loadedRoleIds, version(loadedRoleIds), ticker.read());
+        snapshot = loaded;
+        // names which were unknown to the previous roles may exist now, they are looked up in the new ones
+        unknownNames.invalidateAll();
+        LOG.debug("Loaded {} role names", names.size());
+        return loaded;
+    }
+
+    private static long version(Map<String, String> roleIds) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Map.Entry<String, String> role : new TreeMap<>(roleIds).entrySet()) {
+            hasher.putUnencodedChars(role.getKey()).putChar('\0').putUnencodedChars(role.getValue()).putChar('\0');
+        }
+        return hasher.hash().asLong();
+    }
+
+    private void scheduleRefresh() {
+        if (!refreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    LOG.warn("Unable to reload roles, keeping the previous role names", e);
+                } finally {
+                    refreshPending.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshPending.set(false);
+        }
+    }
+
+    @VisibleForTesting
+    static class Snapshot {
+        private final Map<String, String> roleIds;
+        private final long version;
+        private final long loadedAt;
+
+        private Snapshot(Map<String, String> roleIds, long version, long loadedAt) {
+            this.roleIds = roleIds;
+            this.version = version;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.core.MultivaluedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether an authenticated request should create a server session, according to the
+ * {@link SsoAuthConfig.SessionPolicy session policy}.
+ * <p>
+ * Requests only reach the realm if they carry no valid session, so web browsers are always given a new session.
+ * For other clients with {@link SsoAuthConfig.SessionPolicy#PER_FINGERPRINT} the user names and header
+ * fingerprints for which a session has been requested are remembered for the reuse period. The entries are
+ * node-local and emptied whenever the SSO config changes.
+ */
+@Singleton
+public class SessionTracker {
+    private static final long MAX_SIZE = 100_000;
+
+    private final PerConfigCache<SsoAuthenticationCache.Key, Boolean> sessions = new PerConfigCache<>(SessionTracker::build);
+
+    @Inject
+    public SessionTracker() {
+    }
+
+    public boolean shouldCreateSession(CompiledSsoAuthConfig config,
+                                       String username,
+                                       HashCode fingerprint,
+                                       MultivaluedMap<String, String> headers) {
+        switch (config.sessionPolicy()) {
+            case BROWSER_ONLY:
+                return SsoHeaders.isBrowser(headers);
+            case PER_FINGERPRINT:
+                if (SsoHeaders.isBrowser(headers)) {
+                    return true;
+                }
+                final Cache<SsoAuthenticationCache.Key, Boolean> cache = sessions.get(config);
+                return cache == null || cache.asMap().putIfAbsent(new SsoAuthenticationCache.Key(username, fingerprint), Boolean.TRUE) == null;
+            default:
+                return true;
+        }
+    }
+
+    public long size() {
+        final Cache<SsoAuthenticationCache.Key, Boolean> cache = sessions.current();
+        return cache == null ? 0L : cache.size();
+    }
+
+    @Nullable
+    private static Cache<SsoAuthenticationCache.Key, Boolean> build(CompiledSsoAuthConfig config) {
+        final long reuseSeconds = config.source().sessionReuseSeconds();
+        if (reuseSeconds <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumSize(MAX_SIZE)
+                .expireAfterWrite(reuseSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * The claims of a signed identity token whose signature has been verified.
+ */
+public final class SignedIdentity {
+    private final String username;
+    private final String fullName;
+    private final String email;
+    private final Set<String> groups;
+    private final long validUntilMillis;
+
+    SignedIdentity(String username,
+                   @Nullable String fullName,
+                   @Nullable String email,
+                   Set<String> groups,
+                   long validUntilMillis) {
+        this.username = username;
+        this.fullName = fullName;
+        this.email = email;
+        this.groups = groups;
+        this.validUntilMillis = validUntilMillis;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    @Nullable
+    public String fullName() {
+        return fullName;
+    }
+
+    @Nullable
+    public String email() {
+        return email;
+    }
+
+    public Set<String> groups() {
+        return groups;
+    }
+
+    /**
+     * @return whether the token has expired at the given time, including the allowed clock skew
+     */
+    public boolean isExpiredAt(long nowMillis) {
+        return nowMillis >= validUntilMillis;
+    }
+}
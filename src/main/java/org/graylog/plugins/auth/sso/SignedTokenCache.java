@@ -0,0 +1,121 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+
+/**
+ * Bounded cache of verified signed identity tokens, keyed by the SHA-256 digest of the encoded token.
+ * <p>
+ * A token is verified once and then served from the cache until it expires, so the signature check is paid
+ * once per token lifetime instead of once per request. Only successfully verified tokens are cached. The cache
+ * is rebuilt, and thereby emptied, whenever the SSO config changes, which also covers rotated keys.
+ */
+@Singleton
+public class SignedTokenCache {
+    private static final HashFunction DIGEST = Hashing.sha256();
+
+    private final SsoAuthMetrics metrics;
+    private final Clock clock;
+
+    private final PerConfigCache<HashCode, SignedIdentity> caches = new PerConfigCache<>(SignedTokenCache::build);
+
+    @Inject
+    public SignedTokenCache(SsoAuthMetrics metrics) {
+        this(metrics, Clock.systemUTC());
+    }
+
+    @VisibleForTesting
+    SignedTokenCache(SsoAuthMetrics metrics, Clock clock) {
+        this.metrics = metrics;
+        this.clock = clock;
+    }
+
+    public static HashCode digest(String token) {
+        return DIGEST.hashString(token, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the identity of the given token, verifying it with the keys of {@code config} unless a valid
+     * verification result is cached.
+     *
+     * @param digest the {@link #digest(String) digest} of {@code token}
+     * @return the identity or {@code null} if the token is invalid or signed tokens are disabled
+     */
+    @Nullable
+    public SignedIdentity verify(CompiledSsoAuthConfig config, String token, HashCode digest) {
+        final SignedTokenVerifier verifier = config.signedTokenVerifier();
+        if (verifier == null) {
+            return null;
+        }
+        final long now = clock.millis();
+        final Cache<HashCode, SignedIdentity> cache = caches.get(config);
+        if (cache != null) {
+            final SignedIdentity cached = cache.getIfPresent(digest);
+            if (cached != null) {
+                if (!cached.isExpiredAt(now)) {
+                    return cached;
+                }
+                cache.invalidate(digest);
+                return null;
+            }
+        }
+
+        final long start = metrics.tokenVerification().start();
+        final SignedIdentity identity;
+        try {
+            identity = verifier.verify(token, now);
+        } finally {
+            metrics.tokenVerification().stop(start);
+        }
+        if (identity != null && cache != null) {
+            cache.put(digest, identity);
+        }
+        return identity;
+    }
+
+    /**
+     * Hit, miss and eviction counts accumulated over all cache generations.
+     */
+    public CacheStats stats() {
+        return caches.stats();
+    }
+
+    @Nullable
+    private static Cache<HashCode, SignedIdentity> build(CompiledSsoAuthConfig config) {
+        final long maxSize = config.source().signedTokenCacheSize();
+        if (maxSize <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Verifies compact JWS identity tokens with the keys of a {@link SsoAuthConfig}.
+ * <p>
+ * HMAC signed tokens are only accepted if a secret is configured and RSA signed tokens only if a public key is
+ * configured, so the algorithm in the token header cannot be used to switch between the two. Tokens have to
+ * carry a {@code sub} and an {@code exp} claim, the optional {@code name}, {@code email} and {@code groups}
+ * claims are used for user creation and role synchronization.
+ */
+public final class SignedTokenVerifier {
+    private static final Logger LOG = LoggerFactory.getLogger(SignedTokenVerifier.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final long CLOCK_SKEW_MILLIS = 30_000L;
+
+    private static final Map<String, String> HMAC_ALGORITHMS = ImmutableMap.of(
+            "HS256", "HmacSHA256",
+            "HS384", "HmacSHA384",
+            "HS512", "HmacSHA512");
+    private static final Map<String, String> RSA_ALGORITHMS = ImmutableMap.of(
+            "RS256", "SHA256withRSA",
+            "RS384", "SHA384withRSA",
+            "RS512", "SHA512withRSA");
+
+    private final byte[] hmacSecret;
+    private final PublicKey rsaKey;
+    private final String audience;
+
+    private SignedTokenVerifier(@Nullable byte[] hmacSecret, @Nullable PublicKey rsaKey, @Nullable String audience) {
+        this.hmacSecret = hmacSecret;
+        this.rsaKey = rsaKey;
+        this.audience = audience;
+    }
+
+    /**
+     * @return the verifier for the configured keys or {@code null} if signed tokens are not enabled
+     * @throws IllegalArgumentException if signed tokens are enabled but the keys are missing or invalid
+     */
+    @Nullable
+    public static SignedTokenVerifier fromConfig(SsoAuthConfig config) {
+        if (isNullOrEmpty(config.signedTokenHeader())) {
+            return null;
+        }
+        final String secret = config.signedTokenHmacSecret();
+        final String publicKey = config.signedTokenPublicKey();
+        if (isNullOrEmpty(secret) && isNullOrEmpty(publicKey)) {
+            throw new IllegalArgumentException("Signed tokens require an HMAC secret or an RSA public key");
+        }
+        return new SignedTokenVerifier(isNullOrEmpty(secret) ? null : parseSecret(secret),
+                                       isNullOrEmpty(publicKey) ? null : parsePublicKey(publicKey),
+                                       isNullOrEmpty(config.signedTokenAudience()) ? null : config.signedTokenAudience());
+    }
+
+    private static byte[] parseSecret(String secret) {
+        final byte[] key;
+        try {
+            key = Base64.getMimeDecoder().decode(secret);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The HMAC secret is not Base64 encoded", e);
+        }
+        if (key.length == 0) {
+            throw new IllegalArgumentException("The HMAC secret is empty");
+        }
+        return key;
+    }
+
+    private static PublicKey parsePublicKey(String publicKey) {
+        final String base64 = publicKey
+                .replace("-----BEGIN PUBLIC KEY-----", "")
+                .replace("-----END PUBLIC KEY-----", "");
+        try {
+            final byte[] encoded = Base64.getMimeDecoder().decode(base64);
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            throw new IllegalArgumentException("The public key is not a PEM or Base64 encoded X.509 RSA public key", e);
+        }
+    }
+
+    /**
+     * Verifies the signature and the claims of the given token.
+     *
+     * @return the identity or {@code null} if the token is malformed, not correctly signed, expired or not
+     * issued for the configured audience
+     */
+    @Nullable
+    public SignedIdentity verify(String token, long nowMillis) {
+        final int payloadStart = token.indexOf('.') + 1;
+        final int signatureStart = token.indexOf('.', payloadStart) + 1;
+        if (payloadStart <= 1 || signatureStart <= payloadStart + 1 || token.indexOf('.', signatureStart) >= 0) {
+            return invalid("it is not a compact JWS");
+        }
+
+        try {
+            final JsonNode header = decodeJson(token.substring(0, payloadStart - 1));
+            final String algorithm = header.path("alg").asText("");
+            final byte[] signingInput = token.substring(0, signatureStart - 1).getBytes(StandardCharsets.US_ASCII);
+            final byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureStart));
+            if (!verifySignature(algorithm, signingInput, signature)) {
+                return invalid("the signature does not match");
+            }
+            return verifyClaims(decodeJson(token.substring(payloadStart, signatureStart - 1)), nowMillis);
+        } catch (IOException | IllegalArgumentException e) {
+            return invalid("it cannot be decoded");
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Unable to verify signed token", e);
+            return null;
+        }
+    }
+
+    private static JsonNode decodeJson(String base64Url) throws IOException {
+        return OBJECT_MAPPER.readTree(Base64.getUrlDecoder().decode(base64Url));
+    }
+
+    private boolean verifySignature(String algorithm, byte[] signingInput, byte[] signature) throws GeneralSecurityException {
+        final String hmacAlgorithm = HMAC_ALGORITHMS.get(algorithm);
+        if (hmacAlgorithm != null && hmacSecret != null) {
+            final Mac mac = Mac.getInstance(hmacAlgorithm);
+            mac.init(new SecretKeySpec(hmacSecret, hmacAlgorithm));
+            return MessageDigest.isEqual(mac.doFinal(signingInput), signature);
+        }
+        final String rsaAlgorithm = RSA_ALGORITHMS.get(algorithm);
+        if (rsaAlgorithm != null && rsaKey != null) {
+            final Signature verifier = Signature.getInstance(rsaAlgorithm);
+            verifier.initVerify(rsaKey);
+            verifier.update(signingInput);
+            return verifier.verify(signature);
+        }
+        LOG.debug("Signed token uses unsupported or unconfigured algorithm {}", algorithm);
+        return false;
+    }
+
+    @Nullable
+    private SignedIdentity verifyClaims(JsonNode claims, long nowMillis) {
+        final String subject = claims.path("sub").asText("");
+        if (subject.isEmpty()) {
+            return invalid("it has no subject");
+        }
+        final JsonNode expiration = claims.path("exp");
+        if (!expiration.isNumber()) {
+            return invalid("it has no expiration time");
+        }
+        final long validUntilMillis = expiration.asLong() * 1000L + CLOCK_SKEW_MILLIS;
+        if (nowMillis >= validUntilMillis) {
+            return invalid("it has expired");
+        }
+        final JsonNode notBefore = claims.path("nbf");
+        if (notBefore.isNumber() && nowMillis < notBefore.asLong() * 1000L - CLOCK_SKEW_MILLIS) {
+            return invalid("it is not valid yet");
+        }
+        if (audience != null && !containsText(claims.path("aud"), audience)) {
+            return invalid("it has not been issued for audience " + audience);
+        }
+
+        return new SignedIdentity(subject,
+                                  textOrNull(claims.path("name")),
+                                  textOrNull(claims.path("email")),
+                                  groups(claims.path("groups")),
+                                  validUntilMillis);
+    }
+
+    private static boolean containsText(JsonNode node, String text) {
+        if (node.isArray()) {
+            for (JsonNode element : node) {
+                if (text.equals(element.asText())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return text.equals(node.asText());
+    }
+
+    @Nullable
+    private static String textOrNull(JsonNode node) {
+        return node.isTextual() && !node.asText().isEmpty() ? node.asText() : null;
+    }
+
+    private static Set<String> groups(JsonNode node) {
+        if (node.isTextual()) {
+            final Set<String> groups = new HashSet<>();
+            SsoHeaders.splitCsv(node.asText(), groups);
+            return ImmutableSet.copyOf(groups);
+        }
+        if (!node.isArray()) {
+            return ImmutableSet.of();
+        }
+        final ImmutableSet.Builder<String> groups = ImmutableSet.builder();
+        for (JsonNode element : node) {
+            if (element.isTextual() && !element.asText().isEmpty()) {
+                groups.add(element.asText());
+            }
+        }
+        return groups.build();
+    }
+
+    @Nullable
+    private static SignedIdentity invalid(String reason) {
+        LOG.debug("Rejecting signed token because {}", reason);
+        return null;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+/**
+ * Rejected requests of one source address on this node, see {@link RejectionTracker}.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class SourceRejections {
+    @JsonProperty("source")
+    public abstract String source();
+
+    @JsonProperty("untrusted_proxy")
+    public abstract long untrustedProxy();
+
+    @JsonProperty("invalid_token")
+    public abstract long invalidToken();
+
+    @JsonProperty("unknown_user")
+    public abstract long unknownUser();
+
+    @JsonProperty("total")
+    public long total() {
+        return untrustedProxy() + invalidToken() + unknownUser();
+    }
+
+    public static SourceRejections create(String source, long untrustedProxy, long invalidToken, long unknownUser) {
+        return new AutoValue_SourceRejections(source, untrustedProxy, invalidToken, unknownUser);
+    }
+}
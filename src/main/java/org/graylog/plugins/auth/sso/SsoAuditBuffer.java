@@ -0,0 +1,239 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.graylog.plugins.auth.sso.audit.SsoAuthAuditEventTypes;
+import org.graylog2.audit.AuditActor;
+import org.graylog2.audit.AuditEventSender;
+import org.graylog2.plugin.system.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer of the realm's audit events, which are sent in batches by a background thread.
+ * <p>
+ * Login rejections are coalesced by the {@link RejectionTracker} before they get here, so a client retrying in a
+ * loop only produces one event per source and reason every few seconds. Everything still pending is sent on
+ * shutdown.
+ * <p>
+ * Recording an event never blocks: if the buffer is full or the service is not running, the event is dropped and
+ * counted in {@code audit.dropped}.
+ */
+@Singleton
+public class SsoAuditBuffer extends AbstractExecutionThreadService {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoAuditBuffer.class);
+
+    static final int CAPACITY = 10_000;
+    static final int BATCH_SIZE = 500;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final AuditEventSender auditEventSender;
+    private final NodeId nodeId;
+    private final SsoAuthMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // guarded by lock
+    private final ArrayDeque<PendingEvent> pending = new ArrayDeque<>();
+    // guarded by lock, so no event can slip in after the final flush
+    private boolean accepting = false;
+
+    @Inject
+    public SsoAuditBuffer(AuditEventSender auditEventSender, NodeId nodeId, SsoAuthMetrics metrics) {
+        this.auditEventSender = auditEventSender;
+        this.nodeId = nodeId;
+        this.metrics = metrics;
+        metrics.registerGauge("audit.queueDepth", (Gauge<Integer>) this::size);
+    }
+
+    public void userCreated(String username, String remoteAddress) {
+        add(new PendingEvent(SsoAuthAuditEventTypes.USER_CREATE, true, username,
+                             ImmutableMap.<String, Object>of("remote_address", remoteAddress)));
+    }
+
+    public void rolesSynced(String username, @Nullable Set<String> previousRoleIds, Set<String> roleIds) {
+        add(new PendingEvent(SsoAuthAuditEventTypes.USER_ROLES_UPDATE, true, username,
+                             ImmutableMap.<String, Object>of("previous_role_ids", previousRoleIds == null ? ImmutableSet.of() : ImmutableSet.copyOf(previousRoleIds),
+                                             "role_ids", ImmutableSet.copyOf(roleIds))));
+    }
+
+    /**
+     * @param username           the claimed user name, {@code null} if it is not known
+     * @param previousRejections the number of rejections of the same user, reason and source which were not
+     *                           audited since the last event, as returned by
+     *                           {@link RejectionTracker#record(String, RejectionTracker.Reason, String)}
+     */
+    public void loginRejected(@Nullable String username,
+                              String remoteAddress,
+                              RejectionTracker.Reason reason,
+                              long previousRejections) {
+        final String reasonName = reason.name().toLowerCase(Locale.ENGLISH);
+        final Map<String, Object> context = previousRejections > 0
+                ? ImmutableMap.<String, Object>of("remote_address", remoteAddress, "reason", reasonName, "previous_rejections", previousRejections)
+                : ImmutableMap.<String, Object>of("remote_address", remoteAddress, "reason", reasonName);
+        add(new PendingEvent(SsoAuthAuditEventTypes.LOGIN_REJECT, false, username, context));
+    }
+
+    private void add(PendingEvent event) {
+        lock.lock();
+        try {
+            if (!accepting || pending.size() >= CAPACITY) {
+                metrics.auditDropped().inc();
+                return;
+            }
+            pending.add(event);
+            if (pending.size() == 1) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        lock.lock();
+        try {
+            accepting = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void run() throws Exception {
+        while (isRunning()) {
+            final List<PendingEvent> batch = takeBatch();
+            send(batch);
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        lock.lock();
+        try {
+            accepting = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        // no new events are accepted anymore, send everything left
+        while (true) {
+            final List<PendingEvent> batch = new ArrayList<>();
+            lock.lock();
+            try {
+                drainTo(batch);
+            } finally {
+                lock.unlock();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            send(batch);
+        }
+    }
+
+    /**
+     * Waits for and removes up to {@link #BATCH_SIZE} events.
+     *
+     * @return the events, empty if the service is stopping
+     */
+    private List<PendingEvent> takeBatch() throws InterruptedException {
+        final List<PendingEvent> batch = new ArrayList<>();
+        lock.lock();
+        try {
+            while (isRunning() && pending.isEmpty()) {
+                changed.awaitNanos(IDLE_WAIT_NANOS);
+            }
+            drainTo(batch);
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    // must hold lock
+    private void drainTo(List<PendingEvent> batch) {
+        while (!pending.isEmpty() && batch.size() < BATCH_SIZE) {
+            batch.add(pending.poll());
+        }
+    }
+
+    private void send(List<PendingEvent> batch) {
+        for (PendingEvent event : batch) {
+            final AuditActor actor = event.username != null ? AuditActor.user(event.username) : AuditActor.system(nodeId);
+            try {
+                if (event.success) {
+                    auditEventSender.success(actor, event.type, event.context);
+                } else {
+                    auditEventSender.failure(actor, event.type, event.context);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Could not send audit event {} of user {}", event.type, event.username, e);
+            }
+        }
+    }
+
+    @Override
+    protected String serviceName() {
+        return "SSO audit event buffer";
+    }
+
+    private static class PendingEvent {
+        private final String type;
+        private final boolean success;
+        private final String username;
+        private final Map<String, Object> context;
+
+        PendingEvent(String type, boolean success, @Nullable String username, Map<String, Object> context) {
+            this.type = type;
+            this.success = success;
+            this.username = username;
+            this.context = context;
+        }
+    }
+}
@@ -20,14 +20,50 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 
 import javax.annotation.Nullable;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @AutoValue
 @JsonDeserialize(builder = AutoValue_SsoAuthConfig.Builder.class)
 @JsonAutoDetect
 public abstract class SsoAuthConfig {
+    private static final long DEFAULT_AUTH_CACHE_MAX_SIZE = 0L;
+    private static final long DEFAULT_AUTH_CACHE_TTL_SECONDS = 60L;
+    private static final long DEFAULT_LDAP_SYNC_INTERVAL_SECONDS = 0L;
+    private static final long DEFAULT_UNKNOWN_USER_CACHE_TTL_SECONDS = 30L;
+    private static final long DEFAULT_SIGNED_TOKEN_CACHE_SIZE = 10_000L;
+    private static final long DEFAULT_SESSION_REUSE_SECONDS = TimeUnit.HOURS.toSeconds(8);
+    private static final long DEFAULT_WARM_UP_MAX_USERS = 10_000L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_MILLIS = 2_000L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE = 80L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30L;
+    private static final long DEFAULT_WARM_UP_TIMEOUT_SECONDS = 30L;
+
+    public enum SessionPolicy {
+        /**
+         * Request a session for every authenticated request. Clients which do not send the session cookie
+         * back create a new session with every request.
+         */
+        @JsonProperty("always") ALWAYS,
+        /**
+         * Only request sessions for web browsers, all other clients are authenticated on every request
+         * without a session.
+         */
+        @JsonProperty("browser_only") BROWSER_ONLY,
+        /**
+         * Request sessions for web browsers, and for all other clients only for the first request per user and
+         * header fingerprint within the reuse period. Clients which send the session cookie back keep using that
+         * session. For clients which do not, the session of the first request is left unused, but only one per
+         * reuse period instead of one per request, and all further requests are authenticated without a session.
+         */
+        @JsonProperty("per_fingerprint") PER_FINGERPRINT
+    }
 
     public static Builder builder() {
         return new AutoValue_SsoAuthConfig.Builder();
@@ -81,7 +117,201 @@ public abstract class SsoAuthConfig {
     @JsonProperty("roles_header")
     @Nullable
     public abstract String rolesHeader();
-    
+
+    /**
+     * Rules mapping the groups of the roles header or signed token to role names, applied before the role names
+     * are resolved. Without rules the groups are taken as role names.
+     */
+    @JsonProperty("role_mapping_rules")
+    public abstract List<RoleMappingRule> roleMappingRules();
+
+    /**
+     * Whether groups not matched by any of the {@link #roleMappingRules()} are taken as role names as they are.
+     */
+    @JsonProperty("role_mapping_passthrough")
+    public abstract boolean roleMappingPassthrough();
+
+    /**
+     * Header configurations for requests from specific proxy subnets. Requests from other addresses use the
+     * headers of this config and are subject to {@link #requireTrustedProxies()}.
+     */
+    @JsonProperty("header_profiles")
+    public abstract List<SsoHeaderProfile> headerProfiles();
+
+    /**
+     * HTTP header containing a signed identity token (compact JWT). If set, the user name, full name, email
+     * and roles are only taken from verified tokens and the plain headers are ignored.
+     */
+    @JsonProperty("signed_token_header")
+    @Nullable
+    public abstract String signedTokenHeader();
+
+    /**
+     * Base64 encoded secret to verify HS256, HS384 and HS512 signed tokens.
+     */
+    @JsonProperty("signed_token_hmac_secret")
+    @Nullable
+    public abstract String signedTokenHmacSecret();
+
+    /**
+     * PEM or Base64 encoded X.509 RSA public key to verify RS256, RS384 and RS512 signed tokens.
+     */
+    @JsonProperty("signed_token_public_key")
+    @Nullable
+    public abstract String signedTokenPublicKey();
+
+    /**
+     * Audience which has to be present in the {@code aud} claim of signed tokens, if set.
+     */
+    @JsonProperty("signed_token_audience")
+    @Nullable
+    public abstract String signedTokenAudience();
+
+    /**
+     * Maximum number of verified signed tokens to cache, {@code 0} verifies every request.
+     */
+    @JsonProperty("signed_token_cache_size")
+    public abstract long signedTokenCacheSize();
+
+    /**
+     * Maximum number of authenticated principals to cache, {@code 0} disables the cache.
+     */
+    @JsonProperty("auth_cache_max_size")
+    public abstract long authCacheMaxSize();
+
+    @JsonProperty("auth_cache_ttl_seconds")
+    public abstract long authCacheTtlSeconds();
+
+    /**
+     * Minimum number of seconds between two LDAP synchronizations of the same user, {@code 0} syncs on every request.
+     */
+    @JsonProperty("ldap_sync_interval_seconds")
+    public abstract long ldapSyncIntervalSeconds();
+
+    /**
+     * Maximum number of milliseconds a request waits for an LDAP sync, after which it continues with the stored user
+     * while the sync finishes in the background. {@code 0} syncs on the request thread without a deadline.
+     */
+    @JsonProperty("ldap_sync_timeout_millis")
+    public abstract long ldapSyncTimeoutMillis();
+
+    /**
+     * Number of seconds to remember rejected unknown users if automatic user creation is disabled, {@code 0} disables it.
+     */
+    @JsonProperty("unknown_user_cache_ttl_seconds")
+    public abstract long unknownUserCacheTtlSeconds();
+
+    /**
+     * Maximum number of each expensive operation (LDAP syncs, user creations and role writes) per second across all
+     * proxies, {@code 0} disables the limit. Every operation has a bucket of its own, so one operation cannot starve
+     * the others, and {@link #admissionLimits()} can replace the limits of an operation.
+     */
+    @JsonProperty("admission_global_rate")
+    public abstract long admissionGlobalRate();
+
+    /**
+     * Number of each expensive operation which may be started at once across all proxies, {@code 0} allows one second worth of operations.
+     */
+    @JsonProperty("admission_global_burst")
+    public abstract long admissionGlobalBurst();
+
+    /**
+     * Maximum number of each expensive operation per second and source proxy address, {@code 0} disables the limit.
+     */
+    @JsonProperty("admission_proxy_rate")
+    public abstract long admissionProxyRate();
+
+    /**
+     * Number of each expensive operation which may be started at once per source proxy address, {@code 0} allows one second worth of operations.
+     */
+    @JsonProperty("admission_proxy_burst")
+    public abstract long admissionProxyBurst();
+
+    /**
+     * Limits of individual operations, which replace the admission limits above for these operations.
+     */
+    @JsonProperty("admission_limits")
+    public abstract List<AdmissionLimit> admissionLimits();
+
+    @JsonProperty("session_policy")
+    public abstract SessionPolicy sessionPolicy();
+
+    /**
+     * Time in which only the first request of the same user and header fingerprint requests a session, for clients
+     * other than web browsers with {@link SessionPolicy#PER_FINGERPRINT}.
+     */
+    @JsonProperty("session_reuse_seconds")
+    public abstract long sessionReuseSeconds();
+
+    /**
+     * Whether role changes are written to the database by a background writer instead of the request thread.
+     * New users are always created synchronously.
+     */
+    @JsonProperty("write_behind")
+    public abstract boolean writeBehind();
+
+    /**
+     * Whether LDAP and MongoDB calls of the realm are guarded by circuit breakers, which skip a failing dependency
+     * until a background probe succeeds.
+     */
+    @JsonProperty("circuit_breaker")
+    public abstract boolean circuitBreaker();
+
+    /**
+     * Number of recent calls the failure and slow call rates of a circuit breaker are computed from.
+     */
+    @JsonProperty("circuit_breaker_window_size")
+    public abstract long circuitBreakerWindowSize();
+
+    /**
+     * Percentage of failed calls which opens a circuit breaker, {@code 0} disables the check.
+     */
+    @JsonProperty("circuit_breaker_failure_rate")
+    public abstract long circuitBreakerFailureRate();
+
+    /**
+     * Duration from which on a call counts as slow, {@code 0} disables the slow call check.
+     */
+    @JsonProperty("circuit_breaker_slow_call_millis")
+    public abstract long circuitBreakerSlowCallMillis();
+
+    /**
+     * Percentage of slow calls which opens a circuit breaker, {@code 0} disables the check.
+     */
+    @JsonProperty("circuit_breaker_slow_call_rate")
+    public abstract long circuitBreakerSlowCallRate();
+
+    /**
+     * Number of seconds an open circuit breaker waits before probing the dependency.
+     */
+    @JsonProperty("circuit_breaker_open_seconds")
+    public abstract long circuitBreakerOpenSeconds();
+
+    /**
+     * Whether to load the role names and the most recent external users when the node starts, before it reports
+     * itself as ready.
+     */
+    @JsonProperty("warm_up")
+    public abstract boolean warmUp();
+
+    /**
+     * Maximum number of external users to load during warm-up, which bounds its memory use.
+     */
+    @JsonProperty("warm_up_max_users")
+    public abstract long warmUpMaxUsers();
+
+    /**
+     * Maximum number of seconds the warm-up may delay the startup of the node.
+     */
+    @JsonProperty("warm_up_timeout_seconds")
+    public abstract long warmUpTimeoutSeconds();
+
+    /**
+     * Whether to record per-stage timers of the realm, the outcome counters are always recorded.
+     */
+    @JsonProperty("stage_timing")
+    public abstract boolean stageTiming();
+
     @AutoValue.Builder
     public static abstract class Builder {
         abstract SsoAuthConfig autoBuild();
@@ -93,6 +323,87 @@ public abstract class SsoAuthConfig {
                 syncRoles(defaultConfig.syncRoles());
                 rolesHeader(defaultConfig.rolesHeader());
             }
+            if (!roleMappingRules().isPresent()) {
+                roleMappingRules(ImmutableList.of());
+            }
+            if (!roleMappingPassthrough().isPresent()) {
+                roleMappingPassthrough(true);
+            }
+            if (!headerProfiles().isPresent()) {
+                headerProfiles(ImmutableList.of());
+            }
+            if (!signedTokenCacheSize().isPresent()) {
+                signedTokenCacheSize(DEFAULT_SIGNED_TOKEN_CACHE_SIZE);
+            }
+            if (!authCacheMaxSize().isPresent()) {
+                authCacheMaxSize(DEFAULT_AUTH_CACHE_MAX_SIZE);
+            }
+            if (!authCacheTtlSeconds().isPresent()) {
+                authCacheTtlSeconds(DEFAULT_AUTH_CACHE_TTL_SECONDS);
+            }
+            if (!ldapSyncIntervalSeconds().isPresent()) {
+                ldapSyncIntervalSeconds(DEFAULT_LDAP_SYNC_INTERVAL_SECONDS);
+            }
+            if (!ldapSyncTimeoutMillis().isPresent()) {
+                ldapSyncTimeoutMillis(0L);
+            }
+            if (!unknownUserCacheTtlSeconds().isPresent()) {
+                unknownUserCacheTtlSeconds(DEFAULT_UNKNOWN_USER_CACHE_TTL_SECONDS);
+            }
+            if (!admissionGlobalRate().isPresent()) {
+                admissionGlobalRate(0L);
+            }
+            if (!admissionGlobalBurst().isPresent()) {
+                admissionGlobalBurst(0L);
+            }
+            if (!admissionProxyRate().isPresent()) {
+                admissionProxyRate(0L);
+            }
+            if (!admissionProxyBurst().isPresent()) {
+                admissionProxyBurst(0L);
+            }
+            if (!admissionLimits().isPresent()) {
+                admissionLimits(ImmutableList.of());
+            }
+            if (!sessionPolicy().isPresent()) {
+                sessionPolicy(SessionPolicy.ALWAYS);
+            }
+            if (!sessionReuseSeconds().isPresent()) {
+                sessionReuseSeconds(DEFAULT_SESSION_REUSE_SECONDS);
+            }
+            if (!writeBehind().isPresent()) {
+                writeBehind(false);
+            }
+            if (!circuitBreaker().isPresent()) {
+                circuitBreaker(false);
+            }
+            if (!circuitBreakerWindowSize().isPresent()) {
+                circuitBreakerWindowSize(DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+            }
+            if (!circuitBreakerFailureRate().isPresent()) {
+                circuitBreakerFailureRate(DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE);
+            }
+            if (!circuitBreakerSlowCallMillis().isPresent()) {
+                circuitBreakerSlowCallMillis(DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_MILLIS);
+            }
+            if (!circuitBreakerSlowCallRate().isPresent()) {
+                circuitBreakerSlowCallRate(DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+            }
+            if (!circuitBreakerOpenSeconds().isPresent()) {
+                circuitBreakerOpenSeconds(DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+            }
+            if (!warmUp().isPresent()) {
+                warmUp(false);
+            }
+            if (!warmUpMaxUsers().isPresent()) {
+                warmUpMaxUsers(DEFAULT_WARM_UP_MAX_USERS);
+            }
+            if (!warmUpTimeoutSeconds().isPresent()) {
+                warmUpTimeoutSeconds(DEFAULT_WARM_UP_TIMEOUT_SECONDS);
+            }
+            if (!stageTiming().isPresent()) {
+                stageTiming(true);
+            }
             return autoBuild();
         }
 
@@ -127,6 +438,125 @@ public abstract class SsoAuthConfig {
         @JsonProperty("roles_header")
         public abstract Builder rolesHeader(@Nullable String rolesHeader);
 
+        @JsonProperty("role_mapping_rules")
+        public abstract Builder roleMappingRules(List<RoleMappingRule> roleMappingRules);
+        abstract Optional<List<RoleMappingRule>> roleMappingRules();
+
+        @JsonProperty("role_mapping_passthrough")
+        public abstract Builder roleMappingPassthrough(boolean roleMappingPassthrough);
+        abstract Optional<Boolean> roleMappingPassthrough();
+
+        @JsonProperty("header_profiles")
+        public abstract Builder headerProfiles(List<SsoHeaderProfile> headerProfiles);
+        abstract Optional<List<SsoHeaderProfile>> headerProfiles();
+
+        @JsonProperty("signed_token_header")
+        public abstract Builder signedTokenHeader(@Nullable String signedTokenHeader);
+
+        @JsonProperty("signed_token_hmac_secret")
+        public abstract Builder signedTokenHmacSecret(@Nullable String signedTokenHmacSecret);
+
+        @JsonProperty("signed_token_public_key")
+        public abstract Builder signedTokenPublicKey(@Nullable String signedTokenPublicKey);
+
+        @JsonProperty("signed_token_audience")
+        public abstract Builder signedTokenAudience(@Nullable String signedTokenAudience);
+
+        @JsonProperty("signed_token_cache_size")
+        public abstract Builder signedTokenCacheSize(long signedTokenCacheSize);
+        abstract Optional<Long> signedTokenCacheSize();
+
+        @JsonProperty("auth_cache_max_size")
+        public abstract Builder authCacheMaxSize(long authCacheMaxSize);
+        abstract Optional<Long> authCacheMaxSize();
+
+        @JsonProperty("auth_cache_ttl_seconds")
+        public abstract Builder authCacheTtlSeconds(long authCacheTtlSeconds);
+        abstract Optional<Long> authCacheTtlSeconds();
+
+        @JsonProperty("ldap_sync_interval_seconds")
+        public abstract Builder ldapSyncIntervalSeconds(long ldapSyncIntervalSeconds);
+        abstract Optional<Long> ldapSyncIntervalSeconds();
+
+        @JsonProperty("ldap_sync_timeout_millis")
+        public abstract Builder ldapSyncTimeoutMillis(long ldapSyncTimeoutMillis);
+        abstract Optional<Long> ldapSyncTimeoutMillis();
+
+        @JsonProperty("unknown_user_cache_ttl_seconds")
+        public abstract Builder unknownUserCacheTtlSeconds(long unknownUserCacheTtlSeconds);
+        abstract Optional<Long> unknownUserCacheTtlSeconds();
+
+        @JsonProperty("admission_global_rate")
+        public abstract Builder admissionGlobalRate(long admissionGlobalRate);
+        abstract Optional<Long> admissionGlobalRate();
+
+        @JsonProperty("admission_global_burst")
+        public abstract Builder admissionGlobalBurst(long admissionGlobalBurst);
+        abstract Optional<Long> admissionGlobalBurst();
+
+        @JsonProperty("admission_proxy_rate")
+        public abstract Builder admissionProxyRate(long admissionProxyRate);
+        abstract Optional<Long> admissionProxyRate();
+
+        @JsonProperty("admission_proxy_burst")
+        public abstract Builder admissionProxyBurst(long admissionProxyBurst);
+        abstract Optional<Long> admissionProxyBurst();
+
+        @JsonProperty("admission_limits")
+        public abstract Builder admissionLimits(List<AdmissionLimit> admissionLimits);
+        abstract Optional<List<AdmissionLimit>> admissionLimits();
+
+        @JsonProperty("session_policy")
+        public abstract Builder sessionPolicy(SessionPolicy sessionPolicy);
+        abstract Optional<SessionPolicy> sessionPolicy();
+
+        @JsonProperty("session_reuse_seconds")
+        public abstract Builder sessionReuseSeconds(long sessionReuseSeconds);
+        abstract Optional<Long> sessionReuseSeconds();
+
+        @JsonProperty("write_behind")
+        public abstract Builder writeBehind(boolean writeBehind);
+        abstract Optional<Boolean> writeBehind();
+
+        @JsonProperty("circuit_breaker")
+        public abstract Builder circuitBreaker(boolean circuitBreaker);
+        abstract Optional<Boolean> circuitBreaker();
+
+        @JsonProperty("circuit_breaker_window_size")
+        public abstract Builder circuitBreakerWindowSize(long circuitBreakerWindowSize);
+        abstract Optional<Long> circuitBreakerWindowSize();
+
+        @JsonProperty("circuit_breaker_failure_rate")
+        public abstract Builder circuitBreakerFailureRate(long circuitBreakerFailureRate);
+        abstract Optional<Long> circuitBreakerFailureRate();
+
+        @JsonProperty("circuit_breaker_slow_call_millis")
+        public abstract Builder circuitBreakerSlowCallMillis(long circuitBreakerSlowCallMillis);
+        abstract Optional<Long> circuitBreakerSlowCallMillis();
+
+        @JsonProperty("circuit_breaker_slow_call_rate")
+        public abstract Builder circuitBreakerSlowCallRate(long circuitBreakerSlowCallRate);
+        abstract Optional<Long> circuitBreakerSlowCallRate();
+
+        @JsonProperty("circuit_breaker_open_seconds")
+        public abstract Builder circuitBreakerOpenSeconds(long circuitBreakerOpenSeconds);
+        abstract Optional<Long> circuitBreakerOpenSeconds();
+
+        @JsonProperty("warm_up")
+        public abstract Builder warmUp(boolean warmUp);
+        abstract Optional<Boolean> warmUp();
+
+        @JsonProperty("warm_up_max_users")
+        public abstract Builder warmUpMaxUsers(long warmUpMaxUsers);
+        abstract Optional<Long> warmUpMaxUsers();
+
+        @JsonProperty("warm_up_timeout_seconds")
+        public abstract Builder warmUpTimeoutSeconds(long warmUpTimeoutSeconds);
+        abstract Optional<Long> warmUpTimeoutSeconds();
+
+        @JsonProperty("stage_timing")
+        public abstract Builder stageTiming(boolean stageTiming);
+        abstract Optional<Boolean> stageTiming();
 
     }
 }
@@ -0,0 +1,108 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import org.graylog2.cluster.ClusterConfigChangedEvent;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Holds the current {@link CompiledSsoAuthConfig} for this node.
+ * <p>
+ * The snapshot is loaded lazily and swapped atomically whenever the SSO cluster config changes, either
+ * through a {@link ClusterConfigChangedEvent} (written by any node) or by an explicit {@link #reload()}
+ * after a local write. Listeners registered through {@link #addChangeListener(Consumer)} are notified whenever
+ * a reload yields a configuration with a different {@link CompiledSsoAuthConfig#etag() entity tag}.
+ * <p>
+ * Roles can be created, renamed and deleted without a config change, so the config only holds role names. They
+ * are resolved when they are used, which keeps role changes from replacing the config and emptying every cache
+ * kept per config.
+ */
+@Singleton
+public class SsoAuthConfigProvider {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoAuthConfigProvider.class);
+
+    private final ClusterConfigService clusterConfigService;
+    private final SsoAuthMetrics metrics;
+    private final AtomicReference<CompiledSsoAuthConfig> current = new AtomicReference<>();
+    private final Set<Consumer<CompiledSsoAuthConfig>> changeListeners = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    public SsoAuthConfigProvider(ClusterConfigService clusterConfigService,
+                                 SsoAuthMetrics metrics,
+                                 EventBus serverEventBus) {
+        this.clusterConfigService = clusterConfigService;
+        this.metrics = metrics;
+        serverEventBus.register(this);
+    }
+
+    public CompiledSsoAuthConfig get() {
+        final CompiledSsoAuthConfig config = current.get();
+        return config == null ? reload() : config;
+    }
+
+    public CompiledSsoAuthConfig reload() {
+        final CompiledSsoAuthConfig previous;
+        final CompiledSsoAuthConfig compiled;
+        synchronized (this) {
+            final long start = metrics.configResolution().start();
+            final SsoAuthConfig config = clusterConfigService.getOrDefault(SsoAuthConfig.class,
+                                                                           SsoAuthConfig.defaultConfig(""));
+            compiled = CompiledSsoAuthConfig.compile(config);
+            previous = current.getAndSet(compiled);
+            metrics.configResolution().stop(start);
+            metrics.setStageTiming(compiled.stageTiming());
+            LOG.debug("Loaded SSO authenticator config {}", config);
+        }
+        if (previous != null && !previous.etag().equals(compiled.etag())) {
+            for (Consumer<CompiledSsoAuthConfig> listener : changeListeners) {
+                listener.accept(compiled);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Registers a listener which is called with the new configuration after every change. Listeners are called
+     * on the thread which reloaded the configuration and must not block.
+     */
+    public void addChangeListener(Consumer<CompiledSsoAuthConfig> listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Consumer<CompiledSsoAuthConfig> listener) {
+        changeListeners.remove(listener);
+    }
+
+    @Subscribe
+    @SuppressWarnings("unused")
+    public void handleClusterConfigChanged(ClusterConfigChangedEvent event) {
+        if (SsoAuthConfig.class.getCanonicalName().equals(event.type())) {
+            reload();
+        }
+    }
+}
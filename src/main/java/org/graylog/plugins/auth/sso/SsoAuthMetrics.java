@@ -0,0 +1,341 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Metrics of the SSO realm, registered in Graylog's metric registry below {@code org.graylog.plugins.auth.sso}.
+ * <p>
+ * Outcome counters are always updated. The per-stage timers are only updated while stage timing is enabled in
+ * the SSO config, otherwise {@link Stage#start()} returns without reading the clock.
+ */
+@Singleton
+public class SsoAuthMetrics {
+    private static final String PREFIX = name(SsoAuthRealm.class);
+
+    private final MetricRegistry metricRegistry;
+
+    private final Stage configResolution;
+    private final Stage trustedProxyCheck;
+    private final Stage ldapSync;
+    private final Stage userLoad;
+    private final Stage autoCreate;
+    private final Stage roleResolution;
+    private final Stage userSave;
+    private final Stage tokenVerification;
+
+    private final Counter authenticated;
+    private final Counter noHeader;
+    private final Counter untrustedProxy;
+    private final Counter unknownUser;
+    private final Counter validationFailure;
+    private final Counter invalidToken;
+    private final Counter ldapSyncTimeouts;
+    private final Counter ldapSyncRejected;
+    private final Counter ldapCircuitOpen;
+    private final Counter mongoCircuitOpen;
+    private final Map<AdmissionController.Operation, Counter> admissionRejected = new EnumMap<>(AdmissionController.Operation.class);
+
+    private final Meter sessionsCreated;
+    private final Meter sessionsSkipped;
+
+    private final Histogram writeBehindBatchSize;
+    private final Timer writeBehindWriteTime;
+    private final Counter writeBehindRetried;
+    private final Counter writeBehindFailed;
+    private final Counter writeBehindRejected;
+    private final Counter auditDropped;
+    private final Counter roleSyncSkipped;
+
+    private final ConcurrentMap<String, ProfileMetrics> profiles = new ConcurrentHashMap<>();
+
+    private volatile boolean stageTiming = true;
+
+    @Inject
+    public SsoAuthMetrics(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+
+        this.configResolution = new Stage(metricRegistry.timer(name(PREFIX, "configResolutionTime")));
+        this.trustedProxyCheck = new Stage(metricRegistry.timer(name(PREFIX, "trustedProxyCheckTime")));
+        this.ldapSync = new Stage(metricRegistry.timer(name(PREFIX, "ldapSyncTime")));
+        this.userLoad = new Stage(metricRegistry.timer(name(PREFIX, "userLoadTime")));
+        this.autoCreate = new Stage(metricRegistry.timer(name(PREFIX, "autoCreateTime")));
+        this.roleResolution = new Stage(metricRegistry.timer(name(PREFIX, "roleResolutionTime")));
+        this.userSave = new Stage(metricRegistry.timer(name(PREFIX, "userSaveTime")));
+        this.tokenVerification = new Stage(metricRegistry.timer(name(PREFIX, "tokenVerificationTime")));
+
+        this.authenticated = metricRegistry.counter(name(PREFIX, "authenticated"));
+        this.noHeader = metricRegistry.counter(name(PREFIX, "noHeader"));
+        this.untrustedProxy = metricRegistry.counter(name(PREFIX, "untrustedProxy"));
+        this.unknownUser = metricRegistry.counter(name(PREFIX, "unknownUser"));
+        this.validationFailure = metricRegistry.counter(name(PREFIX, "validationFailure"));
+        this.invalidToken = metricRegistry.counter(name(PREFIX, "invalidToken"));
+        this.ldapSyncTimeouts = metricRegistry.counter(name(PREFIX, "ldapSync", "timeouts"));
+        this.ldapSyncRejected = metricRegistry.counter(name(PREFIX, "ldapSync", "rejected"));
+        this.ldapCircuitOpen = metricRegistry.counter(name(PREFIX, "circuitBreaker", "ldap", "rejected"));
+        this.mongoCircuitOpen = metricRegistry.counter(name(PREFIX, "circuitBreaker", "mongodb", "rejected"));
+        for (AdmissionController.Operation operation : AdmissionController.Operation.values()) {
+            admissionRejected.put(operation, metricRegistry.counter(name(PREFIX, "admissionRejected", operation.metricName())));
+        }
+
+        this.sessionsCreated = metricRegistry.meter(name(PREFIX, "sessionsCreated"));
+        this.sessionsSkipped = metricRegistry.meter(name(PREFIX, "sessionsSkipped"));
+
+        this.writeBehindBatchSize = metricRegistry.histogram(name(PREFIX, "writeBehind", "batchSize"));
+        this.writeBehindWriteTime = metricRegistry.timer(name(PREFIX, "writeBehind", "writeTime"));
+        this.writeBehindRetried = metricRegistry.counter(name(PREFIX, "writeBehind", "retried"));
+        this.writeBehindFailed = metricRegistry.counter(name(PREFIX, "writeBehind", "failed"));
+        this.writeBehindRejected = metricRegistry.counter(name(PREFIX, "writeBehind", "rejected"));
+        this.auditDropped = metricRegistry.counter(name(PREFIX, "audit", "dropped"));
+        this.roleSyncSkipped = metricRegistry.counter(name(PREFIX, "roleSync", "skipped"));
+    }
+
+    /**
+     * Registers a gauge below the SSO metrics prefix, replacing an existing gauge of the same name.
+     */
+    public <T> void registerGauge(String metricName, Gauge<T> gauge) {
+        final String fullName = name(PREFIX, metricName);
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, gauge);
+    }
+
+    public MetricRegistry registry() {
+        return metricRegistry;
+    }
+
+    public void setStageTiming(boolean stageTiming) {
+        this.stageTiming = stageTiming;
+    }
+
+    public Stage configResolution() {
+        return configResolution;
+    }
+
+    public Stage trustedProxyCheck() {
+        return trustedProxyCheck;
+    }
+
+    public Stage ldapSync() {
+        return ldapSync;
+    }
+
+    public Stage userLoad() {
+        return userLoad;
+    }
+
+    public Stage autoCreate() {
+        return autoCreate;
+    }
+
+    public Stage roleResolution() {
+        return roleResolution;
+    }
+
+    public Stage userSave() {
+        return userSave;
+    }
+
+    public Stage tokenVerification() {
+        return tokenVerification;
+    }
+
+    public Counter authenticated() {
+        return authenticated;
+    }
+
+    public Counter noHeader() {
+        return noHeader;
+    }
+
+    public Counter untrustedProxy() {
+        return untrustedProxy;
+    }
+
+    public Counter unknownUser() {
+        return unknownUser;
+    }
+
+    public Counter validationFailure() {
+        return validationFailure;
+    }
+
+    public Counter invalidToken() {
+        return invalidToken;
+    }
+
+    /**
+     * LDAP syncs which did not finish before the deadline, the request continued with the stored user.
+     */
+    public Counter ldapSyncTimeouts() {
+        return ldapSyncTimeouts;
+    }
+
+    /**
+     * LDAP syncs not started because the sync executor was saturated, the request continued with the stored user.
+     */
+    public Counter ldapSyncRejected() {
+        return ldapSyncRejected;
+    }
+
+    /**
+     * LDAP syncs skipped because the LDAP circuit breaker was open, the request continued with the stored user.
+     */
+    public Counter ldapCircuitOpen() {
+        return ldapCircuitOpen;
+    }
+
+    /**
+     * Requests rejected without loading the user because the MongoDB circuit breaker was open.
+     */
+    public Counter mongoCircuitOpen() {
+        return mongoCircuitOpen;
+    }
+
+    public Counter admissionRejected(AdmissionController.Operation operation) {
+        return admissionRejected.get(operation);
+    }
+
+    /**
+     * Authenticated requests for which the realm asked Graylog to create a session.
+     */
+    public Meter sessionsCreated() {
+        return sessionsCreated;
+    }
+
+    /**
+     * Authenticated requests which were handled without creating a session because of the session policy.
+     */
+    public Meter sessionsSkipped() {
+        return sessionsSkipped;
+    }
+
+    public Histogram writeBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * Always updated, the writes happen off the request path.
+     */
+    public Timer writeBehindWriteTime() {
+        return writeBehindWriteTime;
+    }
+
+    public Counter writeBehindRetried() {
+        return writeBehindRetried;
+    }
+
+    /**
+     * Writes given up after all retries.
+     */
+    public Counter writeBehindFailed() {
+        return writeBehindFailed;
+    }
+
+    /**
+     * Writes not accepted by the queue, which were done synchronously instead.
+     */
+    public Counter writeBehindRejected() {
+        return writeBehindRejected;
+    }
+
+    /**
+     * Role syncs skipped because the roles fingerprint stored with the user matched the request.
+     */
+    public Counter roleSyncSkipped() {
+        return roleSyncSkipped;
+    }
+
+    /**
+     * Audit events not sent because the audit buffer was full or not running.
+     */
+    public Counter auditDropped() {
+        return auditDropped;
+    }
+
+    /**
+     * Metrics of the header profile with the given name, registered below {@code profiles.<name>}.
+     */
+    public ProfileMetrics profile(String profileName) {
+        final ProfileMetrics profileMetrics = profiles.get(profileName);
+        if (profileMetrics != null) {
+            return profileMetrics;
+        }
+        return profiles.computeIfAbsent(profileName, ProfileMetrics::new);
+    }
+
+    public class ProfileMetrics {
+        private final Meter requests;
+        private final Counter authenticated;
+
+        private ProfileMetrics(String profileName) {
+            this.requests = metricRegistry.meter(name(PREFIX, "profiles", profileName, "requests"));
+            this.authenticated = metricRegistry.counter(name(PREFIX, "profiles", profileName, "authenticated"));
+        }
+
+        /**
+         * All requests from the subnets of the profile, authenticated or not.
+         */
+        public Meter requests() {
+            return requests;
+        }
+
+        public Counter authenticated() {
+            return authenticated;
+        }
+    }
+
+    public class Stage {
+        private final Timer timer;
+
+        private Stage(Timer timer) {
+            this.timer = timer;
+        }
+
+        /**
+         * @return the start time to pass to {@link #stop(long)}, or {@code 0} if stage timing is disabled
+         */
+        public long start() {
+            return stageTiming ? System.nanoTime() : 0L;
+        }
+
+        public void stop(long start) {
+            if (start != 0L) {
+                timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        public Timer timer() {
+            return timer;
+        }
+    }
+}
@@ -29,7 +29,13 @@ public class SsoAuthModule extends PluginModule {
     protected void configure() {
         authenticationRealmBinder().addBinding(SsoAuthRealm.NAME).to(SsoAuthRealm.class).in(Scopes.SINGLETON);
         addRestResource(SsoConfigResource.class);
+        addRestResource(SsoUserImportResource.class);
+        addRestResource(SsoRejectionsResource.class);
         addPermissions(SsoAuthPermissions.class);
         addAuditEventTypes(SsoAuthAuditEventTypes.class);
+        serviceBinder().addBinding().to(UserWriteBehindQueue.class);
+        serviceBinder().addBinding().to(LdapSyncScheduler.class);
+        serviceBinder().addBinding().to(SsoCacheWarmer.class);
+        serviceBinder().addBinding().to(SsoAuditBuffer.class);
     }
 }
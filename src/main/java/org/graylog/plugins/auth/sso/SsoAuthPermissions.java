@@ -29,10 +29,12 @@ public class SsoAuthPermissions implements PluginPermissions {
 
     public static final String CONFIG_READ = "ssoauthconfig:read";
     public static final String CONFIG_UPDATE = "ssoauthconfig:edit";
+    public static final String USERS_IMPORT = "ssoauthusers:import";
 
     private final ImmutableSet<Permission> permissions = ImmutableSet.of(
             create(CONFIG_READ, "Read SSO authenticator config"),
-            create(CONFIG_UPDATE, "Update SSO authenticator config")
+            create(CONFIG_UPDATE, "Update SSO authenticator config"),
+            create(USERS_IMPORT, "Import SSO users")
     );
 
     @Override
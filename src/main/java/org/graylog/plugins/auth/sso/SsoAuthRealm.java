@@ -16,24 +16,26 @@
  */
 package org.graylog.plugins.auth.sso;
 
+import com.codahale.metrics.Gauge;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.SimpleAccount;
 import org.apache.shiro.authc.credential.AllowAllCredentialsMatcher;
 import org.apache.shiro.realm.AuthenticatingRealm;
-import org.graylog2.database.NotFoundException;
-import org.graylog2.plugin.cluster.ClusterConfigService;
 import org.graylog2.plugin.database.ValidationException;
 import org.graylog2.plugin.database.users.User;
-import org.graylog2.security.realm.LdapUserAuthenticator;
 import org.graylog2.shared.security.HttpHeadersToken;
 import org.graylog2.shared.security.ShiroSecurityContext;
-import org.graylog2.shared.users.Role;
 import org.graylog2.shared.users.UserService;
-import org.graylog2.users.RoleService;
 import org.graylog2.utilities.IpSubnet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,40 +44,84 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.ws.rs.core.MultivaluedMap;
-import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
 
 public class SsoAuthRealm extends AuthenticatingRealm {
     private static final Logger LOG = LoggerFactory.getLogger(SsoAuthRealm.class);
+    private static final HashFunction FINGERPRINT_HASH = Hashing.murmur3_128();
 
     public static final String NAME = "sso";
 
-    private final LdapUserAuthenticator ldapAuthenticator;
+    private final LdapUserSync ldapUserSync;
 
     private final UserService userService;
-    private final ClusterConfigService clusterConfigService;
-    private final RoleService roleService;
-    private final Set<IpSubnet> trustedProxies;
+    private final SsoAuthConfigProvider configProvider;
+    private final RoleNameResolver roleNameResolver;
+    private final String trustedProxiesDescription;
+    private final SubnetMatcher<Boolean> trustedProxyMatcher;
+    private final SsoAuthenticationCache authenticationCache;
+    private final UnknownUserCache unknownUserCache;
+    private final AdmissionController admissionController;
+    private final SignedTokenCache signedTokenCache;
+    private final SsoUserFactory userFactory;
+    private final UserFieldUpdater userFieldUpdater;
+    private final UserWriteBehindQueue writeBehindQueue;
+    private final SessionTracker sessionTracker;
+    private final SsoCircuitBreakers circuitBreakers;
+    private final RejectionTracker rejectionTracker;
+    private final SsoAuditBuffer auditBuffer;
+    private final SsoAuthMetrics metrics;
+    private final Striped<Lock> userCreationLocks = Striped.lock(64);
 
     @Inject
     public SsoAuthRealm(UserService userService,
-                        ClusterConfigService clusterConfigService,
-                        RoleService roleService,
-                        LdapUserAuthenticator ldapAuthenticator,
-                        @Named("trusted_proxies") Set<IpSubnet> trustedProxies) {
+                        SsoAuthConfigProvider configProvider,
+                        RoleNameResolver roleNameResolver,
+                        LdapUserSync ldapUserSync,
+                        @Named("trusted_proxies") Set<IpSubnet> trustedProxies,
+                        SsoUserFactory userFactory,
+                        UserFieldUpdater userFieldUpdater,
+                        UserWriteBehindQueue writeBehindQueue,
+                        SsoAuthRealmContext context,
+                        SsoAuthMetrics metrics) {
         this.userService = userService;
-        this.clusterConfigService = clusterConfigService;
-        this.roleService = roleService;
-        this.trustedProxies = trustedProxies;
-        this.ldapAuthenticator = ldapAuthenticator;
+        this.configProvider = configProvider;
+        this.roleNameResolver = roleNameResolver;
+        // rendered once, the untrusted proxy path must stay cheap
+        this.trustedProxiesDescription = Joiner.on(", ").join(trustedProxies);
+        this.trustedProxyMatcher = SubnetMatcher.of(trustedProxies);
+        this.ldapUserSync = ldapUserSync;
+        this.userFactory = userFactory;
+        this.userFieldUpdater = userFieldUpdater;
+        this.writeBehindQueue = writeBehindQueue;
+        this.authenticationCache = context.authenticationCache();
+        this.unknownUserCache = context.unknownUserCache();
+        this.admissionController = context.admissionController();
+        this.signedTokenCache = context.signedTokenCache();
+        this.sessionTracker = context.sessionTracker();
+        this.circuitBreakers = context.circuitBreakers();
+        this.rejectionTracker = context.rejectionTracker();
+        this.auditBuffer = context.auditBuffer();
+        this.metrics = metrics;
         setAuthenticationTokenClass(HttpHeadersToken.class);
         setCredentialsMatcher(new AllowAllCredentialsMatcher());
+        // Shiro's authentication cache is keyed by the token, which never matches for header tokens.
+        // We use our own cache keyed by user name and header fingerprint instead.
         setCachingEnabled(false);
+
+        metrics.registerGauge("authCache.hits", (Gauge<Long>) () -> authenticationCache.stats().hitCount());
+        metrics.registerGauge("authCache.misses", (Gauge<Long>) () -> authenticationCache.stats().missCount());
+        metrics.registerGauge("authCache.evictions", (Gauge<Long>) () -> authenticationCache.stats().evictionCount());
+        metrics.registerGauge("signedTokenCache.hits", (Gauge<Long>) () -> signedTokenCache.stats().hitCount());
+        metrics.registerGauge("signedTokenCache.misses", (Gauge<Long>) () -> signedTokenCache.stats().missCount());
+        metrics.registerGauge("unknownUserCache.hits", (Gauge<Long>) () -> unknownUserCache.stats().hitCount());
+        metrics.registerGauge("unknownUserCache.misses", (Gauge<Long>) () -> unknownUserCache.stats().missCount());
+        metrics.registerGauge("unknownUserCache.hitRate", (Gauge<Double>) () -> unknownUserCache.stats().hitRate());
+        metrics.registerGauge("sessionTracker.size", (Gauge<Long>) sessionTracker::size);
     }
 
     @Override
@@ -83,173 +129,458 @@ public class SsoAuthRealm extends AuthenticatingRealm {
         HttpHeadersToken headersToken = (HttpHeadersToken) token;
         final MultivaluedMap<String, String> requestHeaders = headersToken.getHeaders();
 
-        final SsoAuthConfig config = clusterConfigService.getOrDefault(
-                SsoAuthConfig.class,
-                SsoAuthConfig.defaultConfig(""));
+        // parsed once for both the header profile and the trusted proxy check
+        final byte[] remoteAddress = SubnetMatcher.parseAddress(headersToken.getRemoteAddr());
+        // all caches and admission limits are keyed by config.root(), which is shared by all header profiles
+        final CompiledSsoAuthConfig config = configProvider.get().forRemoteAddress(remoteAddress);
+        final SsoAuthMetrics.ProfileMetrics profileMetrics = config.profileName() == null ? null : metrics.profile(config.profileName());
+        if (profileMetrics != null) {
+            profileMetrics.requests().mark();
+        }
 
-        final String usernameHeader = config.usernameHeader();
+        final String signedTokenHeader = config.signedTokenHeader();
+        final String identityHeader = signedTokenHeader != null ? signedTokenHeader : config.usernameHeader();
 
-        final Optional<String> userNameOption = headerValue(requestHeaders, usernameHeader);
-        if (userNameOption.isPresent()) {
+        final String identityValue = SsoHeaders.first(requestHeaders, identityHeader);
+        if (identityValue != null) {
             if (config.requireTrustedProxies()) {
-                if (inTrustedSubnets(headersToken.getRemoteAddr())) {
-                    LOG.info("Request with trusted header {} received from {} which is not in the trusted subnets: {}",
-                             usernameHeader,
-                             headersToken.getRemoteAddr(),
-                             Joiner.on(", ").join(trustedProxies));
+                final long start = metrics.trustedProxyCheck().start();
+                final boolean trusted = isTrustedProxy(headersToken.getRemoteAddr(), remoteAddress);
+                metrics.trustedProxyCheck().stop(start);
+                if (!trusted) {
+                    metrics.untrustedProxy().inc();
+                    recordRejection(signedTokenHeader == null ? identityValue : null,
+                                    headersToken.getRemoteAddr(),
+                                    RejectionTracker.Reason.UNTRUSTED_PROXY);
+                    if (rejectionTracker.shouldLog(RejectionTracker.Reason.UNTRUSTED_PROXY)) {
+                        LOG.info("Request with trusted header {} received from {} which is not in the trusted subnets: {} " +
+                                         "({} similar requests not logged)",
+                                 identityHeader,
+                                 headersToken.getRemoteAddr(),
+                                 trustedProxiesDescription,
+                                 rejectionTracker.takeSuppressed(RejectionTracker.Reason.UNTRUSTED_PROXY));
+                    }
                     return null;
                 }
             }
-            final String username = userNameOption.get();
-            User user = null;
 
-            if (ldapAuthenticator.isEnabled()) {
-                user = ldapAuthenticator.syncLdapUser(username);
+            final SignedIdentity signedIdentity;
+            final String username;
+            final HashCode fingerprint;
+            if (signedTokenHeader != null) {
+                final HashCode digest = SignedTokenCache.digest(identityValue);
+                signedIdentity = signedTokenCache.verify(config.root(), identityValue, digest);
+                if (signedIdentity == null) {
+                    LOG.debug("Invalid signed token in header {} received from {}", identityHeader, headersToken.getRemoteAddr());
+                    metrics.invalidToken().inc();
+                    recordRejection(null, headersToken.getRemoteAddr(), RejectionTracker.Reason.INVALID_TOKEN);
+                    return null;
+                }
+                username = signedIdentity.username();
+                // all attributes of the user are covered by the signature
+                fingerprint = digest;
+            } else {
+                signedIdentity = null;
+                username = identityValue;
+                fingerprint = headerFingerprint(requestHeaders, config);
             }
 
-            if (user == null) {
-                user = userService.load(username);
+            final SimpleAccount cachedAccount = authenticationCache.getIfPresent(config.root(), username, fingerprint);
+            if (cachedAccount != null) {
+                LOG.trace("Using cached account for user name {}", username);
+                markAuthenticated(profileMetrics);
+                requestSession(config.root(), username, fingerprint, requestHeaders);
+                return cachedAccount;
+            }
+            if (!config.autoCreateUser() && isStillUnknown(config, username)) {
+                LOG.trace("User {} was recently found not to exist, not using content of trusted header {}", username, identityHeader);
+                metrics.unknownUser().inc();
+                recordRejection(username, headersToken.getRemoteAddr(), RejectionTracker.Reason.UNKNOWN_USER);
+                return null;
             }
+            final CircuitBreaker mongoBreaker = circuitBreakers.mongo();
+            if (!mongoBreaker.allowRequest()) {
+                circuitBreakers.rejected(mongoBreaker, () -> mongoBreaker.call(() -> userService.load(username)));
+                // the user can't be loaded, and its roles not synced, so the account last resolved for it is used
+                // as it is, whatever headers it was resolved from
+                final SimpleAccount latestAccount = authenticationCache.getLatest(config.root(), username);
+                if (latestAccount != null) {
+                    LOG.debug("MongoDB circuit breaker is {}, using last cached account of user {}", mongoBreaker.state(), username);
+                    markAuthenticated(profileMetrics);
+                    requestSession(config.root(), username, fingerprint, requestHeaders);
+                    return latestAccount;
+                }
+                if (unknownUserCache.contains(config.root(), username)) {
+                    LOG.trace("User {} was recently found not to exist, not using content of trusted header {}", username, identityHeader);
+                    metrics.unknownUser().inc();
+                    recordRejection(username, headersToken.getRemoteAddr(), RejectionTracker.Reason.UNKNOWN_USER);
+                    return null;
+                }
+                // fail closed, nothing is known about this user
+                LOG.debug("MongoDB circuit breaker is {}, rejecting uncached user {}", mongoBreaker.state(), username);
+                return null;
+            }
+            final String source = headersToken.getRemoteAddr();
+            User user = ldapUserSync.loadUser(username,
+                                              config.ldapSyncIntervalNanos(),
+                                              config.ldapSyncTimeoutNanos(),
+                                              () -> admissionController.tryAcquire(config.root(), source, AdmissionController.Operation.LDAP_SYNC));
 
             if (user == null) {
                 if (config.autoCreateUser()) {
-                    user = userService.create();
-
-                    // common fields
-                    user.setName(username);
-                    user.setExternal(true);
-                    user.setPassword("dummy password");
-                    user.setPermissions(Collections.emptyList());
-
-                    // fields based on optional headers
-                    final Optional<String> fullnameHeaderOption = headerValue(requestHeaders, config.fullnameHeader());
-                    user.setFullName(fullnameHeaderOption.orElse(username));
-
-                    final Optional<String> emailHeaderOption = headerValue(requestHeaders, config.emailHeader());
-                    if (emailHeaderOption.isPresent()) {
-                        user.setEmail(emailHeaderOption.get());
-                    } else {
-                        user.setEmail(username + "@" + Optional.ofNullable(config.defaultEmailDomain()).orElse("localhost"));
+                    if (ldapUserSync.isSyncRunning(username)) {
+                        // the late LDAP sync creates the user, creating it here as well would duplicate it
+                        LOG.debug("LDAP sync of new user {} is still running, rejecting the request for now", username);
+                        return null;
                     }
-
-                    final String defaultGroup = config.defaultGroup();
-                    if (defaultGroup != null) {
-                        try {
-                            Role role = roleService.loadAllLowercaseNameMap().get(defaultGroup.toLowerCase());
-                            if (role != null) {
-                                user.setRoleIds(Collections.singleton(role.getId()));
-                            } else {
-                                LOG.warn("Could not find group named {}, giving user reader role instead", defaultGroup);
-                                user.setRoleIds(Collections.singleton(roleService.getReaderRoleObjectId()));
-                            }
-                        }
-                        catch (NotFoundException e) {
-                            LOG.info("Unable to retrieve roles, giving user reader role");
-                            user.setRoleIds(Collections.singleton(roleService.getReaderRoleObjectId()));
-                        }
-                    } else {
-                        user.setRoleIds(Collections.singleton(roleService.getReaderRoleObjectId()));
+                    if (ldapUserSync.isSyncSuspended()) {
+                        LOG.debug("LDAP is unavailable, not creating user {} without asking it", username);
+                        return null;
+                    }
+                    if (!admissionController.tryAcquire(config.root(), source, AdmissionController.Operation.AUTO_CREATE)) {
+                        LOG.debug("Too many new users, not creating user {} requested by {}", username, source);
+                        return null;
                     }
+                    final long start = metrics.autoCreate().start();
                     try {
-                        userService.save(user);
-                    } catch (ValidationException e) {
-                        LOG.error("Unable to save auto created user {}. Not logging in with http header.", user, e);
+                        if (signedIdentity != null) {
+                            user = createUser(username, signedIdentity.fullName(), signedIdentity.email(), config, source);
+                        } else {
+                            user = createUser(username,
+                                              SsoHeaders.first(requestHeaders, config.fullnameHeader()),
+                                              SsoHeaders.first(requestHeaders, config.emailHeader()),
+                                              config,
+                                              source);
+                        }
+                    } finally {
+                        metrics.autoCreate().stop(start);
+                    }
+                    if (user == null) {
+                        metrics.validationFailure().inc();
                         return null;
                     }
                 } else {
                     LOG.trace(
                             "No user named {} found and automatic user creation is disabled, not using content of trusted header {}",
                             username,
-                            usernameHeader);
+                            identityHeader);
+                    unknownUserCache.add(config.root(), username);
+                    metrics.unknownUser().inc();
+                    recordRejection(username, headersToken.getRemoteAddr(), RejectionTracker.Reason.UNKNOWN_USER);
                     return null;
                 }
             }
-            LOG.trace("Trusted header {} set, continuing with user name {}", usernameHeader, user.getName());
+            LOG.trace("Trusted header {} set, continuing with user name {}", identityHeader, user.getName());
 
-            if (config.syncRoles()) {
-                Optional<List<String>> rolesList = headerValues(requestHeaders, config.rolesHeader());
-                if (rolesList.isPresent()) {
-                    try {
-                        syncUserRoles(rolesList.get(), user);
-                    } catch (ValidationException e) {
-                        LOG.error(
-                                "Unable to sync roles [{}] of user {} from http header. Not logging in with http header.",
-                                rolesList.get(), user, e);
-                        return null;
-                    }
+            boolean rolesInSync = true;
+            if (config.syncRoles() && (signedIdentity != null || config.rolesHeaderPrefix() != null)) {
+                final HashCode rolesInput = rolesInput(requestHeaders, signedIdentity, config);
+                final Set<String> storedRoles = user.getRoleIds();
+                final String storedFingerprint = UserFieldUpdater.rolesFingerprint(user);
+                if (storedRoles != null && storedFingerprint != null && storedFingerprint.equals(rolesFingerprint(rolesInput, storedRoles))) {
+                    // neither the groups nor the roles changed since the last sync, on whichever node it happened
+                    metrics.roleSyncSkipped().inc();
+                } else {
+                    final Set<String> groups = signedIdentity != null
+                            ? signedIdentity.groups()
+                            : SsoHeaders.prefixedCsvValues(requestHeaders, config.rolesHeaderPrefix());
+                    rolesInSync = syncUserRoles(config.roleMapping().apply(groups),
+                                                user,
+                                                () -> admissionController.tryAcquire(config.root(), source, AdmissionController.Operation.ROLE_WRITE),
+                                                config.writeBehind(),
+                                                rolesInput);
                 }
             }
 
-            ShiroSecurityContext.requestSessionCreation(true);
-            return new SimpleAccount(user.getName(), null, NAME);
+            final SimpleAccount account = new SimpleAccount(user.getName(), null, NAME);
+            if (rolesInSync) {
+                // a deferred role write has to be retried by the next request
+                authenticationCache.put(config.root(), username, fingerprint, account);
+            }
+            markAuthenticated(profileMetrics);
+            requestSession(config.root(), username, fingerprint, requestHeaders);
+            return account;
         }
-        LOG.debug("Trusted header {} is not set.", usernameHeader);
+        LOG.debug("Trusted header {} is not set.", identityHeader);
+        metrics.noHeader().inc();
         return null;
     }
 
-    protected Set<String> csv(List<String> values) {
-        Set<String> uniqValues = new HashSet<>();
-        for (String csString : values) {
-            String[] valueArr = csString.split(",");
+    private void recordRejection(@Nullable String username, String remoteAddress, RejectionTracker.Reason reason) {
+        final long previousRejections = rejectionTracker.record(remoteAddress, reason, username);
+        if (previousRejections != RejectionTracker.NOT_AUDITED) {
+            auditBuffer.loginRejected(username, remoteAddress, reason, previousRejections);
+        }
+    }
 
-            for (String value : valueArr) {
-                uniqValues.add(value.trim());
+    private void markAuthenticated(@Nullable SsoAuthMetrics.ProfileMetrics profileMetrics) {
+        metrics.authenticated().inc();
+        if (profileMetrics != null) {
+            profileMetrics.authenticated().inc();
+        }
+    }
+
+    private void requestSession(CompiledSsoAuthConfig config,
+                                String username,
+                                HashCode fingerprint,
+                                MultivaluedMap<String, String> requestHeaders) {
+        final boolean createSession = sessionTracker.shouldCreateSession(config, username, fingerprint, requestHeaders);
+        // always set explicitly, the flag is thread-local and the thread may have served another request before
+        ShiroSecurityContext.requestSessionCreation(createSession);
+        if (createSession) {
+            metrics.sessionsCreated().mark();
+        } else {
+            metrics.sessionsSkipped().mark();
+        }
+    }
+
+    /**
+     * Creates and stores a new external user with the given optional attributes, unless a concurrent request
+     * created it in the meantime.
+     *
+     * @return the new or concurrently created user or {@code null} if it could not be saved
+     */
+    @Nullable
+    private User createUser(String username,
+                            @Nullable String fullname,
+                            @Nullable String email,
+                            CompiledSsoAuthConfig config,
+                            String remoteAddress) {
+        // concurrent first requests of a user must not create it twice, at least not on the same node
+        final Lock creationLock = userCreationLocks.get(username);
+        creationLock.lock();
+        try {
+            final User existing = circuitBreakers.mongo().call(() -> userService.load(username));
+            if (existing != null) {
+                return existing;
+            }
+            final User user = userFactory.create(username, fullname, email, config);
+            final long start = metrics.userSave().start();
+            try {
+                circuitBreakers.mongo().call(() -> userService.save(user));
+            } catch (ValidationException e) {
+                LOG.error("Unable to save auto created user {}. Not logging in with http header.", user, e);
+                return null;
+            } finally {
+                metrics.userSave().stop(start);
             }
+            unknownUserCache.invalidate(username);
+            auditBuffer.userCreated(username, remoteAddress);
+            return user;
+        } finally {
+            creationLock.unlock();
         }
-        return uniqValues;
     }
 
-    protected void syncUserRoles(List<String> roleCsv, User user) throws ValidationException {
-        Set<String> roleNames = csv(roleCsv);
-        Set<String> existingRoles = user.getRoleIds();
+    /**
+     * Hashes all headers which influence the resolved user besides the user name itself.
+     * The roles headers are combined order-independently, because the header map makes no ordering guarantees.
+     */
+    @VisibleForTesting
+    HashCode headerFingerprint(MultivaluedMap<String, String> headers, CompiledSsoAuthConfig config) {
+        final Hasher hasher = FINGERPRINT_HASH.newHasher();
+        if (config.profileName() != null) {
+            // the same headers may resolve to a different user in another profile
+            hasher.putUnencodedChars(config.profileName()).putChar('\0');
+        }
+        putHeader(hasher, headers, config.fullnameHeader());
+        putHeader(hasher, headers, config.emailHeader());
+        final String rolesPrefix = config.rolesHeaderPrefix();
+        if (config.syncRoles() && rolesPrefix != null) {
+            hasher.putLong(rolesHeadersHash(headers, rolesPrefix));
+        }
+        return hasher.hash();
+    }
 
-        Set<String> syncedRoles = new HashSet<>();
-        for (String roleName : roleNames) {
-            if (roleService.exists(roleName)) {
-                try {
-                    Role r = roleService.load(roleName);
-                    syncedRoles.add(r.getId());
-                } catch (NotFoundException e) {
-                    LOG.error("Role {} not found, but it existed before", roleName);
-                }
+    /**
+     * Hashes everything the resolved roles of a request depend on: the config, the known roles and the groups,
+     * without parsing the roles headers.
+     */
+    @VisibleForTesting
+    HashCode rolesInput(MultivaluedMap<String, String> headers, @Nullable SignedIdentity signedIdentity, CompiledSsoAuthConfig config) {
+        final Hasher hasher = FINGERPRINT_HASH.newHasher()
+                .putUnencodedChars(config.etag())
+                .putChar('\0')
+                .putLong(roleNameResolver.version());
+        if (config.profileName() != null) {
+            hasher.putUnencodedChars(config.profileName()).putChar('\0');
+        }
+        if (signedIdentity != null) {
+            long groupsHash = 0L;
+            for (String group : signedIdentity.groups()) {
+                groupsHash += FINGERPRINT_HASH.hashUnencodedChars(group).asLong();
             }
+            hasher.putBoolean(true).putLong(groupsHash);
+        } else {
+            hasher.putBoolean(false).putLong(rolesHeadersHash(headers, config.rolesHeaderPrefix()));
         }
-        if (existingRoles != null && !existingRoles.equals(syncedRoles)) {
-            user.setRoleIds(syncedRoles);
-            userService.save(user);
+        return hasher.hash();
+    }
+
+    /**
+     * Combines the roles headers order-independently, because the header map makes no ordering guarantees.
+     */
+    private static long rolesHeadersHash(MultivaluedMap<String, String> headers, @Nullable String rolesPrefix) {
+        long rolesHash = 0L;
+        if (rolesPrefix == null) {
+            return rolesHash;
         }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            final List<String> values = header.getValue();
+            if (header.getKey().startsWith(rolesPrefix) && values != null && !values.isEmpty()) {
+                rolesHash += FINGERPRINT_HASH.newHasher()
+                        .putUnencodedChars(header.getKey())
+                        .putChar('\0')
+                        .putUnencodedChars(String.valueOf(values.get(0)))
+                        .hash()
+                        .asLong();
+            }
+        }
+        return rolesHash;
     }
 
+    /**
+     * The fingerprint stored with a user, which matches as long as neither the inputs of the role resolution nor
+     * the stored roles change.
+     */
+    private static String rolesFingerprint(HashCode rolesInput, Set<String> roleIds) {
+        long roleIdsHash = 0L;
+        for (String roleId : roleIds) {
+            roleIdsHash += FINGERPRINT_HASH.hashUnencodedChars(roleId).asLong();
+        }
+        return FINGERPRINT_HASH.newHasher()
+                .putBytes(rolesInput.asBytes())
+                .putLong(roleIdsHash)
+                .hash()
+                .toString();
+    }
+
+    private static void putHeader(Hasher hasher, MultivaluedMap<String, String> headers, @Nullable String headerName) {
+        final String value = SsoHeaders.first(headers, headerName);
+        if (value == null) {
+            hasher.putBoolean(false);
+        } else {
+            hasher.putBoolean(true).putUnencodedChars(value).putChar('\0');
+        }
+    }
+
+    /**
+     * Writes the resolved roles to the user if they differ from the stored ones and {@code admitWrite} allows it.
+     * With {@code writeBehind} the roles are only set on the user object and queued for the background writer,
+     * unless the queue does not accept them. With {@code rolesInput} the fingerprint of the resolution is stored
+     * with the user as well, also if the roles themselves did not change. Users which are not stored in the
+     * database, like Graylog's local admin user, are left as they are.
+     *
+     * @return {@code false} if the roles differ but the write has not been admitted
+     */
     @VisibleForTesting
-    @SuppressWarnings("WeakerAccess")
-    boolean inTrustedSubnets(String remoteAddr) {
-        return !trustedProxies.stream()
-                .anyMatch(ipSubnet -> {
-                    try {
-                        return ipSubnet.contains(remoteAddr);
-                    } catch (UnknownHostException ignored) {
-                        LOG.debug("Looking up remote address {} failed.", remoteAddr);
-                        return false;
-                    }
-                });
+    boolean syncUserRoles(Set<String> roleNames,
+                          User user,
+                          BooleanSupplier admitWrite,
+                          boolean writeBehind,
+                          @Nullable HashCode rolesInput) {
+        if (!UserFieldUpdater.isStored(user)) {
+            LOG.debug("User {} is not stored in the database, not syncing its roles", user.getName());
+            return true;
+        }
+        Set<String> existingRoles = user.getRoleIds();
+
+        final long resolutionStart = metrics.roleResolution().start();
+        Set<String> syncedRoles = roleNameResolver.resolve(roleNames);
+        metrics.roleResolution().stop(resolutionStart);
+        final String rolesFingerprint = rolesInput == null ? null : rolesFingerprint(rolesInput, syncedRoles);
+        if (existingRoles != null && !existingRoles.equals(syncedRoles)) {
+            if (!admitWrite.getAsBoolean()) {
+                LOG.debug("Too many role updates, keeping the stored roles of user {} for now", user.getName());
+                return false;
+            }
+            final Map<String, Object> fields = rolesFingerprint == null
+                    ? UserFieldUpdater.rolesFields(syncedRoles)
+                    : UserFieldUpdater.rolesFields(syncedRoles, rolesFingerprint);
+            if (writeBehind && writeBehindQueue.enqueue(user, fields)) {
+                user.setRoleIds(syncedRoles);
+                if (rolesFingerprint != null) {
+                    UserFieldUpdater.setRolesFingerprint(user, rolesFingerprint);
+                }
+                auditBuffer.rolesSynced(user.getName(), existingRoles, syncedRoles);
+                return true;
+            }
+            final long saveStart = metrics.userSave().start();
+            try {
+                final boolean updated = circuitBreakers.mongo().call(() -> rolesFingerprint == null
+                        ? userFieldUpdater.updateRoles(user, syncedRoles)
+                        : userFieldUpdater.updateRoles(user, syncedRoles, rolesFingerprint));
+                if (updated) {
+                    auditBuffer.rolesSynced(user.getName(), existingRoles, syncedRoles);
+                }
+            } finally {
+                metrics.userSave().stop(saveStart);
+            }
+        } else if (existingRoles != null && rolesFingerprint != null && !rolesFingerprint.equals(UserFieldUpdater.rolesFingerprint(user))) {
+            storeRolesFingerprint(user, rolesFingerprint, admitWrite, writeBehind);
+        }
+        return true;
     }
 
-    private Optional<String> headerValue(MultivaluedMap<String, String> headers, @Nullable String headerName) {
-        if (headerName == null) {
-            return Optional.empty();
+    /**
+     * Stores the fingerprint of roles which are in sync already. This only saves work for later requests,
+     * so it is skipped rather than retried if it is not admitted or fails.
+     */
+    private void storeRolesFingerprint(User user, String rolesFingerprint, BooleanSupplier admitWrite, boolean writeBehind) {
+        if (!admitWrite.getAsBoolean()) {
+            return;
+        }
+        final Map<String, Object> fields = ImmutableMap.<String, Object>of(UserFieldUpdater.ROLES_FINGERPRINT, rolesFingerprint);
+        if (writeBehind && writeBehindQueue.enqueue(user, fields)) {
+            UserFieldUpdater.setRolesFingerprint(user, rolesFingerprint);
+            return;
+        }
+        final long saveStart = metrics.userSave().start();
+        try {
+            if (circuitBreakers.mongo().call(() -> userFieldUpdater.updateFields(user, fields))) {
+                UserFieldUpdater.setRolesFingerprint(user, rolesFingerprint);
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Could not store the roles fingerprint of user {}", user.getName(), e);
+        } finally {
+            metrics.userSave().stop(saveStart);
         }
-        return Optional.ofNullable(headers.getFirst(headerName.toLowerCase()));
     }
 
-    protected Optional<List<String>> headerValues(MultivaluedMap<String, String> headers,
-            @Nullable String headerNamePrefix) {
-        if (headerNamePrefix == null) {
-            return Optional.empty();
+    /**
+     * Whether the user was recently found not to exist and still does not. Users which were created since, on
+     * another node or outside of this plugin, are removed from the unknown user cache. This only queries the
+     * existence of the user, which is much cheaper than loading and syncing it, and assumes that the user is
+     * still missing while MongoDB is unavailable.
+     */
+    private boolean isStillUnknown(CompiledSsoAuthConfig config, String username) {
+        if (!unknownUserCache.contains(config.root(), username)) {
+            return false;
+        }
+        final CircuitBreaker mongoBreaker = circuitBreakers.mongo();
+        if (!mongoBreaker.allowRequest()) {
+            return true;
+        }
+        try {
+            if (!mongoBreaker.call(() -> userFieldUpdater.exists(username))) {
+                return true;
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Could not check whether user {} exists by now", username, e);
+            return true;
         }
-        Set<String> keys = headers.keySet();
-        List<String> headerValues = keys.stream().filter(key -> key.startsWith(headerNamePrefix.toLowerCase()))
-                .map(key -> headers.getFirst(key)).collect(Collectors.toList());
+        LOG.debug("User {} has been created since it was found not to exist", username);
+        unknownUserCache.invalidate(username);
+        return false;
+    }
 
-        return Optional.ofNullable(headerValues);
+    @VisibleForTesting
+    @SuppressWarnings("WeakerAccess")
+    boolean isTrustedProxy(String remoteAddr, @Nullable byte[] address) {
+        if (address == null) {
+            LOG.debug("Remote address {} is not an IP address.", remoteAddr);
+            return false;
+        }
+        return trustedProxyMatcher.match(address) != null;
     }
 }
@@ -0,0 +1,87 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * The node-local state {@link SsoAuthRealm} consults on the request path: its caches, admission limits, circuit
+ * breakers, session policy and the rejection and audit trail.
+ */
+@Singleton
+public class SsoAuthRealmContext {
+    private final SsoAuthenticationCache authenticationCache;
+    private final UnknownUserCache unknownUserCache;
+    private final SignedTokenCache signedTokenCache;
+    private final AdmissionController admissionController;
+    private final SsoCircuitBreakers circuitBreakers;
+    private final SessionTracker sessionTracker;
+    private final RejectionTracker rejectionTracker;
+    private final SsoAuditBuffer auditBuffer;
+
+    @Inject
+    public SsoAuthRealmContext(SsoAuthenticationCache authenticationCache,
+                               UnknownUserCache unknownUserCache,
+                               SignedTokenCache signedTokenCache,
+                               AdmissionController admissionController,
+                               SsoCircuitBreakers circuitBreakers,
+                               SessionTracker sessionTracker,
+                               RejectionTracker rejectionTracker,
+                               SsoAuditBuffer auditBuffer) {
+        this.authenticationCache = authenticationCache;
+        this.unknownUserCache = unknownUserCache;
+        this.signedTokenCache = signedTokenCache;
+        this.admissionController = admissionController;
+        this.circuitBreakers = circuitBreakers;
+        this.sessionTracker = sessionTracker;
+        this.rejectionTracker = rejectionTracker;
+        this.auditBuffer = auditBuffer;
+    }
+
+    public SsoAuthenticationCache authenticationCache() {
+        return authenticationCache;
+    }
+
+    public UnknownUserCache unknownUserCache() {
+        return unknownUserCache;
+    }
+
+    public SignedTokenCache signedTokenCache() {
+        return signedTokenCache;
+    }
+
+    public AdmissionController admissionController() {
+        return admissionController;
+    }
+
+    public SsoCircuitBreakers circuitBreakers() {
+        return circuitBreakers;
+    }
+
+    public SessionTracker sessionTracker() {
+        return sessionTracker;
+    }
+
+    public RejectionTracker rejectionTracker() {
+        return rejectionTracker;
+    }
+
+    public SsoAuditBuffer auditBuffer() {
+        return auditBuffer;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import org.apache.shiro.authc.SimpleAccount;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of principals resolved by {@link SsoAuthRealm}.
+ * <p>
+ * Entries are keyed by the user name and a fingerprint of the headers that influence the resolved user
+ * (roles, email and full name), so a change in any of those headers causes a cache miss and the full
+ * authentication pipeline runs again. The account last resolved for each user is kept as well, whatever its
+ * fingerprint, for when the users can't be loaded. The cache is rebuilt, and thereby emptied, whenever the SSO
+ * config changes.
+ */
+@Singleton
+public class SsoAuthenticationCache {
+    private final PerConfigCache<Key, SimpleAccount> caches = new PerConfigCache<>(SsoAuthenticationCache::build);
+    private final PerConfigCache<String, SimpleAccount> latest = new PerConfigCache<>(SsoAuthenticationCache::build);
+
+    /**
+     * Returns the cached account or {@code null}, which is also the result if caching is disabled in {@code config}.
+     */
+    @Nullable
+    public SimpleAccount getIfPresent(CompiledSsoAuthConfig config, String username, HashCode fingerprint) {
+        final Cache<Key, SimpleAccount> cache = caches.get(config);
+        return cache == null ? null : cache.getIfPresent(new Key(username, fingerprint));
+    }
+
+    /**
+     * Returns the account last cached for the user, with any fingerprint, or {@code null}.
+     */
+    @Nullable
+    public SimpleAccount getLatest(CompiledSsoAuthConfig config, String username) {
+        final Cache<String, SimpleAccount> cache = latest.get(config);
+        return cache == null ? null : cache.getIfPresent(username);
+    }
+
+    public void put(CompiledSsoAuthConfig config, String username, HashCode fingerprint, SimpleAccount account) {
+        final Cache<Key, SimpleAccount> cache = caches.get(config);
+        if (cache != null) {
+            cache.put(new Key(username, fingerprint), account);
+        }
+        final Cache<String, SimpleAccount> latestCache = latest.get(config);
+        if (latestCache != null) {
+            latestCache.put(username, account);
+        }
+    }
+
+    public void invalidateAll() {
+        final Cache<Key, SimpleAccount> cache = caches.current();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        final Cache<String, SimpleAccount> latestCache = latest.current();
+        if (latestCache != null) {
+            latestCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counts accumulated over all cache generations.
+     */
+    public CacheStats stats() {
+        return caches.stats();
+    }
+
+    @Nullable
+    private static <K> Cache<K, SimpleAccount> build(CompiledSsoAuthConfig config) {
+        final SsoAuthConfig source = config.source();
+        if (source.authCacheMaxSize() <= 0 || source.authCacheTtlSeconds() <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumSize(source.authCacheMaxSize())
+                .expireAfterWrite(source.authCacheTtlSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    static class Key {
+        private final String username;
+        private final HashCode fingerprint;
+
+        Key(String username, HashCode fingerprint) {
+            this.username = username;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return username.equals(key.username) && fingerprint.equals(key.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(username, fingerprint);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("username", username)
+                    .add("fingerprint", fingerprint)
+                    .toString();
+        }
+    }
+}
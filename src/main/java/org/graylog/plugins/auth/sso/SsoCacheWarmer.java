@@ -0,0 +1,185 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.graylog2.database.MongoConnection;
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.users.UserImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * Loads the state the realm needs for the first requests when the node starts, so that the first wave of
+ * requests after a restart does not hit MongoDB and LDAP all at once.
+ * <p>
+ * If enabled in the SSO config, {@link #startUp()} compiles the config, loads all role names and streams the most
+ * recent external users into the {@link WarmedUserCache}, which serves their first load. If LDAP is enabled, the
+ * users are also {@link LdapUserSync#markStored(String) marked as stored}, so their first sync runs in the
+ * background. Graylog only reports the node as running once all services have started, so the node does not get
+ * traffic before the warm-up has finished or timed out. A timed out warm-up is cancelled, the remaining state is loaded on demand.
+ */
+@Singleton
+public class SsoCacheWarmer extends AbstractIdleService {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoCacheWarmer.class);
+
+    private static final int CURSOR_BATCH_SIZE = 500;
+
+    private final SsoAuthConfigProvider configProvider;
+    private final RoleNameResolver roleNameResolver;
+    private final LdapUserSync ldapUserSync;
+    private final WarmedUserCache warmedUsers;
+    private final UserSource users;
+
+    @Inject
+    public SsoCacheWarmer(MongoConnection mongoConnection,
+                          UserImpl.Factory userFactory,
+                          SsoAuthConfigProvider configProvider,
+                          RoleNameResolver roleNameResolver,
+                          LdapUserSync ldapUserSync,
+                          WarmedUserCache warmedUsers) {
+        this(configProvider,
+             roleNameResolver,
+             ldapUserSync,
+             warmedUsers,
+             mongoUsers(mongoConnection.getDatabase().getCollection(UserFieldUpdater.COLLECTION_NAME), userFactory));
+    }
+
+    @VisibleForTesting
+    SsoCacheWarmer(SsoAuthConfigProvider configProvider,
+                   RoleNameResolver roleNameResolver,
+                   LdapUserSync ldapUserSync,
+                   WarmedUserCache warmedUsers,
+                   UserSource users) {
+        this.configProvider = configProvider;
+        this.roleNameResolver = roleNameResolver;
+        this.ldapUserSync = ldapUserSync;
+        this.warmedUsers = warmedUsers;
+        this.users = users;
+    }
+
+    @Override
+    protected void startUp() {
+        final SsoAuthConfig config;
+        try {
+            config = configProvider.get().source();
+        } catch (Exception e) {
+            LOG.warn("Unable to load the SSO authenticator config, skipping warm-up", e);
+            return;
+        }
+        if (!config.warmUp()) {
+            return;
+        }
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                                                                   .setNameFormat("sso-warm-up-%d")
+                                                                                   .setDaemon(true)
+                                                                                   .build());
+        final Future<?> warmUp = executor.submit(() -> warmUp(config));
+        try {
+            warmUp.get(config.warmUpTimeoutSeconds(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("SSO authenticator warm-up did not finish within {} seconds, continuing without it", config.warmUpTimeoutSeconds());
+            warmUp.cancel(true);
+        } catch (ExecutionException e) {
+            LOG.warn("SSO authenticator warm-up failed, continuing without it", e.getCause());
+        } catch (InterruptedException e) {
+            warmUp.cancel(true);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    protected void shutDown() {
+    }
+
+    @VisibleForTesting
+    void warmUp(SsoAuthConfig config) {
+        final long start = System.nanoTime();
+        final int roles = roleNameResolver.preload();
+        int loadedUsers = 0;
+        warmedUsers.reset(config.warmUpMaxUsers());
+        if (config.warmUpMaxUsers() > 0) {
+            final boolean ldapEnabled = ldapUserSync.isEnabled();
+            loadedUsers = users.recentExternalUsers((int) Math.min(config.warmUpMaxUsers(), Integer.MAX_VALUE), user -> {
+                warmedUsers.put(user);
+                if (ldapEnabled) {
+                    ldapUserSync.markStored(user.getName());
+                }
+                // stop streaming once startUp() gave up on us
+                return !Thread.currentThread().isInterrupted();
+            });
+        }
+        LOG.info("Warmed up SSO authenticator with {} roles and {} users in {} ms",
+                 roles, loadedUsers, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static UserSource mongoUsers(DBCollection users, UserImpl.Factory userFactory) {
+        return (limit, consumer) -> {
+            int count = 0;
+            // Graylog does not record logins, but object ids start with the creation time, so the newest users come first
+            try (DBCursor cursor = users.find(new BasicDBObject("external_user", true))
+                    .sort(new BasicDBObject("_id", -1))
+                    .limit(limit)
+                    .batchSize(CURSOR_BATCH_SIZE)) {
+                while (cursor.hasNext()) {
+                    final DBObject document = cursor.next();
+                    final Object id = document.get("_id");
+                    if (id instanceof ObjectId && document.get("username") instanceof String) {
+                        count++;
+                        if (!consumer.test(userFactory.create((ObjectId) id, (Map<String, Object>) document.toMap()))) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return count;
+        };
+    }
+
+    @VisibleForTesting
+    interface UserSource {
+        /**
+         * Passes at most {@code limit} external users, most recent first, to {@code consumer} until it returns
+         * {@code false}. Only one batch of users is held in memory besides the ones the consumer keeps.
+         *
+         * @return the number of users passed to the consumer
+         */
+        int recentExternalUsers(int limit, Predicate<User> consumer);
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker circuit breakers} of the realm's dependencies, configured from the current SSO config.
+ * <p>
+ * Probes of open breakers run on a background thread, so requests never wait for a dependency which is known to fail.
+ * The state of each breaker is exposed as {@code circuitBreaker.<name>.state} gauge (0 closed, 1 open, 2 half-open).
+ */
+@Singleton
+public class SsoCircuitBreakers {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoCircuitBreakers.class);
+
+    private final SsoAuthConfigProvider configProvider;
+    private final Executor probeExecutor;
+    private final CircuitBreaker ldap;
+    private final CircuitBreaker mongo;
+    private final SsoAuthMetrics metrics;
+    private volatile CompiledSsoAuthConfig appliedConfig;
+
+    @Inject
+    public SsoCircuitBreakers(SsoAuthConfigProvider configProvider, SsoAuthMetrics metrics) {
+        this(configProvider, metrics, defaultProbeExecutor(), Ticker.systemTicker());
+    }
+
+    /**
+     * @param configProvider the provider of the thresholds, {@code null} to keep the breakers disabled
+     */
+    @VisibleForTesting
+    SsoCircuitBreakers(@Nullable SsoAuthConfigProvider configProvider, SsoAuthMetrics metrics, Executor probeExecutor, Ticker ticker) {
+        this.configProvider = configProvider;
+        this.probeExecutor = probeExecutor;
+        this.ldap = new CircuitBreaker("LDAP", ticker);
+        this.mongo = new CircuitBreaker("MongoDB", ticker);
+        this.metrics = metrics;
+        metrics.registerGauge("circuitBreaker.ldap.state", (Gauge<Integer>) () -> ldap.state().ordinal());
+        metrics.registerGauge("circuitBreaker.mongodb.state", (Gauge<Integer>) () -> mongo.state().ordinal());
+    }
+
+    /**
+     * Breakers which stay disabled regardless of the config.
+     */
+    @VisibleForTesting
+    static SsoCircuitBreakers disabled(SsoAuthMetrics metrics) {
+        return new SsoCircuitBreakers(null, metrics, MoreExecutors.directExecutor(), Ticker.systemTicker());
+    }
+
+    private static Executor defaultProbeExecutor() {
+        // one probe per breaker at a time, so a thread per breaker never queues a probe behind a hanging one;
+        // the threads are core threads, a pool only grows past its core size once the queue is full
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS,
+                                                                   new ArrayBlockingQueue<>(2),
+                                                                   new ThreadFactoryBuilder()
+                                                                           .setNameFormat("sso-circuit-probe-%d")
+                                                                           .setDaemon(true)
+                                                                           .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Breaker for LDAP synchronizations.
+     */
+    public CircuitBreaker ldap() {
+        refresh();
+        return ldap;
+    }
+
+    /**
+     * Breaker for loading and writing users.
+     */
+    public CircuitBreaker mongo() {
+        refresh();
+        return mongo;
+    }
+
+    /**
+     * Counts a skipped call of an open breaker and starts a background probe if one is due.
+     *
+     * @param probe a call guarded by {@code breaker}, which records the outcome of the probe
+     */
+    public void rejected(CircuitBreaker breaker, Runnable probe) {
+        (breaker == ldap ? metrics.ldapCircuitOpen() : metrics.mongoCircuitOpen()).inc();
+        if (!breaker.tryProbe()) {
+            return;
+        }
+        try {
+            probeExecutor.execute(() -> {
+                try {
+                    probe.run();
+                } catch (Exception e) {
+                    LOG.debug("Circuit breaker probe for {} failed", breaker.name(), e);
+                } finally {
+                    breaker.finishProbe();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            breaker.finishProbe();
+        }
+    }
+
+    private void refresh() {
+        if (configProvider == null) {
+            return;
+        }
+        final CompiledSsoAuthConfig config = configProvider.get();
+        if (config != appliedConfig) {
+            final CircuitBreaker.Settings settings = CircuitBreaker.Settings.fromConfig(config.source());
+            ldap.configure(settings);
+            mongo.configure(settings);
+            appliedConfig = config;
+        }
+    }
+}
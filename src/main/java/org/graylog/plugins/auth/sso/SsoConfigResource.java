@@ -16,7 +16,9 @@
  */
 package org.graylog.plugins.auth.sso;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -29,40 +31,88 @@ import org.graylog2.plugin.rest.PluginRestResource;
 import org.graylog2.shared.rest.resources.RestResource;
 import org.graylog2.utilities.IpSubnet;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.constraints.NotNull;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
 
 @Api(value = "SSO/Config", description = "Manage SSO authenticator configuration")
 @Path("/config")
 @Produces(MediaType.APPLICATION_JSON)
 @RequiresAuthentication
 public class SsoConfigResource extends RestResource implements PluginRestResource {
+    private static final long MAX_WAIT_FOR_CHANGE_SECONDS = 300;
+    private static final Splitter ETAG_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    /**
+     * Sent instead of stored secrets. Sending it back in an update keeps the stored secret.
+     */
+    @VisibleForTesting
+    static final String MASKED_SECRET = "********";
+    // static because resources are created per request
+    private static final Object UPDATE_LOCK = new Object();
 
     private final ClusterConfigService clusterConfigService;
+    private final SsoAuthConfigProvider configProvider;
     private final String trustedProxies;
 
     @Inject
     private SsoConfigResource(ClusterConfigService clusterConfigService,
+                              SsoAuthConfigProvider configProvider,
                               @Named("trusted_proxies") Set<IpSubnet> trustedProxies) {
         this.clusterConfigService = clusterConfigService;
+        this.configProvider = configProvider;
         this.trustedProxies = Joiner.on(", ").join(trustedProxies);
     }
 
-    @ApiOperation(value = "Get SSO configuration")
+    @ApiOperation(value = "Get SSO configuration",
+            notes = "Returns 304 if the If-None-Match header matches the current configuration. With wait_for_change, " +
+                    "a matching request waits until the configuration changes or the given number of seconds has passed.",
+            response = SsoAuthConfig.class)
     @GET
     @RequiresPermissions(SsoAuthPermissions.CONFIG_READ)
-    public SsoAuthConfig get() {
-        final SsoAuthConfig config = clusterConfigService.getOrDefault(SsoAuthConfig.class,
-                                                                       SsoAuthConfig.defaultConfig(trustedProxies));
-        return config.toBuilder().trustedProxies(trustedProxies).build();
+    public void get(@ApiParam(name = "wait_for_change", value = "Seconds to wait for a change, at most 300")
+                    @QueryParam("wait_for_change") @DefaultValue("0") long waitForChange,
+                    @HeaderParam(HttpHeaders.IF_NONE_MATCH) @Nullable String ifNoneMatch,
+                    @Suspended AsyncResponse asyncResponse) {
+        final CompiledSsoAuthConfig config = configProvider.get();
+        if (!matches(ifNoneMatch, config.etag()) || waitForChange <= 0) {
+            asyncResponse.resume(conditionalResponse(config, ifNoneMatch));
+            return;
+        }
+
+        final Consumer<CompiledSsoAuthConfig> listener = changed -> asyncResponse.resume(configResponse(changed));
+        asyncResponse.register((CompletionCallback) throwable -> configProvider.removeChangeListener(listener));
+        asyncResponse.setTimeoutHandler(response -> response.resume(conditionalResponse(configProvider.get(), ifNoneMatch)));
+        asyncResponse.setTimeout(Math.min(waitForChange, MAX_WAIT_FOR_CHANGE_SECONDS), TimeUnit.SECONDS);
+        configProvider.addChangeListener(listener);
+        // the config might have changed before the listener was registered
+        final CompiledSsoAuthConfig current = configProvider.get();
+        if (!current.etag().equals(config.etag())) {
+            asyncResponse.resume(configResponse(current));
+        }
     }
 
     @ApiOperation(value = "Update SSO configuration")
@@ -70,12 +120,104 @@ public class SsoConfigResource extends RestResource implements PluginRestResourc
     @PUT
     @RequiresPermissions(SsoAuthPermissions.CONFIG_UPDATE)
     @AuditEvent(type = SsoAuthAuditEventTypes.CONFIG_UPDATE)
-    public SsoAuthConfig update(@ApiParam(name = "config", required = true) @NotNull SsoAuthConfig config) {
-        // we do not want to store trustedProxies in the cluster config because it is not editable in the UI
-        final SsoAuthConfig cleanConfig = config.toBuilder().trustedProxies(null).build();
-        clusterConfigService.write(cleanConfig);
+    public Response update(@ApiParam(name = "config", required = true) @NotNull SsoAuthConfig config,
+                           @HeaderParam(HttpHeaders.IF_MATCH) @Nullable String ifMatch) {
+        final SsoAuthConfig cleanConfig;
+        // the cluster config has no compare-and-set, so If-Match only guards against concurrent updates on this node
+        // and against updates based on a stale copy of the config
+        synchronized (UPDATE_LOCK) {
+            final SsoAuthConfig stored = clusterConfigService.getOrDefault(SsoAuthConfig.class,
+                                                                           SsoAuthConfig.defaultConfig(trustedProxies));
+            if (ifMatch != null && !matches(ifMatch, CompiledSsoAuthConfig.etag(stored))) {
+                throw new ClientErrorException(Response.Status.PRECONDITION_FAILED);
+            }
+            // we do not want to store trustedProxies in the cluster config because it is not editable in the UI
+            cleanConfig = unmasked(config, stored).toBuilder().trustedProxies(null).build();
+            try {
+                CompiledSsoAuthConfig.validate(cleanConfig);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+            clusterConfigService.write(cleanConfig);
+        }
+        // don't wait for the cluster event to come around, the realm on this node should see the change right away
+        configProvider.reload();
         // return the original one because the UI needs to see the trustedProxies again. Well, this time I _am_ sorry.
-        return config;
+        return Response.ok(masked(config))
+                .tag(new EntityTag(CompiledSsoAuthConfig.etag(cleanConfig)))
+                .cacheControl(noCache())
+                .build();
+    }
+
+    private Response conditionalResponse(CompiledSsoAuthConfig config, @Nullable String ifNoneMatch) {
+        if (matches(ifNoneMatch, config.etag())) {
+            return Response.notModified(new EntityTag(config.etag())).cacheControl(noCache()).build();
+        }
+        return configResponse(config);
+    }
+
+    private Response configResponse(CompiledSsoAuthConfig config) {
+        return Response.ok(masked(config.source()).toBuilder().trustedProxies(trustedProxies).build())
+                .tag(new EntityTag(config.etag()))
+                .cacheControl(noCache())
+                .build();
+    }
+
+    private static CacheControl noCache() {
+        // browsers may keep the config but have to revalidate it with If-None-Match
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        return cacheControl;
+    }
+
+    /**
+     * Replaces the secrets of {@code config}, which everybody with read permission can see, with
+     * {@link #MASKED_SECRET}.
+     */
+    @VisibleForTesting
+    static SsoAuthConfig masked(SsoAuthConfig config) {
+        if (isNullOrEmpty(config.signedTokenHmacSecret())) {
+            return config;
+        }
+        return config.toBuilder().signedTokenHmacSecret(MASKED_SECRET).build();
+    }
+
+    /**
+     * Restores the secrets which were sent back {@link #masked(SsoAuthConfig) masked} from the stored config.
+     */
+    @VisibleForTesting
+    static SsoAuthConfig unmasked(SsoAuthConfig config, SsoAuthConfig stored) {
+        if (!MASKED_SECRET.equals(config.signedTokenHmacSecret())) {
+            return config;
+        }
+        return config.toBuilder().signedTokenHmacSecret(stored.signedTokenHmacSecret()).build();
+    }
+
+    /**
+     * @param header the value of an If-Match or If-None-Match header
+     * @param etag   the unquoted entity tag of the current config
+     * @return {@code true} if the header contains the given entity tag or is {@code *}
+     */
+    @VisibleForTesting
+    static boolean matches(@Nullable String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : ETAG_SPLITTER.split(header)) {
+            if ("*".equals(candidate)) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.length() >= 2 && candidate.startsWith("\"") && candidate.endsWith("\"")) {
+                candidate = candidate.substring(1, candidate.length() - 1);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
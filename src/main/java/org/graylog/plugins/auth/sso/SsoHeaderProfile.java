@@ -0,0 +1,84 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Header configuration for requests from a group of reverse proxies. Requests from one of the
+ * {@link #trustedProxies() subnets} of a profile are trusted and read with the header names and policies of the
+ * profile, all other settings are taken from the {@link SsoAuthConfig} the profile belongs to.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class SsoHeaderProfile {
+    @JsonProperty("name")
+    public abstract String name();
+
+    /**
+     * Subnets in CIDR notation. If subnets of several profiles contain an address, the most specific one wins.
+     */
+    @JsonProperty("trusted_proxies")
+    public abstract List<String> trustedProxies();
+
+    @JsonProperty("username_header")
+    public abstract String usernameHeader();
+
+    @JsonProperty("fullname_header")
+    @Nullable
+    public abstract String fullnameHeader();
+
+    @JsonProperty("email_header")
+    @Nullable
+    public abstract String emailHeader();
+
+    @JsonProperty("auto_create_user")
+    public abstract boolean autoCreateUser();
+
+    @JsonProperty("sync_roles")
+    public abstract boolean syncRoles();
+
+    @JsonProperty("roles_header")
+    @Nullable
+    public abstract String rolesHeader();
+
+    @JsonCreator
+    public static SsoHeaderProfile create(@JsonProperty("name") String name,
+                                          @JsonProperty("trusted_proxies") @Nullable List<String> trustedProxies,
+                                          @JsonProperty("username_header") String usernameHeader,
+                                          @JsonProperty("fullname_header") @Nullable String fullnameHeader,
+                                          @JsonProperty("email_header") @Nullable String emailHeader,
+                                          @JsonProperty("auto_create_user") boolean autoCreateUser,
+                                          @JsonProperty("sync_roles") boolean syncRoles,
+                                          @JsonProperty("roles_header") @Nullable String rolesHeader) {
+        return new AutoValue_SsoHeaderProfile(name,
+                                              trustedProxies == null ? ImmutableList.of() : ImmutableList.copyOf(trustedProxies),
+                                              usernameHeader,
+                                              fullnameHeader,
+                                              emailHeader,
+                                              autoCreateUser,
+                                              syncRoles,
+                                              rolesHeader);
+    }
+}
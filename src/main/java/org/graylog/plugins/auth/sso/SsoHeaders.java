@@ -0,0 +1,118 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.MultivaluedMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Header extraction helpers for the SSO realm.
+ * <p>
+ * All header names passed in must already be lowercased, see {@link CompiledSsoAuthConfig}, because Jersey
+ * lowercases the header keys of the request.
+ */
+public final class SsoHeaders {
+    private static final String USER_AGENT = "user-agent";
+
+    private SsoHeaders() {
+    }
+
+    /**
+     * @return the first value of the given header, or {@code null} if the header is not set or {@code headerName} is {@code null}
+     */
+    @Nullable
+    public static String first(MultivaluedMap<String, String> headers, @Nullable String headerName) {
+        return headerName == null ? null : headers.getFirst(headerName);
+    }
+
+    /**
+     * Whether the request comes from a web browser, judging by its {@code User-Agent} header. All common
+     * browsers send a user agent starting with {@code Mozilla/}, API clients and command line tools do not.
+     */
+    public static boolean isBrowser(MultivaluedMap<String, String> headers) {
+        final String userAgent = headers.getFirst(USER_AGENT);
+        return userAgent != null && userAgent.startsWith("Mozilla/");
+    }
+
+    /**
+     * Collects the comma separated values of all headers starting with {@code headerNamePrefix} in a single pass
+     * over the request headers. Only the first value of each header is used.
+     *
+     * @return the unique, trimmed, non-empty values
+     */
+    public static Set<String> prefixedCsvValues(MultivaluedMap<String, String> headers, String headerNamePrefix) {
+        Set<String> values = null;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            final List<String> headerValues = header.getValue();
+            if (headerValues == null || headerValues.isEmpty() || !header.getKey().startsWith(headerNamePrefix)) {
+                continue;
+            }
+            final String value = headerValues.get(0);
+            if (value == null) {
+                continue;
+            }
+            if (values == null) {
+                values = new HashSet<>(estimateCapacity(value));
+            }
+            splitCsv(value, values);
+        }
+        return values == null ? new HashSet<>() : values;
+    }
+
+    /**
+     * Adds all trimmed, non-empty, comma separated tokens of {@code value} to {@code target} without
+     * creating intermediate arrays or strings.
+     */
+    public static void splitCsv(String value, Collection<String> target) {
+        final int length = value.length();
+        int start = 0;
+        while (start <= length) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int tokenStart = start;
+            int tokenEnd = end;
+            while (tokenStart < tokenEnd && value.charAt(tokenStart) <= ' ') {
+                tokenStart++;
+            }
+            while (tokenEnd > tokenStart && value.charAt(tokenEnd - 1) <= ' ') {
+                tokenEnd--;
+            }
+            if (tokenStart < tokenEnd) {
+                target.add(tokenStart == 0 && tokenEnd == length ? value : value.substring(tokenStart, tokenEnd));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int estimateCapacity(String value) {
+        int tokens = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == ',') {
+                tokens++;
+            }
+        }
+        // HashSet resizes at 75% load
+        return Math.max(16, (int) (tokens / 0.75f) + 1);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.collect.ImmutableMap;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+@Api(value = "SSO/Rejections", description = "Rejected SSO requests per source address")
+@Path("/rejections")
+@Produces(MediaType.APPLICATION_JSON)
+@RequiresAuthentication
+public class SsoRejectionsResource extends RestResource implements PluginRestResource {
+    private static final int MAX_LIMIT = 1_000;
+
+    private final RejectionTracker rejectionTracker;
+
+    @Inject
+    private SsoRejectionsResource(RejectionTracker rejectionTracker) {
+        this.rejectionTracker = rejectionTracker;
+    }
+
+    @ApiOperation(value = "Get the sources with the most rejected requests",
+            notes = "Counts untrusted proxy, invalid token and unknown user rejections of this node since its start. " +
+                    "At most 10000 sources are tracked, the least recently rejected ones are dropped first.")
+    @GET
+    @RequiresPermissions(SsoAuthPermissions.CONFIG_READ)
+    public Map<String, Object> get(@ApiParam(name = "limit", value = "Maximum number of sources, at most 1000")
+                                   @QueryParam("limit") @DefaultValue("100") int limit) {
+        return ImmutableMap.of("tracked_sources", rejectionTracker.trackedSources(),
+                               "sources", rejectionTracker.top(Math.max(0, Math.min(limit, MAX_LIMIT))));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.shared.users.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Creates new, unsaved external users with the defaults of the SSO config, for users created on login as well
+ * as for imported users.
+ */
+@Singleton
+public class SsoUserFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoUserFactory.class);
+
+    private final UserService userService;
+    private final RoleNameResolver roleNameResolver;
+
+    @Inject
+    public SsoUserFactory(UserService userService, RoleNameResolver roleNameResolver) {
+        this.userService = userService;
+        this.roleNameResolver = roleNameResolver;
+    }
+
+    /**
+     * Creates a user with the default role of the config.
+     */
+    public User create(String username, @Nullable String fullName, @Nullable String email, CompiledSsoAuthConfig config) {
+        return create(username, fullName, email, Collections.emptySet(), config);
+    }
+
+    /**
+     * Creates a user with the given roles, or the default role of the config if {@code roleIds} is empty.
+     * The full name defaults to the user name and the email address to the user name at the default email domain.
+     */
+    public User create(String username,
+                       @Nullable String fullName,
+                       @Nullable String email,
+                       Set<String> roleIds,
+                       CompiledSsoAuthConfig config) {
+        final User user = userService.create();
+
+        // common fields
+        user.setName(username);
+        user.setExternal(true);
+        user.setPassword("dummy password");
+        user.setPermissions(Collections.emptyList());
+
+        // optional fields
+        user.setFullName(fullName != null ? fullName : username);
+        if (email != null) {
+            user.setEmail(email);
+        } else {
+            user.setEmail(username + "@" + config.defaultEmailDomain());
+        }
+
+        user.setRoleIds(roleIds.isEmpty() ? Collections.singleton(defaultRoleId(config)) : roleIds);
+        return user;
+    }
+
+    /**
+     * Resolves the default group of the config, which falls back to the reader role if it is not set or does not
+     * exist.
+     */
+    private String defaultRoleId(CompiledSsoAuthConfig config) {
+        final String defaultGroup = config.defaultGroup();
+        if (defaultGroup == null) {
+            return roleNameResolver.readerRoleId();
+        }
+        final String roleId = roleNameResolver.resolve(defaultGroup);
+        if (roleId != null) {
+            return roleId;
+        }
+        LOG.warn("Could not find group named {}, giving user reader role instead", defaultGroup);
+        return roleNameResolver.readerRoleId();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.graylog.plugins.auth.sso.audit.SsoAuthAuditEventTypes;
+import org.graylog2.audit.AuditActor;
+import org.graylog2.audit.AuditEventSender;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+
+import javax.inject.Inject;
+import javax.validation.constraints.NotNull;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+@Api(value = "SSO/Users", description = "Pre-provision SSO users")
+@Path("/users")
+@RequiresAuthentication
+public class SsoUserImportResource extends RestResource implements PluginRestResource {
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    public static final String TEXT_CSV = "text/csv";
+
+    private final SsoUserImporter importer;
+    private final AuditEventSender auditEventSender;
+    private final ObjectWriter resultWriter;
+
+    @Inject
+    private SsoUserImportResource(SsoUserImporter importer, AuditEventSender auditEventSender, ObjectMapper objectMapper) {
+        this.importer = importer;
+        this.auditEventSender = auditEventSender;
+        // the writer must not close the response stream after every result
+        this.resultWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @ApiOperation(value = "Import users",
+            notes = "Creates external users from NDJSON or CSV records with the fields username, email, full_name and groups. " +
+                    "Existing users are left untouched. The result of every record is streamed back as NDJSON.")
+    @POST
+    @Path("/import")
+    @Consumes({APPLICATION_NDJSON, TEXT_CSV})
+    @Produces(APPLICATION_NDJSON)
+    @RequiresPermissions(SsoAuthPermissions.USERS_IMPORT)
+    public Response importUsers(@HeaderParam(HttpHeaders.CONTENT_TYPE) MediaType contentType,
+                                @ApiParam(name = "users", required = true) @NotNull InputStream users) {
+        final SsoUserImporter.Format format = MediaType.valueOf(TEXT_CSV).isCompatible(contentType)
+                ? SsoUserImporter.Format.CSV
+                : SsoUserImporter.Format.NDJSON;
+
+        // the records are only processed while the response is written, so the audit event is sent from there
+        // and not by an @AuditEvent annotation, which would fire as soon as this method returns
+        final AuditActor actor = AuditActor.user(getCurrentUser().getName());
+        final StreamingOutput output = outputStream -> {
+            final UserImportSummary summary = new UserImportSummary();
+            boolean completed = false;
+            try {
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                importer.importUsers(new InputStreamReader(users, StandardCharsets.UTF_8), format, new SsoUserImporter.ResultListener() {
+                    @Override
+                    public void onResult(UserImportResult result) throws IOException {
+                        resultWriter.writeValue(writer, result);
+                        writer.write('\n');
+                    }
+
+                    @Override
+                    public void onBatchComplete() throws IOException {
+                        writer.flush();
+                    }
+                }, summary);
+                writer.flush();
+                completed = true;
+            } finally {
+                auditImport(actor, format, summary, completed);
+            }
+        };
+        return Response.ok(output).build();
+    }
+
+    private void auditImport(AuditActor actor, SsoUserImporter.Format format, UserImportSummary summary, boolean completed) {
+        final Map<String, Object> context = new LinkedHashMap<>();
+        context.put("format", format.name().toLowerCase(Locale.ENGLISH));
+        for (UserImportResult.Status status : UserImportResult.Status.values()) {
+            context.put(status.name().toLowerCase(Locale.ENGLISH), summary.count(status));
+        }
+        if (completed) {
+            auditEventSender.success(actor, SsoAuthAuditEventTypes.USERS_IMPORT, context);
+        } else {
+            // the client went away or the input could not be read, the counts cover the records processed until then
+            auditEventSender.failure(actor, SsoAuthAuditEventTypes.USERS_IMPORT, context);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.plugin.database.validators.ValidationResult;
+import org.graylog2.shared.users.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates users from a stream of NDJSON or CSV records, applying the same defaults as automatic user creation
+ * on login.
+ * <p>
+ * Records are processed in batches: the existing users of a batch are looked up with one query and the new
+ * users are inserted with one bulk write. Groups are mapped with the configured {@link RoleMapping} and the
+ * role names are resolved through the {@link RoleNameResolver}, which keeps all roles in memory. The result of
+ * every record is reported to a {@link ResultListener} as soon as its batch has been written, so the input
+ * never has to be held in memory as a whole.
+ */
+@Singleton
+public class SsoUserImporter {
+    private static final Logger LOG = LoggerFactory.getLogger(SsoUserImporter.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    static final int BATCH_SIZE = 500;
+
+    static final String USERNAME = "username";
+    static final String EMAIL = "email";
+    static final String FULL_NAME = "full_name";
+    static final String GROUPS = "groups";
+
+    public enum Format {
+        /**
+         * One JSON object per line with the fields {@code username}, {@code email}, {@code full_name} and
+         * {@code groups}, the groups either as an array or a comma separated string.
+         */
+        NDJSON,
+        /**
+         * A header line naming the columns, followed by one user per line. Groups are separated by commas,
+         * so the groups column has to be quoted if it contains more than one group.
+         */
+        CSV
+    }
+
+    public interface ResultListener {
+        void onResult(UserImportResult result) throws IOException;
+
+        /**
+         * Called after the results of a batch have been reported, e.g. to flush them to the client.
+         */
+        void onBatchComplete() throws IOException;
+    }
+
+    private final SsoAuthConfigProvider configProvider;
+    private final RoleNameResolver roleNameResolver;
+    private final SsoUserFactory userFactory;
+    private final UserService userService;
+    private final UserBatchWriter userBatchWriter;
+    private final UnknownUserCache unknownUserCache;
+
+    @Inject
+    public SsoUserImporter(SsoAuthConfigProvider configProvider,
+                           RoleNameResolver roleNameResolver,
+                           SsoUserFactory userFactory,
+                           UserService userService,
+                           UserBatchWriter userBatchWriter,
+                           UnknownUserCache unknownUserCache) {
+        this.configProvider = configProvider;
+        this.roleNameResolver = roleNameResolver;
+        this.userFactory = userFactory;
+        this.userService = userService;
+        this.userBatchWriter = userBatchWriter;
+        this.unknownUserCache = unknownUserCache;
+    }
+
+    /**
+     * Imports all records of the given input.
+     *
+     * @param summary counts every result before it is passed to {@code listener}
+     */
+    public void importUsers(Reader input, Format format, ResultListener listener, UserImportSummary summary) throws IOException {
+        final CompiledSsoAuthConfig config = configProvider.get();
+        final ResultListener countingListener = new ResultListener() {
+            @Override
+            public void onResult(UserImportResult result) throws IOException {
+                summary.add(result);
+                listener.onResult(result);
+            }
+
+            @Override
+            public void onBatchComplete() throws IOException {
+                listener.onBatchComplete();
+            }
+        };
+
+        final BufferedReader reader = new BufferedReader(input);
+        final Set<String> seenUsernames = new HashSet<>();
+        final List<ImportRecord> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> csvColumns = null;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (format == Format.CSV && csvColumns == null) {
+                try {
+                    csvColumns = parseCsvHeader(line);
+                } catch (IllegalArgumentException e) {
+                    countingListener.onResult(UserImportResult.create(lineNumber, null, UserImportResult.Status.INVALID, e.getMessage()));
+                    countingListener.onBatchComplete();
+                    return;
+                }
+                continue;
+            }
+
+            final ImportRecord record;
+            try {
+                record = format == Format.CSV ? parseCsv(lineNumber, line, csvColumns) : parseJson(lineNumber, line);
+            } catch (IllegalArgumentException e) {
+                countingListener.onResult(UserImportResult.create(lineNumber, null, UserImportResult.Status.INVALID, e.getMessage()));
+                continue;
+            }
+            if (!seenUsernames.add(record.username)) {
+                countingListener.onResult(UserImportResult.create(lineNumber, record.username, UserImportResult.Status.DUPLICATE,
+                                                                  "User has already been imported in an earlier line"));
+                continue;
+            }
+
+            batch.add(record);
+            if (batch.size() >= BATCH_SIZE) {
+                processBatch(batch, config, countingListener);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            processBatch(batch, config, countingListener);
+        }
+        countingListener.onBatchComplete();
+
+        LOG.info("Imported SSO users: {}", summary);
+    }
+
+    private void processBatch(List<ImportRecord> batch, CompiledSsoAuthConfig config, ResultListener listener) throws IOException {
+        final List<String> usernames = new ArrayList<>(batch.size());
+        for (ImportRecord record : batch) {
+            usernames.add(record.username);
+        }
+        final Set<String> existing = userBatchWriter.existingUsernames(usernames);
+
+        final List<ImportRecord> newRecords = new ArrayList<>(batch.size());
+        final List<User> newUsers = new ArrayList<>(batch.size());
+        for (ImportRecord record : batch) {
+            if (existing.contains(record.username)) {
+                listener.onResult(UserImportResult.create(record.line, record.username, UserImportResult.Status.EXISTS, null));
+                continue;
+            }
+            final User user = userFactory.create(record.username, record.fullName, record.email, resolveRoles(record, config), config);
+            final Map<String, List<ValidationResult>> errors = userService.validate(user);
+            if (errors != null && !errors.isEmpty()) {
+                listener.onResult(UserImportResult.create(record.line, record.username, UserImportResult.Status.INVALID,
+                                                          "Invalid fields: " + errors.keySet()));
+                continue;
+            }
+            newRecords.add(record);
+            newUsers.add(user);
+        }
+
+        final Map<Integer, String> failures = userBatchWriter.insert(newUsers);
+        for (int i = 0; i < newRecords.size(); i++) {
+            final ImportRecord record = newRecords.get(i);
+            final String failure = failures.get(i);
+            if (failure != null) {
+                listener.onResult(UserImportResult.create(record.line, record.username, UserImportResult.Status.FAILED, failure));
+            } else {
+                unknownUserCache.invalidate(record.username);
+                listener.onResult(UserImportResult.create(record.line, record.username, UserImportResult.Status.CREATED,
+                                                          record.unknownGroups.isEmpty() ? null : "Unknown roles: " + record.unknownGroups));
+            }
+        }
+        listener.onBatchComplete();
+    }
+
+    private Set<String> resolveRoles(ImportRecord record, CompiledSsoAuthConfig config) {
+        final Set<String> roleIds = new HashSet<>(record.groups.size());
+        for (String roleName : config.roleMapping().apply(record.groups)) {
+            final String roleId = roleNameResolver.resolve(roleName);
+            if (roleId != null) {
+                roleIds.add(roleId);
+            } else {
+                record.unknownGroups.add(roleName);
+            }
+        }
+        return roleIds;
+    }
+
+    private static ImportRecord parseJson(long line, String json) {
+        final JsonNode node;
+        try {
+            node = OBJECT_MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON");
+        }
+        if (node == null || !node.isObject()) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+
+        final Set<String> groups = new LinkedHashSet<>();
+        final JsonNode groupsNode = node.path(GROUPS);
+        if (groupsNode.isArray()) {
+            for (JsonNode group : groupsNode) {
+                final String name = group.asText().trim();
+                if (!name.isEmpty()) {
+                    groups.add(name);
+                }
+            }
+        } else if (groupsNode.isTextual()) {
+            SsoHeaders.splitCsv(groupsNode.asText(), groups);
+        }
+        return new ImportRecord(line,
+                                textOrNull(node.path(USERNAME)),
+                                textOrNull(node.path(EMAIL)),
+                                textOrNull(node.path(FULL_NAME)),
+                                groups);
+    }
+
+    @Nullable
+    private static String textOrNull(JsonNode node) {
+        return node.isValueNode() && !node.isNull() ? node.asText() : null;
+    }
+
+    private static List<String> parseCsvHeader(String line) {
+        final List<String> columns = new ArrayList<>();
+        for (String column : parseCsvLine(line)) {
+            columns.add(column.trim().toLowerCase(Locale.ENGLISH));
+        }
+        if (!columns.contains(USERNAME)) {
+            throw new IllegalArgumentException("The CSV header has no " + USERNAME + " column");
+        }
+        return columns;
+    }
+
+    private static ImportRecord parseCsv(long line, String csv, List<String> columns) {
+        final List<String> values = parseCsvLine(csv);
+        if (values.size() > columns.size()) {
+            throw new IllegalArgumentException("Expected at most " + columns.size() + " values but got " + values.size());
+        }
+        String username = null;
+        String email = null;
+        String fullName = null;
+        final Set<String> groups = new LinkedHashSet<>();
+        for (int i = 0; i < values.size(); i++) {
+            final String value = values.get(i);
+            switch (columns.get(i)) {
+                case USERNAME:
+                    username = value;
+                    break;
+                case EMAIL:
+                    email = value;
+                    break;
+                case FULL_NAME:
+                    fullName = value;
+                    break;
+                case GROUPS:
+                    SsoHeaders.splitCsv(value, groups);
+                    break;
+                default:
+                    // unknown columns are ignored
+            }
+        }
+        return new ImportRecord(line, username, email, fullName, groups);
+    }
+
+    /**
+     * Splits a CSV line into its values. Values may be quoted with double quotes, which are escaped by doubling them.
+     */
+    @VisibleForTesting
+    static List<String> parseCsvLine(String line) {
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted value");
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static class ImportRecord {
+        private final long line;
+        private final String username;
+        private final String email;
+        private final String fullName;
+        private final Set<String> groups;
+        private final Set<String> unknownGroups = new LinkedHashSet<>();
+
+        private ImportRecord(long line,
+                             @Nullable String username,
+                             @Nullable String email,
+                             @Nullable String fullName,
+                             Set<String> groups) {
+            if (username == null || username.trim().isEmpty()) {
+                throw new IllegalArgumentException("The user name is missing");
+            }
+            this.line = line;
+            this.username = username.trim();
+            this.email = emptyToNull(email);
+            this.fullName = emptyToNull(fullName);
+            this.groups = groups;
+        }
+
+        @Nullable
+        private static String emptyToNull(@Nullable String value) {
+            return value == null || value.trim().isEmpty() ? null : value.trim();
+        }
+    }
+}
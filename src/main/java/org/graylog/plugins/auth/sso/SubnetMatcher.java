@@ -0,0 +1,171 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.net.InetAddresses;
+import org.graylog2.utilities.IpSubnet;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * Longest-prefix matcher for IPv4 and IPv6 subnets, compiled into one binary trie per address family.
+ * <p>
+ * Lookups walk at most one trie node per prefix bit and do not allocate. Addresses are matched as raw
+ * network-order bytes, use {@link #parseAddress(String)} to parse a remote address once per request.
+ *
+ * @param <T> the value associated with each subnet
+ */
+public final class SubnetMatcher<T> {
+    private final Node<T> v4Root;
+    private final Node<T> v6Root;
+    private final boolean empty;
+
+    private SubnetMatcher(Node<T> v4Root, Node<T> v6Root, boolean empty) {
+        this.v4Root = v4Root;
+        this.v6Root = v6Root;
+        this.empty = empty;
+    }
+
+    /**
+     * Compiles a matcher which maps every address in {@code subnets} to {@link Boolean#TRUE}.
+     */
+    public static SubnetMatcher<Boolean> of(Collection<IpSubnet> subnets) {
+        final Builder<Boolean> builder = builder();
+        for (IpSubnet subnet : subnets) {
+            builder.add(subnet, Boolean.TRUE);
+        }
+        return builder.build();
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Parses an IP address literal without doing any name lookups.
+     *
+     * @return the address bytes in network order, 4 bytes for IPv4 (including IPv4-mapped IPv6 addresses) and
+     * 16 bytes for IPv6, or {@code null} if {@code address} is not an IP address literal
+     */
+    @Nullable
+    public static byte[] parseAddress(@Nullable String address) {
+        if (address == null) {
+            return null;
+        }
+        try {
+            return InetAddresses.forString(address).getAddress();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns the value of the most specific subnet containing {@code address}, or {@code null} if there is none.
+     */
+    @Nullable
+    public T match(@Nullable byte[] address) {
+        if (address == null) {
+            return null;
+        }
+        Node<T> node;
+        if (address.length == 4) {
+            node = v4Root;
+        } else if (address.length == 16) {
+            node = v6Root;
+        } else {
+            return null;
+        }
+
+        T match = node.value;
+        final int bits = address.length * 8;
+        for (int bit = 0; bit < bits; bit++) {
+            node = (address[bit >>> 3] & (0x80 >>> (bit & 7))) == 0 ? node.zero : node.one;
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    @Nullable
+    public T match(@Nullable String address) {
+        return match(parseAddress(address));
+    }
+
+    public static class Builder<T> {
+        private final Node<T> v4Root = new Node<>();
+        private final Node<T> v6Root = new Node<>();
+        private boolean empty = true;
+
+        private Builder() {
+        }
+
+        public Builder<T> add(IpSubnet subnet, T value) {
+            return add(InetAddresses.forString(subnet.getNetworkAddress()).getAddress(), subnet.getPrefixLength(), value);
+        }
+
+        /**
+         * Adds a subnet, if the same subnet is added twice the last value wins.
+         */
+        public Builder<T> add(byte[] network, int prefixLength, T value) {
+            if (network.length != 4 && network.length != 16) {
+                throw new IllegalArgumentException("Invalid network address length " + network.length);
+            }
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+            }
+            Node<T> node = network.length == 4 ? v4Root : v6Root;
+            for (int bit = 0; bit < prefixLength; bit++) {
+                if ((network[bit >>> 3] & (0x80 >>> (bit & 7))) == 0) {
+                    if (node.zero == null) {
+                        node.zero = new Node<>();
+                    }
+                    node = node.zero;
+                } else {
+                    if (node.one == null) {
+                        node.one = new Node<>();
+                    }
+                    node = node.one;
+                }
+            }
+            node.value = value;
+            empty = false;
+            return this;
+        }
+
+        /**
+         * Builds the matcher, the builder must not be used afterwards.
+         */
+        public SubnetMatcher<T> build() {
+            return new SubnetMatcher<>(v4Root, v6Root, empty);
+        }
+    }
+
+    private static class Node<T> {
+        private Node<T> zero;
+        private Node<T> one;
+        private T value;
+    }
+}
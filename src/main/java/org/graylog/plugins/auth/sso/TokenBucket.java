@@ -0,0 +1,62 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking token bucket which is refilled lazily from the caller supplied clock reading.
+ */
+final class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond number of tokens added per second, must be positive
+     * @param burst         maximum number of tokens, {@code 0} to use {@code ratePerSecond}
+     * @param now           current clock reading in nanoseconds
+     */
+    TokenBucket(long ratePerSecond, long burst, long now) {
+        this.capacity = burst > 0 ? burst : ratePerSecond;
+        this.tokensPerNano = (double) ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    synchronized boolean tryAcquire(long now) {
+        final long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            lastRefill = now;
+        }
+        if (tokens >= 1.0d) {
+            tokens -= 1.0d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a token taken by {@link #tryAcquire(long)} for an operation which has not been started.
+     */
+    synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1.0d);
+    }
+}
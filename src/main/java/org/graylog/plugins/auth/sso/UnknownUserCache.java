@@ -0,0 +1,78 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived, bounded cache of user names which were rejected because the user does not exist and automatic
+ * user creation is disabled.
+ * <p>
+ * Graylog does not publish events when users are created, and users may be created on other nodes or outside
+ * of this plugin. So an entry only saves loading and syncing the user: before a request is rejected, the realm
+ * checks whether the user exists by now and {@link #invalidate(String) invalidates} the entry if it does. The
+ * creation paths of this plugin invalidate entries on the local node right away, all other entries expire
+ * after the configured TTL. The cache is emptied whenever the SSO config changes.
+ */
+@Singleton
+public class UnknownUserCache {
+    private static final long MAX_SIZE = 10_000;
+
+    private final PerConfigCache<String, Boolean> caches = new PerConfigCache<>(UnknownUserCache::build);
+
+    public boolean contains(CompiledSsoAuthConfig config, String username) {
+        final Cache<String, Boolean> cache = caches.get(config);
+        return cache != null && cache.getIfPresent(username) != null;
+    }
+
+    public void add(CompiledSsoAuthConfig config, String username) {
+        final Cache<String, Boolean> cache = caches.get(config);
+        if (cache != null) {
+            cache.put(username, Boolean.TRUE);
+        }
+    }
+
+    public void invalidate(String username) {
+        final Cache<String, Boolean> cache = caches.current();
+        if (cache != null) {
+            cache.invalidate(username);
+        }
+    }
+
+    public CacheStats stats() {
+        return caches.stats();
+    }
+
+    @Nullable
+    private static Cache<String, Boolean> build(CompiledSsoAuthConfig config) {
+        final long ttlSeconds = config.source().unknownUserCacheTtlSeconds();
+        if (ttlSeconds <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumSize(MAX_SIZE)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+}
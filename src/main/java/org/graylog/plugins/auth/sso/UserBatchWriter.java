@@ -0,0 +1,104 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.graylog2.database.MongoConnection;
+import org.graylog2.plugin.database.users.User;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Batched reads and writes of the users collection, for importing many users at once.
+ */
+@Singleton
+public class UserBatchWriter {
+    static final String USERNAME = "username";
+
+    private final DBCollection collection;
+
+    @Inject
+    public UserBatchWriter(MongoConnection mongoConnection) {
+        this(mongoConnection.getDatabase().getCollection(UserFieldUpdater.COLLECTION_NAME));
+    }
+
+    @VisibleForTesting
+    UserBatchWriter(DBCollection collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * @return those of the given user names which belong to stored users, with a single query
+     */
+    public Set<String> existingUsernames(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> existing = new HashSet<>();
+        try (DBCursor cursor = collection.find(new BasicDBObject(USERNAME, new BasicDBObject("$in", usernames)),
+                                               new BasicDBObject(USERNAME, 1))) {
+            for (DBObject document : cursor) {
+                existing.add(String.valueOf(document.get(USERNAME)));
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Inserts the given new users with one unordered bulk write, the same way
+     * {@link org.graylog2.shared.users.UserService#save} stores them. The users have to be validated already.
+     *
+     * @return the error messages of the users which could not be inserted, by their index in {@code users}
+     */
+    public Map<Integer, String> insert(List<User> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (User user : users) {
+            final BasicDBObject document = new BasicDBObject(user.getFields());
+            document.put("_id", new ObjectId(user.getId()));
+            bulk.insert(document);
+        }
+        try {
+            bulk.execute();
+            return Collections.emptyMap();
+        } catch (BulkWriteException e) {
+            final Map<Integer, String> errors = new HashMap<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error.getMessage());
+            }
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
+import org.bson.types.ObjectId;
+import org.graylog2.database.MongoConnection;
+import org.graylog2.plugin.database.users.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes single fields of stored users with targeted {@code $set} updates, instead of rewriting and
+ * revalidating the whole user document through {@link org.graylog2.shared.users.UserService#save}, and checks
+ * whether users exist without loading them.
+ */
+@Singleton
+public class UserFieldUpdater {
+    private static final Logger LOG = LoggerFactory.getLogger(UserFieldUpdater.class);
+
+    static final String COLLECTION_NAME = "users";
+    static final String ROLES = "roles";
+    static final String ROLES_FINGERPRINT = "sso_roles_fingerprint";
+
+    private final DBCollection collection;
+
+    @Inject
+    public UserFieldUpdater(MongoConnection mongoConnection) {
+        this(mongoConnection.getDatabase().getCollection(COLLECTION_NAME));
+    }
+
+    @VisibleForTesting
+    UserFieldUpdater(DBCollection collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * Sets the role ids of the given user, both in the database and on the passed user object.
+     *
+     * @return {@code false} if the stored user could not be found
+     */
+    public boolean updateRoles(User user, Set<String> roleIds) {
+        final boolean updated = updateFields(user, rolesFields(roleIds));
+        user.setRoleIds(roleIds);
+        return updated;
+    }
+
+    /**
+     * Like {@link #updateRoles(User, Set)}, but also stores the fingerprint of the roles headers the role ids
+     * were resolved from.
+     */
+    public boolean updateRoles(User user, Set<String> roleIds, String rolesFingerprint) {
+        final boolean updated = updateFields(user, rolesFields(roleIds, rolesFingerprint));
+        user.setRoleIds(roleIds);
+        setRolesFingerprint(user, rolesFingerprint);
+        return updated;
+    }
+
+    /**
+     * @return the fields to pass to {@link #updateFields} to set the given role ids
+     */
+    public static Map<String, Object> rolesFields(Set<String> roleIds) {
+        final List<ObjectId> roleObjectIds = new ArrayList<>(roleIds.size());
+        for (String roleId : roleIds) {
+            roleObjectIds.add(new ObjectId(roleId));
+        }
+        return ImmutableMap.of(ROLES, roleObjectIds);
+    }
+
+    /**
+     * @return the fields to pass to {@link #updateFields} to set the given role ids and roles fingerprint
+     */
+    public static Map<String, Object> rolesFields(Set<String> roleIds, String rolesFingerprint) {
+        return ImmutableMap.<String, Object>builder()
+                .putAll(rolesFields(roleIds))
+                .put(ROLES_FINGERPRINT, rolesFingerprint)
+                .build();
+    }
+
+    /**
+     * @return the roles fingerprint stored with the user, {@code null} if there is none
+     */
+    @Nullable
+    public static String rolesFingerprint(User user) {
+        final Object fingerprint = user.getFields().get(ROLES_FINGERPRINT);
+        return fingerprint instanceof String ? (String) fingerprint : null;
+    }
+
+    /**
+     * Sets the roles fingerprint on the passed user object only, like {@link User#setRoleIds} does for the roles.
+     */
+    public static void setRolesFingerprint(User user, String rolesFingerprint) {
+        try {
+            user.getFields().put(ROLES_FINGERPRINT, rolesFingerprint);
+        } catch (UnsupportedOperationException e) {
+            // the next request of the user reads the fingerprint from the database
+            LOG.trace("Fields of user {} are read-only", user.getName());
+        }
+    }
+
+    /**
+     * @return whether a user with the given name is stored, only reading its id from the username index
+     */
+    public boolean exists(String username) {
+        return collection.findOne(new BasicDBObject("username", username), new BasicDBObject("_id", 1)) != null;
+    }
+
+    /**
+     * @return whether the user is stored in the database and its fields can be updated, which is not the case for
+     * Graylog's local admin user
+     */
+    public static boolean isStored(User user) {
+        final String userId = user.getId();
+        return userId != null && ObjectId.isValid(userId);
+    }
+
+    /**
+     * Sets the given fields on the stored user document, leaving all other fields untouched.
+     *
+     * @return {@code false} if the stored user could not be found
+     * @throws IllegalArgumentException if the user {@link #isStored(User) is not stored}
+     */
+    public boolean updateFields(User user, Map<String, Object> fields) {
+        if (!isStored(user)) {
+            throw new IllegalArgumentException("User " + user.getName() + " has not been stored yet");
+        }
+        final String userId = user.getId();
+        if (fields.isEmpty()) {
+            return true;
+        }
+        final WriteResult result = collection.update(new BasicDBObject("_id", new ObjectId(userId)),
+                                                     new BasicDBObject("$set", new BasicDBObject(fields)));
+        if (result.getN() == 0) {
+            LOG.warn("Could not update fields {} of user {}, it does not exist anymore", fields.keySet(), user.getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the given fields on several stored user documents with one unordered bulk write. Users which do not
+     * exist anymore are skipped.
+     *
+     * @param fieldsByUserId the fields to set, keyed by user id
+     * @return the ids of the users whose update failed and may be retried
+     */
+    public Set<String> updateFields(Map<String, Map<String, Object>> fieldsByUserId) {
+        if (fieldsByUserId.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final List<String> userIds = new ArrayList<>(fieldsByUserId.size());
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Map.Entry<String, Map<String, Object>> entry : fieldsByUserId.entrySet()) {
+            userIds.add(entry.getKey());
+            bulk.find(new BasicDBObject("_id", new ObjectId(entry.getKey())))
+                    .updateOne(new BasicDBObject("$set", new BasicDBObject(entry.getValue())));
+        }
+        try {
+            bulk.execute();
+            return Collections.emptySet();
+        } catch (BulkWriteException e) {
+            final Set<String> failed = new HashSet<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failed.add(userIds.get(error.getIndex()));
+            }
+            if (e.getWriteConcernError() != null) {
+                // the writes may or may not have been applied, setting the same fields again is harmless
+                failed.addAll(userIds);
+            }
+            return failed;
+        } catch (MongoException e) {
+            LOG.warn("Could not update {} users: {}", userIds.size(), e.getMessage());
+            return new HashSet<>(userIds);
+        }
+    }
+}
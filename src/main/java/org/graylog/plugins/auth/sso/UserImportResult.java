@@ -0,0 +1,59 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of importing a single record with {@link SsoUserImporter}.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class UserImportResult {
+    public enum Status {
+        @JsonProperty("created") CREATED,
+        @JsonProperty("exists") EXISTS,
+        @JsonProperty("duplicate") DUPLICATE,
+        @JsonProperty("invalid") INVALID,
+        @JsonProperty("failed") FAILED
+    }
+
+    /**
+     * Line number of the record in the input, starting at 1.
+     */
+    @JsonProperty("line")
+    public abstract long line();
+
+    @JsonProperty("username")
+    @Nullable
+    public abstract String username();
+
+    @JsonProperty("status")
+    public abstract Status status();
+
+    @JsonProperty("message")
+    @Nullable
+    public abstract String message();
+
+    public static UserImportResult create(long line, @Nullable String username, Status status, @Nullable String message) {
+        return new AutoValue_UserImportResult(line, username, status, message);
+    }
+}
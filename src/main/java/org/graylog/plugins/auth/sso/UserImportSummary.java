@@ -0,0 +1,51 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Number of records per {@link UserImportResult.Status} of one import with {@link SsoUserImporter}.
+ * <p>
+ * The importer updates the summary as it reports the results, so that it also covers the records which were
+ * processed before an import failed. It is only meant to be used by the thread running the import.
+ */
+public class UserImportSummary {
+    private final Map<UserImportResult.Status, Long> counts = new EnumMap<>(UserImportResult.Status.class);
+
+    void add(UserImportResult result) {
+        counts.merge(result.status(), 1L, Long::sum);
+    }
+
+    public long count(UserImportResult.Status status) {
+        return counts.getOrDefault(status, 0L);
+    }
+
+    /**
+     * @return the statuses which occurred at least once with their number of records
+     */
+    public Map<UserImportResult.Status, Long> counts() {
+        return Collections.unmodifiableMap(counts);
+    }
+
+    @Override
+    public String toString() {
+        return counts.toString();
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.graylog2.plugin.database.users.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of field updates of stored users, written in batches by a background thread.
+ * <p>
+ * Updates of the same user are coalesced into one pending {@code $set}, later values replacing earlier ones,
+ * so a user occupies at most one slot no matter how often it changes. Failed writes are retried with
+ * exponential backoff, without overwriting fields which changed in the meantime. Everything still pending is
+ * written on shutdown.
+ * <p>
+ * {@link #enqueue} never blocks: if the queue is full or the service is not running, it returns {@code false}
+ * and the caller has to write synchronously.
+ */
+@Singleton
+public class UserWriteBehindQueue extends AbstractExecutionThreadService {
+    private static final Logger LOG = LoggerFactory.getLogger(UserWriteBehindQueue.class);
+
+    static final int CAPACITY = 10_000;
+    static final int BATCH_SIZE = 100;
+    static final int MAX_ATTEMPTS = 10;
+    static final long INITIAL_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final UserFieldUpdater userFieldUpdater;
+    private final SsoAuthMetrics metrics;
+    private final Ticker ticker;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // guarded by lock, keyed by user id in the order of the first pending update
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    // guarded by lock, so no update can slip in after the final flush
+    private boolean accepting = false;
+
+    @Inject
+    public UserWriteBehindQueue(UserFieldUpdater userFieldUpdater, SsoAuthMetrics metrics) {
+        this(userFieldUpdater, metrics, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    UserWriteBehindQueue(UserFieldUpdater userFieldUpdater, SsoAuthMetrics metrics, Ticker ticker) {
+        this.userFieldUpdater = userFieldUpdater;
+        this.metrics = metrics;
+        this.ticker = ticker;
+        metrics.registerGauge("writeBehind.queueDepth", (Gauge<Integer>) this::size);
+    }
+
+    /**
+     * Queues setting the given fields on the stored user.
+     *
+     * @return {@code false} if the update has not been queued and has to be written by the caller
+     */
+    public boolean enqueue(User user, Map<String, Object> fields) {
+        final String userId = user.getId();
+        lock.lock();
+        try {
+            if (!accepting) {
+                metrics.writeBehindRejected().inc();
+                return false;
+            }
+            final PendingWrite existing = pending.get(userId);
+            if (existing != null) {
+                existing.fields.putAll(fields);
+                return true;
+            }
+            if (pending.size() >= CAPACITY) {
+                metrics.writeBehindRejected().inc();
+                return false;
+            }
+            pending.put(userId, new PendingWrite(user.getName(), fields, 0, ticker.read()));
+            changed.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        lock.lock();
+        try {
+            accepting = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void run() throws Exception {
+        while (isRunning()) {
+            final Map<String, PendingWrite> batch = takeBatch();
+            if (!batch.isEmpty()) {
+                write(batch, true);
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        lock.lock();
+        try {
+            accepting = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        // no new updates are accepted anymore, write everything left regardless of backoff
+        while (true) {
+            final Map<String, PendingWrite> batch = new HashMap<>();
+            lock.lock();
+            try {
+                final Iterator<Map.Entry<String, PendingWrite>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                    final Map.Entry<String, PendingWrite> entry = iterator.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            write(batch, false);
+        }
+    }
+
+    /**
+     * Waits for and removes up to {@link #BATCH_SIZE} updates which are not backing off.
+     *
+     * @return the due updates, empty if the service is stopping
+     */
+    private Map<String, PendingWrite> takeBatch() throws InterruptedException {
+        final Map<String, PendingWrite> batch = new HashMap<>();
+        lock.lock();
+        try {
+            while (isRunning()) {
+                final long now = ticker.read();
+                long nextDue = Long.MAX_VALUE;
+                final Iterator<Map.Entry<String, PendingWrite>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                    final Map.Entry<String, PendingWrite> entry = iterator.next();
+                    final long notBefore = entry.getValue().notBefore;
+                    if (notBefore - now <= 0) {
+                        batch.put(entry.getKey(), entry.getValue());
+                        iterator.remove();
+                    } else if (notBefore < nextDue) {
+                        nextDue = notBefore;
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    break;
+                }
+                changed.awaitNanos(nextDue == Long.MAX_VALUE ? IDLE_WAIT_NANOS : Math.min(nextDue - now, IDLE_WAIT_NANOS));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    private void write(Map<String, PendingWrite> batch, boolean retry) {
+        final Map<String, Map<String, Object>> fieldsByUserId = new HashMap<>(batch.size() * 2);
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            fieldsByUserId.put(entry.getKey(), entry.getValue().fields);
+        }
+        metrics.writeBehindBatchSize().update(batch.size());
+        Set<String> failed;
+        final Timer.Context time = metrics.writeBehindWriteTime().time();
+        try {
+            failed = userFieldUpdater.updateFields(fieldsByUserId);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not write {} queued user updates", batch.size(), e);
+            failed = batch.keySet();
+        } finally {
+            time.stop();
+        }
+
+        for (String userId : failed) {
+            final PendingWrite write = batch.get(userId);
+            final int attempts = write.attempts + 1;
+            if (!retry || attempts >= MAX_ATTEMPTS) {
+                LOG.error("Giving up writing fields {} of user {} after {} attempts", write.fields.keySet(), write.username, attempts);
+                metrics.writeBehindFailed().inc();
+                continue;
+            }
+            metrics.writeBehindRetried().inc();
+            requeue(userId, write, attempts);
+        }
+    }
+
+    private void requeue(String userId, PendingWrite failed, int attempts) {
+        final long backoff = Math.min(INITIAL_BACKOFF_NANOS << Math.min(attempts - 1, 20), MAX_BACKOFF_NANOS);
+        lock.lock();
+        try {
+            final PendingWrite newer = pending.get(userId);
+            if (newer == null) {
+                // retries are always accepted, dropping them would lose an update the realm already applied
+                pending.put(userId, new PendingWrite(failed.username, failed.fields, attempts, ticker.read() + backoff));
+            } else {
+                for (Map.Entry<String, Object> field : failed.fields.entrySet()) {
+                    newer.fields.putIfAbsent(field.getKey(), field.getValue());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected String serviceName() {
+        return "SSO user write-behind queue";
+    }
+
+    private static class PendingWrite {
+        private final String username;
+        private final Map<String, Object> fields;
+        private final int attempts;
+        private final long notBefore;
+
+        PendingWrite(String username, Map<String, Object> fields, int attempts, long notBefore) {
+            this.username = username;
+            this.fields = new HashMap<>(fields);
+            this.attempts = attempts;
+            this.notBefore = notBefore;
+        }
+    }
+}
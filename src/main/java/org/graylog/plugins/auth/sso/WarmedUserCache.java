@@ -0,0 +1,70 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.graylog2.plugin.database.users.User;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users loaded by the startup warm-up, which serve the first load of each user instead of MongoDB.
+ * <p>
+ * Every user is handed out once and then removed, later loads go to MongoDB again and the authentication cache
+ * takes over from there. Users which are not asked for within {@link #MAX_AGE_SECONDS} are dropped, so a warmed
+ * user is never much older than a user loaded on demand.
+ */
+@Singleton
+public class WarmedUserCache {
+    private static final long MAX_AGE_SECONDS = 300;
+
+    private volatile Cache<String, User> users = null;
+
+    /**
+     * Drops all warmed users and makes room for at most {@code maxUsers} new ones.
+     */
+    public void reset(long maxUsers) {
+        users = maxUsers <= 0 ? null : CacheBuilder.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterWrite(MAX_AGE_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public void put(User user) {
+        final Cache<String, User> current = users;
+        if (current != null) {
+            current.put(user.getName(), user);
+        }
+    }
+
+    /**
+     * Returns and removes the warmed user with the given name, or returns {@code null} if there is none.
+     */
+    @Nullable
+    public User take(String username) {
+        final Cache<String, User> current = users;
+        return current == null ? null : current.asMap().remove(username);
+    }
+
+    public long size() {
+        final Cache<String, User> current = users;
+        return current == null ? 0 : current.size();
+    }
+}
@@ -25,9 +25,17 @@ public class SsoAuthAuditEventTypes implements PluginAuditEventTypes {
     private static final String NAMESPACE = "sso_auth:";
 
     public static final String CONFIG_UPDATE = NAMESPACE + "config:update";
+    public static final String USERS_IMPORT = NAMESPACE + "users:import";
+    public static final String USER_CREATE = NAMESPACE + "user:create";
+    public static final String USER_ROLES_UPDATE = NAMESPACE + "user_roles:update";
+    public static final String LOGIN_REJECT = NAMESPACE + "login:reject";
 
     private static final Set<String> EVENT_TYPES = ImmutableSet.<String>builder()
             .add(CONFIG_UPDATE)
+            .add(USERS_IMPORT)
+            .add(USER_CREATE)
+            .add(USER_ROLES_UPDATE)
+            .add(LOGIN_REJECT)
             .build();
 
     @Override
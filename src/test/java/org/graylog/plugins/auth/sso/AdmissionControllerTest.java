@@ -0,0 +1,173 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AdmissionControllerTest {
+    private static final AdmissionController.Operation OPERATION = AdmissionController.Operation.AUTO_CREATE;
+
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private SsoAuthMetrics metrics;
+    private AdmissionController admissionController;
+
+    @Before
+    public void setUp() {
+        metrics = new SsoAuthMetrics(new MetricRegistry());
+        admissionController = new AdmissionController(metrics, ticker);
+    }
+
+    private static CompiledSsoAuthConfig config(long globalRate, long globalBurst, long proxyRate, long proxyBurst) {
+        return CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                     .usernameHeader("Remote-User")
+                                                     .autoCreateUser(true)
+                                                     .requireTrustedProxies(true)
+                                                     .admissionGlobalRate(globalRate)
+                                                     .admissionGlobalBurst(globalBurst)
+                                                     .admissionProxyRate(proxyRate)
+                                                     .admissionProxyBurst(proxyBurst)
+                                                     .build());
+    }
+
+    @Test
+    public void everythingIsAdmittedWithoutLimits() {
+        final CompiledSsoAuthConfig config = config(0, 0, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        }
+        assertThat(metrics.admissionRejected(OPERATION).getCount()).isZero();
+    }
+
+    @Test
+    public void sourceLimitIsAppliedPerSource() {
+        final CompiledSsoAuthConfig config = config(0, 0, 1, 2);
+
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isFalse();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.2", OPERATION)).isTrue();
+        assertThat(metrics.admissionRejected(OPERATION).getCount()).isEqualTo(1);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isFalse();
+    }
+
+    @Test
+    public void globalLimitIsSharedBySources() {
+        final CompiledSsoAuthConfig config = config(2, 0, 0, 0);
+
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.2", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.3", OPERATION)).isFalse();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(admissionController.tryAcquire(config, "10.0.0.3", OPERATION)).isTrue();
+    }
+
+    @Test
+    public void globalRejectionDoesNotUseUpSourceTokens() {
+        final CompiledSsoAuthConfig config = config(1, 1, 1, 1);
+
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.2", OPERATION)).isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(admissionController.tryAcquire(config, "10.0.0.2", OPERATION)).isTrue();
+    }
+
+    @Test
+    public void bucketsAreResetOnConfigChange() {
+        assertThat(admissionController.tryAcquire(config(1, 1, 0, 0), "10.0.0.1", OPERATION)).isTrue();
+        assertThat(admissionController.tryAcquire(config(1, 1, 0, 0), "10.0.0.1", OPERATION)).isTrue();
+    }
+
+    @Test
+    public void operationsHaveBucketsOfTheirOwn() {
+        final CompiledSsoAuthConfig config = config(1, 1, 0, 0);
+
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.LDAP_SYNC)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.LDAP_SYNC)).isFalse();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.AUTO_CREATE)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.ROLE_WRITE)).isTrue();
+        assertThat(metrics.admissionRejected(AdmissionController.Operation.LDAP_SYNC).getCount()).isEqualTo(1);
+        assertThat(metrics.admissionRejected(AdmissionController.Operation.AUTO_CREATE).getCount()).isZero();
+    }
+
+    @Test
+    public void operationLimitsReplaceTheDefaults() {
+        final CompiledSsoAuthConfig config = CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                                                   .usernameHeader("Remote-User")
+                                                                                   .autoCreateUser(true)
+                                                                                   .requireTrustedProxies(true)
+                                                                                   .admissionGlobalRate(1)
+                                                                                   .admissionGlobalBurst(1)
+                                                                                   .admissionLimits(ImmutableList.of(
+                                                                                           AdmissionLimit.create(AdmissionController.Operation.AUTO_CREATE, 0, 0, 0, 0),
+                                                                                           AdmissionLimit.create(AdmissionController.Operation.ROLE_WRITE, 0, 0, 1, 2)))
+                                                                                   .build());
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.AUTO_CREATE)).isTrue();
+        }
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.ROLE_WRITE)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.ROLE_WRITE)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.ROLE_WRITE)).isFalse();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.1", AdmissionController.Operation.LDAP_SYNC)).isTrue();
+        assertThat(admissionController.tryAcquire(config, "10.0.0.2", AdmissionController.Operation.LDAP_SYNC)).isFalse();
+    }
+
+    @Test
+    public void duplicateOperationLimitsAreInvalid() {
+        final SsoAuthConfig config = SsoAuthConfig.builder()
+                .usernameHeader("Remote-User")
+                .requireTrustedProxies(true)
+                .admissionLimits(ImmutableList.of(AdmissionLimit.create(AdmissionController.Operation.LDAP_SYNC, 1, 1, 0, 0),
+                                                  AdmissionLimit.create(AdmissionController.Operation.LDAP_SYNC, 2, 2, 0, 0)))
+                .build();
+
+        assertThatThrownBy(() -> CompiledSsoAuthConfig.validate(config))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("LDAP_SYNC");
+    }
+
+    @Test
+    public void limitsWithoutOperationAreRejectedWhenParsed() {
+        assertThatThrownBy(() -> new ObjectMapper().readValue("{\"global_rate\": 1, \"global_burst\": 1}", AdmissionLimit.class))
+                .isInstanceOf(JsonMappingException.class)
+                .hasMessageContaining("Admission limit without operation");
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker("test", ticker);
+        breaker.configure(CircuitBreaker.Settings.fromConfig(SsoAuthConfig.builder()
+                                                                     .usernameHeader("Remote-User")
+                                                                     .autoCreateUser(true)
+                                                                     .requireTrustedProxies(true)
+                                                                     .circuitBreaker(true)
+                                                                     .circuitBreakerWindowSize(4)
+                                                                     .circuitBreakerFailureRate(50)
+                                                                     .circuitBreakerSlowCallMillis(100)
+                                                                     .circuitBreakerSlowCallRate(75)
+                                                                     .circuitBreakerOpenSeconds(10)
+                                                                     .build()));
+    }
+
+    private void succeed(long millis) {
+        breaker.call(() -> now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis)));
+    }
+
+    private void fail() {
+        assertThatThrownBy(() -> breaker.call(() -> {
+            throw new IllegalStateException("down");
+        })).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void opensOnceTheFailureRateIsReached() {
+        fail();
+        fail();
+        succeed(1);
+        assertThat(breaker.allowRequest()).isTrue();
+
+        succeed(1);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest()).isFalse();
+    }
+
+    @Test
+    public void opensOnceTheSlowCallRateIsReached() {
+        succeed(100);
+        succeed(100);
+        succeed(1);
+        succeed(1);
+        assertThat(breaker.allowRequest()).isTrue();
+
+        succeed(150);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void successfulProbeClosesTheBreaker() {
+        for (int i = 0; i < 4; i++) {
+            fail();
+        }
+        assertThat(breaker.tryProbe()).isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(breaker.tryProbe()).isTrue();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryProbe()).as("only one probe at a time").isFalse();
+        succeed(1);
+        breaker.finishProbe();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        // the window starts over
+        fail();
+        fail();
+        succeed(1);
+        assertThat(breaker.allowRequest()).isTrue();
+    }
+
+    @Test
+    public void failedOrMissingProbeReopensTheBreaker() {
+        for (int i = 0; i < 4; i++) {
+            fail();
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(breaker.tryProbe()).isTrue();
+        fail();
+        breaker.finishProbe();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryProbe()).as("open period starts over").isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(breaker.tryProbe()).isTrue();
+        breaker.finishProbe();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void disabledBreakerNeverOpens() {
+        breaker.configure(CircuitBreaker.Settings.DISABLED);
+        for (int i = 0; i < 10; i++) {
+            fail();
+        }
+        assertThat(breaker.allowRequest()).isTrue();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.graylog2.plugin.cluster.ClusterConfigService;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, in-memory stand-in for {@link ClusterConfigService}, see {@link InMemoryUserService}.
+ */
+public class InMemoryClusterConfigService {
+    private final ConcurrentMap<Class<?>, Object> configs = new ConcurrentHashMap<>();
+    private final AtomicLong reads = new AtomicLong();
+    private final ClusterConfigService service;
+
+    public InMemoryClusterConfigService() {
+        this.service = (ClusterConfigService) Proxy.newProxyInstance(ClusterConfigService.class.getClassLoader(),
+                                                                     new Class<?>[]{ClusterConfigService.class},
+                                                                     (proxy, method, args) -> invoke(method, args));
+    }
+
+    public ClusterConfigService service() {
+        return service;
+    }
+
+    public <T> InMemoryClusterConfigService with(Class<T> type, T config) {
+        configs.put(type, config);
+        return this;
+    }
+
+    public long reads() {
+        return reads.get();
+    }
+
+    private Object invoke(Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            return InMemoryUserService.objectMethod(this, method, args);
+        }
+        switch (method.getName()) {
+            case "get":
+                reads.incrementAndGet();
+                return configs.get((Class<?>) args[args.length - 1]);
+            case "getOrDefault":
+                reads.incrementAndGet();
+                final Object config = configs.get((Class<?>) args[0]);
+                return config != null ? config : args[1];
+            case "write":
+                write(args[args.length - 1]);
+                return null;
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    /**
+     * Configs are looked up by the requested type, so a written AutoValue instance replaces the config stored
+     * for its abstract type.
+     */
+    private void write(Object config) {
+        for (Class<?> type : configs.keySet()) {
+            if (type.isInstance(config)) {
+                configs.put(type, config);
+                return;
+            }
+        }
+        configs.put(config.getClass(), config);
+    }
+}
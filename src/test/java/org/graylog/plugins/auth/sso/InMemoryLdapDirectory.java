@@ -0,0 +1,98 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.security.realm.LdapUserAuthenticator;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * In-memory stand-in for an LDAP directory behind {@link LdapUserAuthenticator}.
+ * <p>
+ * Syncing a user that exists in the directory creates or returns the user in the given {@link InMemoryUserService}.
+ */
+public class InMemoryLdapDirectory {
+    private final InMemoryUserService userService;
+    private final Set<String> entries = ConcurrentHashMap.newKeySet();
+    private final AtomicLong syncs = new AtomicLong();
+    private final LdapUserAuthenticator authenticator;
+    private volatile boolean enabled = true;
+    private volatile long latencyNanos;
+    private volatile RuntimeException failure;
+
+    public InMemoryLdapDirectory(InMemoryUserService userService) {
+        this.userService = userService;
+        // stubOnly mocks do not record invocations, which keeps them cheap enough for benchmarks and load tests
+        this.authenticator = mock(LdapUserAuthenticator.class, withSettings().stubOnly());
+        when(authenticator.isEnabled()).thenAnswer(invocation -> enabled);
+        when(authenticator.syncLdapUser(anyString())).thenAnswer(invocation -> sync(invocation.getArgument(0)));
+    }
+
+    public LdapUserAuthenticator authenticator() {
+        return authenticator;
+    }
+
+    public InMemoryLdapDirectory enabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public InMemoryLdapDirectory withLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Makes all following syncs fail with the given exception, {@code null} to recover.
+     */
+    public InMemoryLdapDirectory failWith(RuntimeException failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    public InMemoryLdapDirectory add(String username) {
+        entries.add(username);
+        return this;
+    }
+
+    public long syncs() {
+        return syncs.get();
+    }
+
+    private User sync(String username) {
+        syncs.incrementAndGet();
+        InMemoryUserService.simulateLatency(latencyNanos);
+        final RuntimeException currentFailure = failure;
+        if (currentFailure != null) {
+            throw currentFailure;
+        }
+        if (!entries.contains(username)) {
+            return null;
+        }
+        final User existing = userService.service().load(username);
+        return existing != null ? existing : userService.add(username);
+    }
+}
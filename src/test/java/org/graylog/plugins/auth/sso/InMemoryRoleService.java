@@ -0,0 +1,117 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.bson.types.ObjectId;
+import org.graylog2.database.NotFoundException;
+import org.graylog2.shared.users.Role;
+import org.graylog2.users.RoleImpl;
+import org.graylog2.users.RoleService;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, in-memory stand-in for {@link RoleService}, see {@link InMemoryUserService}.
+ */
+public class InMemoryRoleService {
+    private final ConcurrentMap<String, Role> roles = new ConcurrentHashMap<>();
+    private final AtomicLong queries = new AtomicLong();
+    private final RoleService service;
+    private final String readerRoleId;
+    private final String adminRoleId;
+    private volatile long latencyNanos;
+
+    public InMemoryRoleService() {
+        this.service = (RoleService) Proxy.newProxyInstance(RoleService.class.getClassLoader(),
+                                                            new Class<?>[]{RoleService.class},
+                                                            (proxy, method, args) -> invoke(method, args));
+        this.readerRoleId = add("Reader");
+        this.adminRoleId = add("Admin");
+    }
+
+    public RoleService service() {
+        return service;
+    }
+
+    public InMemoryRoleService withLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * @return the id of the new role
+     */
+    public String add(String name) {
+        final RoleImpl role = new RoleImpl();
+        role._id = new ObjectId().toHexString();
+        role.name = name;
+        roles.put(name.toLowerCase(Locale.ENGLISH), role);
+        return role._id;
+    }
+
+    public String readerRoleId() {
+        return readerRoleId;
+    }
+
+    /**
+     * Number of calls which would have hit the database.
+     */
+    public long queries() {
+        return queries.get();
+    }
+
+    private Object invoke(Method method, Object[] args) throws NotFoundException {
+        if (method.getDeclaringClass() == Object.class) {
+            return InMemoryUserService.objectMethod(this, method, args);
+        }
+        switch (method.getName()) {
+            case "getReaderRoleObjectId":
+                return readerRoleId;
+            case "getAdminRoleObjectId":
+                return adminRoleId;
+            default:
+                break;
+        }
+
+        queries.incrementAndGet();
+        InMemoryUserService.simulateLatency(latencyNanos);
+        switch (method.getName()) {
+            case "loadAll":
+                return new HashSet<>(roles.values());
+            case "exists":
+                return roles.containsKey(((String) args[0]).toLowerCase(Locale.ENGLISH));
+            case "load":
+                final Role role = roles.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+                if (role == null) {
+                    throw new NotFoundException("No role " + args[0]);
+                }
+                return role;
+            case "loadAllLowercaseNameMap":
+                return new HashMap<>(roles);
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+}
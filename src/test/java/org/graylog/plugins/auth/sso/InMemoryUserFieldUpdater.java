@@ -0,0 +1,63 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.mongodb.DBCollection;
+import org.graylog2.plugin.database.users.User;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UserFieldUpdater} which only counts writes, the user objects of {@link InMemoryUserService} are
+ * updated in place. Existence checks ask the given {@link InMemoryUserService}.
+ */
+public class InMemoryUserFieldUpdater extends UserFieldUpdater {
+    private final AtomicLong updates = new AtomicLong();
+    private final InMemoryUserService users;
+
+    public InMemoryUserFieldUpdater(InMemoryUserService users) {
+        super((DBCollection) null);
+        this.users = users;
+    }
+
+    @Override
+    public boolean exists(String username) {
+        return users.contains(username);
+    }
+
+    @Override
+    public boolean updateFields(User user, Map<String, Object> fields) {
+        if (!isStored(user)) {
+            throw new IllegalArgumentException("User " + user.getName() + " has not been stored yet");
+        }
+        updates.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public Set<String> updateFields(Map<String, Map<String, Object>> fieldsByUserId) {
+        updates.addAndGet(fieldsByUserId.size());
+        return Collections.emptySet();
+    }
+
+    public long updates() {
+        return updates.get();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.security.PasswordAlgorithmFactory;
+import org.graylog2.security.hashing.SHA1HashPasswordAlgorithm;
+import org.graylog2.shared.security.Permissions;
+import org.graylog2.shared.users.UserService;
+import org.graylog2.users.UserImpl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Thread-safe, in-memory stand-in for {@link UserService}.
+ * <p>
+ * Only the methods used by the SSO realm are implemented, all others throw {@link UnsupportedOperationException}.
+ * The stand-in is exposed through a dynamic proxy so that it does not break when the interface grows.
+ */
+public class InMemoryUserService {
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+    private final PasswordAlgorithmFactory passwordAlgorithmFactory =
+            new PasswordAlgorithmFactory(Collections.emptyMap(), new SHA1HashPasswordAlgorithm("1234567890"));
+    private final Permissions permissions = new Permissions(Collections.emptySet());
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong duplicateCreations = new AtomicLong();
+    private final UserService service;
+    private volatile long latencyNanos;
+    private volatile RuntimeException failure;
+
+    public InMemoryUserService() {
+        this.service = (UserService) Proxy.newProxyInstance(UserService.class.getClassLoader(),
+                                                            new Class<?>[]{UserService.class},
+                                                            (proxy, method, args) -> invoke(method, args));
+    }
+
+    public UserService service() {
+        return service;
+    }
+
+    /**
+     * Delays every call by the given time to simulate a slow database.
+     */
+    public InMemoryUserService withLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Fails every call with the given exception, {@code null} to recover.
+     */
+    public InMemoryUserService failWith(RuntimeException failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    public User add(String username, String... roleIds) {
+        final User user = newUser(username, roleIds);
+        users.put(username, user);
+        return user;
+    }
+
+    /**
+     * Adds a user which is not stored in the database, like Graylog's local admin user.
+     */
+    public User addLocal(String username, String... roleIds) {
+        final User user = spy(newUser(username, roleIds));
+        doReturn("local:" + username).when(user).getId();
+        user.setExternal(false);
+        users.put(username, user);
+        return user;
+    }
+
+    /**
+     * Whether a user with the given name exists, without counting as a load.
+     */
+    public boolean contains(String username) {
+        return users.containsKey(username);
+    }
+
+    public void remove(String username) {
+        users.remove(username);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public long loads() {
+        return loads.get();
+    }
+
+    public long saves() {
+        return saves.get();
+    }
+
+    /**
+     * Number of times a user was saved as a new user while another user with the same name already existed.
+     */
+    public long duplicateCreations() {
+        return duplicateCreations.get();
+    }
+
+    private User newUser() {
+        return new UserImpl(passwordAlgorithmFactory, permissions, new HashMap<>());
+    }
+
+    private User newUser(String username, String... roleIds) {
+        final User user = newUser();
+        user.setName(username);
+        user.setExternal(true);
+        user.setFullName(username);
+        user.setEmail(username + "@localhost");
+        user.setPermissions(Collections.emptyList());
+        user.setRoleIds(new HashSet<>(Arrays.asList(roleIds)));
+        return user;
+    }
+
+    private Object invoke(Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            return objectMethod(this, method, args);
+        }
+        simulateLatency(latencyNanos);
+        final RuntimeException currentFailure = failure;
+        if (currentFailure != null) {
+            throw currentFailure;
+        }
+        switch (method.getName()) {
+            case "load":
+                loads.incrementAndGet();
+                return users.get((String) args[0]);
+            case "create":
+                return newUser();
+            case "save":
+                return save((User) args[0]);
+            case "count":
+                return (long) users.size();
+            case "loadAll":
+                return new ArrayList<>(users.values());
+            case "validate":
+                return Collections.emptyMap();
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    private String save(User user) {
+        saves.incrementAndGet();
+        final User previous = users.put(user.getName(), user);
+        if (previous != null && !previous.getId().equals(user.getId())) {
+            duplicateCreations.incrementAndGet();
+        }
+        return user.getId();
+    }
+
+    static void simulateLatency(long latencyNanos) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    static Object objectMethod(Object standIn, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return args[0] == standIn;
+            case "hashCode":
+                return System.identityHashCode(standIn);
+            default:
+                return standIn.getClass().getSimpleName();
+        }
+    }
+}
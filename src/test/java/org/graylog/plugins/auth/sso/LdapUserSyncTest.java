@@ -0,0 +1,176 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.graylog2.plugin.database.users.User;
+import org.graylog2.security.realm.LdapUserAuthenticator;
+import org.graylog2.shared.users.UserService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapUserSyncTest {
+    private static final long INTERVAL = TimeUnit.MINUTES.toNanos(5);
+
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private LdapUserAuthenticator ldapAuthenticator;
+    private UserService userService;
+    private User user;
+
+    @Before
+    public void setUp() {
+        ldapAuthenticator = mock(LdapUserAuthenticator.class);
+        userService = mock(UserService.class);
+        user = mock(User.class);
+        when(ldapAuthenticator.isEnabled()).thenReturn(true);
+        when(ldapAuthenticator.syncLdapUser("horst")).thenReturn(user);
+        when(userService.load("horst")).thenReturn(user);
+    }
+
+    private LdapUserSync sync(ExecutorService refreshExecutor) {
+        final SsoAuthMetrics metrics = new SsoAuthMetrics(new MetricRegistry());
+        return new LdapUserSync(ldapAuthenticator,
+                                userService,
+                                metrics,
+                                SsoCircuitBreakers.disabled(metrics),
+                                new LdapSyncScheduler(refreshExecutor, ticker),
+                                new WarmedUserCache());
+    }
+
+    @Test
+    public void syncsOnlyOncePerInterval() {
+        final LdapUserSync sync = sync(MoreExecutors.newDirectExecutorService());
+
+        assertThat(sync.loadUser("horst", INTERVAL)).isSameAs(user);
+        now.addAndGet(INTERVAL / 2);
+        assertThat(sync.loadUser("horst", INTERVAL)).isSameAs(user);
+        assertThat(sync.loadUser("horst", INTERVAL)).isSameAs(user);
+
+        verify(ldapAuthenticator, times(1)).syncLdapUser("horst");
+        verify(userService, times(2)).load("horst");
+    }
+
+    @Test
+    public void staleUsersAreRefreshedInBackground() {
+        final ExecutorService executor = mock(ExecutorService.class);
+        final LdapUserSync sync = sync(executor);
+
+        sync.loadUser("horst", INTERVAL);
+        now.addAndGet(INTERVAL + 1);
+
+        // the stored user is served right away, the sync itself is handed to the executor
+        assertThat(sync.loadUser("horst", INTERVAL)).isSameAs(user);
+        verify(ldapAuthenticator, times(1)).syncLdapUser("horst");
+        verify(executor, times(1)).execute(any(Runnable.class));
+
+        // further requests while the refresh is pending do not queue another one
+        sync.loadUser("horst", INTERVAL);
+        verify(executor, times(1)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void zeroIntervalSyncsEveryTime() {
+        final LdapUserSync sync = sync(MoreExecutors.newDirectExecutorService());
+
+        sync.loadUser("horst", 0);
+        sync.loadUser("horst", 0);
+
+        verify(ldapAuthenticator, times(2)).syncLdapUser("horst");
+        verify(userService, never()).load("horst");
+    }
+
+    @Test
+    public void disabledLdapLoadsStoredUser() {
+        when(ldapAuthenticator.isEnabled()).thenReturn(false);
+        final LdapUserSync sync = sync(MoreExecutors.newDirectExecutorService());
+
+        assertThat(sync.loadUser("horst", INTERVAL)).isSameAs(user);
+        verify(ldapAuthenticator, never()).syncLdapUser("horst");
+    }
+
+    @Test
+    public void rejectedSyncFallsBackToStoredUser() {
+        final LdapUserSync sync = sync(MoreExecutors.newDirectExecutorService());
+
+        assertThat(sync.loadUser("horst", 0, () -> false)).isSameAs(user);
+        verify(ldapAuthenticator, never()).syncLdapUser("horst");
+    }
+
+    @Test
+    public void slowSyncsFallBackToStoredUser() throws InterruptedException {
+        final InMemoryUserService users = new InMemoryUserService();
+        final InMemoryLdapDirectory ldap = new InMemoryLdapDirectory(users).add("horst").add("karl").withLatency(300, TimeUnit.MILLISECONDS);
+        final User horst = users.add("horst");
+        final User karl = users.add("karl");
+        final SsoAuthMetrics metrics = new SsoAuthMetrics(new MetricRegistry());
+        // a single sync thread without queue, so a second concurrent sync is rejected
+        final ThreadPoolExecutor syncExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(20);
+        try {
+            final LdapUserSync sync = new LdapUserSync(ldap.authenticator(),
+                                                       users.service(),
+                                                       metrics,
+                                                       SsoCircuitBreakers.disabled(metrics),
+                                                       new LdapSyncScheduler(MoreExecutors.newDirectExecutorService(), syncExecutor, ticker),
+                                                       new WarmedUserCache());
+
+            assertThat(sync.loadUser("horst", INTERVAL, timeout, () -> true)).isSameAs(horst);
+            assertThat(metrics.ldapSyncTimeouts().getCount()).isEqualTo(1);
+            assertThat(sync.isSyncRunning("horst")).isTrue();
+
+            // concurrent requests of the same user wait for the running sync
+            assertThat(sync.loadUser("horst", INTERVAL, timeout, () -> true)).isSameAs(horst);
+            assertThat(metrics.ldapSyncTimeouts().getCount()).isEqualTo(2);
+
+            assertThat(sync.loadUser("karl", INTERVAL, timeout, () -> true)).isSameAs(karl);
+            assertThat(metrics.ldapSyncRejected().getCount()).isEqualTo(1);
+
+            // the sync finishes in the background
+            syncExecutor.shutdown();
+            assertThat(syncExecutor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(sync.isSyncRunning("horst")).isFalse();
+            assertThat(ldap.syncs()).isEqualTo(1);
+            assertThat(sync.loadUser("horst", INTERVAL, timeout, () -> true)).isSameAs(horst);
+            assertThat(ldap.syncs()).isEqualTo(1);
+        } finally {
+            syncExecutor.shutdownNow();
+        }
+    }
+}
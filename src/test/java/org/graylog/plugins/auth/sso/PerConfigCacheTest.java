@@ -0,0 +1,82 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PerConfigCacheTest {
+    private final AtomicInteger builds = new AtomicInteger();
+    private final PerConfigCache<String, Boolean> caches = new PerConfigCache<>(config -> {
+        builds.incrementAndGet();
+        return config.source().authCacheMaxSize() > 0
+                ? CacheBuilder.newBuilder().maximumSize(config.source().authCacheMaxSize()).recordStats().<String, Boolean>build()
+                : null;
+    });
+
+    private static CompiledSsoAuthConfig config(long maxSize) {
+        return CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                     .usernameHeader("Remote-User")
+                                                     .requireTrustedProxies(true)
+                                                     .authCacheMaxSize(maxSize)
+                                                     .build());
+    }
+
+    @Test
+    public void buildsOncePerConfigInstance() {
+        final CompiledSsoAuthConfig config = config(10);
+
+        final Cache<String, Boolean> cache = caches.get(config);
+        assertThat(cache).isNotNull();
+        assertThat(caches.get(config)).isSameAs(cache);
+        assertThat(caches.current()).isSameAs(cache);
+        assertThat(builds).hasValue(1);
+
+        // an equal but newly loaded config rebuilds
+        assertThat(caches.get(config(10))).isNotSameAs(cache);
+        assertThat(builds).hasValue(2);
+    }
+
+    @Test
+    public void rebuildEmptiesThePreviousCacheAndKeepsItsStats() {
+        final Cache<String, Boolean> first = caches.get(config(10));
+        first.put("horst", Boolean.TRUE);
+        first.getIfPresent("horst");
+        first.getIfPresent("karl");
+
+        final Cache<String, Boolean> second = caches.get(config(10));
+        second.getIfPresent("horst");
+
+        assertThat(first.size()).isZero();
+        assertThat(caches.stats().hitCount()).isEqualTo(1);
+        assertThat(caches.stats().missCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void disabledConfigHoldsNoCache() {
+        caches.get(config(10)).getIfPresent("horst");
+
+        assertThat(caches.get(config(0))).isNull();
+        assertThat(caches.current()).isNull();
+        assertThat(caches.stats().missCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RejectionTrackerTest {
+    private final AtomicLong now = new AtomicLong();
+    private final RejectionTracker tracker = new RejectionTracker(new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    });
+
+    @Test
+    public void logsABurstAndThenReportsTheSuppressedRejections() {
+        int logged = 0;
+        for (int i = 0; i < 25; i++) {
+            if (tracker.shouldLog(RejectionTracker.Reason.UNTRUSTED_PROXY)) {
+                logged++;
+            }
+        }
+        assertThat(logged).isEqualTo(10);
+        assertThat(tracker.shouldLog(RejectionTracker.Reason.INVALID_TOKEN)).as("reasons are limited separately").isTrue();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(tracker.shouldLog(RejectionTracker.Reason.UNTRUSTED_PROXY)).isTrue();
+        assertThat(tracker.takeSuppressed(RejectionTracker.Reason.UNTRUSTED_PROXY)).isEqualTo(15);
+        assertThat(tracker.takeSuppressed(RejectionTracker.Reason.UNTRUSTED_PROXY)).isZero();
+    }
+
+    @Test
+    public void topSourcesAreOrderedByTotalRejections() {
+        tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst");
+        tracker.record("10.0.0.2", RejectionTracker.Reason.UNTRUSTED_PROXY, "horst");
+        tracker.record("10.0.0.2", RejectionTracker.Reason.INVALID_TOKEN, null);
+        tracker.record("10.0.0.3", RejectionTracker.Reason.UNTRUSTED_PROXY, "horst");
+
+        assertThat(tracker.top(1)).containsExactly(SourceRejections.create("10.0.0.2", 1, 1, 0));
+        assertThat(tracker.top(10)).hasSize(3);
+        assertThat(tracker.trackedSources()).isEqualTo(3);
+    }
+
+    @Test
+    public void onlyTheFirstRejectionPerUserReasonAndSourceIsAuditedWithinTheWindow() {
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst")).isZero();
+        for (int i = 0; i < 4; i++) {
+            assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst")).isEqualTo(RejectionTracker.NOT_AUDITED);
+        }
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNTRUSTED_PROXY, "horst")).as("reasons are coalesced separately").isZero();
+        assertThat(tracker.record("10.0.0.2", RejectionTracker.Reason.UNKNOWN_USER, "horst")).as("sources are coalesced separately").isZero();
+
+        now.addAndGet(RejectionTracker.AUDIT_WINDOW_NANOS);
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst")).isEqualTo(4);
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst")).isEqualTo(RejectionTracker.NOT_AUDITED);
+    }
+
+    @Test
+    public void everyRejectedUserOfASourceIsAudited() {
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "horst")).isZero();
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "karl")).isZero();
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, "karl")).isEqualTo(RejectionTracker.NOT_AUDITED);
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.INVALID_TOKEN, null)).isZero();
+        assertThat(tracker.record("10.0.0.1", RejectionTracker.Reason.INVALID_TOKEN, null)).isEqualTo(RejectionTracker.NOT_AUDITED);
+
+        assertThat(tracker.top(1)).containsExactly(SourceRejections.create("10.0.0.1", 0, 2, 3));
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.graylog.plugins.auth.sso.RoleMappingRule.Type.EXACT;
+import static org.graylog.plugins.auth.sso.RoleMappingRule.Type.GLOB;
+import static org.graylog.plugins.auth.sso.RoleMappingRule.Type.PREFIX;
+import static org.graylog.plugins.auth.sso.RoleMappingRule.Type.REGEX;
+
+public class RoleMappingTest {
+    private static RoleMappingRule rule(RoleMappingRule.Type type, String pattern, String role) {
+        return RoleMappingRule.create(type, pattern, role);
+    }
+
+    @Test
+    public void withoutRulesGroupsAreRoleNames() {
+        final RoleMapping mapping = RoleMapping.compile(ImmutableList.of(), false);
+
+        assertThat(mapping.isEmpty()).isTrue();
+        assertThat(mapping.apply(ImmutableSet.of("Admin", "Reader"))).containsOnly("Admin", "Reader");
+    }
+
+    @Test
+    public void allRuleTypesMatchCaseInsensitively() {
+        final RoleMapping mapping = RoleMapping.compile(ImmutableList.of(
+                rule(EXACT, "CN=Graylog Admins,OU=Groups,DC=example,DC=org", "Admin"),
+                rule(PREFIX, "CN=Ops-", "Operator"),
+                rule(GLOB, "*,OU=Readers,*", "Reader"),
+                rule(GLOB, "team-??-*", "Team"),
+                rule(GLOB, "*-auditors", "Auditor"),
+                rule(REGEX, "cn=dev-[a-z]+,ou=groups,.*", "Developer")), false);
+
+        assertThat(mapping.apply(ImmutableSet.of("cn=graylog admins,ou=groups,dc=example,dc=org"))).containsOnly("Admin");
+        assertThat(mapping.apply(ImmutableSet.of("cn=ops-berlin"))).containsOnly("Operator");
+        assertThat(mapping.apply(ImmutableSet.of("CN=Everyone,OU=readers,DC=example"))).containsOnly("Reader");
+        assertThat(mapping.apply(ImmutableSet.of("TEAM-42-logs"))).containsOnly("Team");
+        assertThat(mapping.apply(ImmutableSet.of("team-4-logs"))).isEmpty();
+        assertThat(mapping.apply(ImmutableSet.of("Finance-Auditors"))).containsOnly("Auditor");
+        assertThat(mapping.apply(ImmutableSet.of("Finance-Auditors-old"))).isEmpty();
+        assertThat(mapping.apply(ImmutableSet.of("CN=Dev-Backend,OU=Groups,DC=example"))).containsOnly("Developer");
+        assertThat(mapping.apply(ImmutableSet.of("CN=Dev-42,OU=Groups,DC=example"))).isEmpty();
+    }
+
+    @Test
+    public void groupsCanMatchSeveralRules() {
+        final RoleMapping mapping = RoleMapping.compile(ImmutableList.of(
+                rule(PREFIX, "graylog-", "Reader"),
+                rule(EXACT, "graylog-admins", "Admin"),
+                rule(REGEX, "graylog-(admins|ops)", "Operator")), false);
+
+        assertThat(mapping.apply(ImmutableSet.of("graylog-admins"))).containsOnly("Reader", "Admin", "Operator");
+        assertThat(mapping.apply(ImmutableSet.of("graylog-users", "other"))).containsOnly("Reader");
+    }
+
+    @Test
+    public void unmappedGroupsArePassedThroughIfEnabled() {
+        final List<RoleMappingRule> rules = ImmutableList.of(rule(EXACT, "admins", "Admin"));
+
+        assertThat(RoleMapping.compile(rules, true).apply(ImmutableSet.of("admins", "Reader"))).containsOnly("Admin", "Reader");
+        assertThat(RoleMapping.compile(rules, false).apply(ImmutableSet.of("admins", "Reader"))).containsOnly("Admin");
+    }
+
+    @Test
+    public void invalidRulesAreRejected() {
+        assertThatThrownBy(() -> RoleMapping.compile(ImmutableList.of(rule(REGEX, "cn=(unclosed", "Admin")), true))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoleMapping.compile(ImmutableList.of(rule(PREFIX, "", "Admin")), true))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoleMapping.compile(ImmutableList.of(rule(EXACT, "admins", " ")), true))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void requiredLiteralIsConservative() {
+        assertThat(RoleMapping.requiredLiteral("cn=dev-[a-z]+,ou=groups,.*")).isEqualTo(",ou=groups,");
+        assertThat(RoleMapping.requiredLiteral("abcd?ef")).isEqualTo("abc");
+        assertThat(RoleMapping.requiredLiteral("x{2,3}yz")).isEqualTo("yz");
+        assertThat(RoleMapping.requiredLiteral("a\\.b\\d+c")).isEqualTo("a.b");
+        assertThat(RoleMapping.requiredLiteral("(prefix)-suffix")).isEqualTo("-suffix");
+        assertThat(RoleMapping.requiredLiteral("admins|ops")).isNull();
+        assertThat(RoleMapping.requiredLiteral("\\x41dmin")).isNull();
+        assertThat(RoleMapping.requiredLiteral(".*")).isNull();
+    }
+
+    @Test
+    public void compiledMappingAgreesWithLinearScan() {
+        final Random random = new Random(42);
+        final String[] words = {"admin", "ops", "dev", "team", "cn=", "ou=", ",", "-", "a", "graylog"};
+        final List<RoleMappingRule> rules = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final String word = words[random.nextInt(words.length)] + words[random.nextInt(words.length)];
+            final RoleMappingRule.Type type = RoleMappingRule.Type.values()[random.nextInt(4)];
+            final String pattern;
+            switch (type) {
+                case GLOB:
+                    pattern = random.nextBoolean() ? "*" + word + "*" : word + "?*";
+                    break;
+                case REGEX:
+                    pattern = ".*" + word + "[0-9]?.*";
+                    break;
+                default:
+                    pattern = word;
+            }
+            rules.add(rule(type, pattern, "role-" + i));
+        }
+        final RoleMapping mapping = RoleMapping.compile(rules, false);
+
+        for (int i = 0; i < 500; i++) {
+            final StringBuilder group = new StringBuilder();
+            for (int j = random.nextInt(5); j >= 0; j--) {
+                group.append(words[random.nextInt(words.length)]);
+            }
+            final String value = random.nextBoolean() ? group.toString().toUpperCase() : group.toString();
+            assertThat(mapping.apply(ImmutableSet.of(value))).as(value).isEqualTo(linearScan(rules, value));
+        }
+    }
+
+    private static Set<String> linearScan(List<RoleMappingRule> rules, String group) {
+        final Set<String> roles = new HashSet<>();
+        final String lowercaseGroup = group.toLowerCase();
+        for (RoleMappingRule rule : rules) {
+            final String pattern = rule.pattern().toLowerCase();
+            final boolean matches;
+            switch (rule.type()) {
+                case EXACT:
+                    matches = lowercaseGroup.equals(pattern);
+                    break;
+                case PREFIX:
+                    matches = lowercaseGroup.startsWith(pattern);
+                    break;
+                case GLOB:
+                    matches = lowercaseGroup.matches(pattern.replace("?", ".").replace("*", ".*"));
+                    break;
+                default:
+                    matches = lowercaseGroup.matches(pattern);
+            }
+            if (matches) {
+                roles.add(rule.role());
+            }
+        }
+        return roles;
+    }
+}
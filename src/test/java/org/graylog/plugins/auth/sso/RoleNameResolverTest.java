@@ -0,0 +1,106 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.graylog2.shared.users.Role;
+import org.graylog2.users.RoleImpl;
+import org.graylog2.users.RoleService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoleNameResolverTest {
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private RoleService roleService;
+    private RoleNameResolver resolver;
+
+    @Before
+    public void setUp() {
+        roleService = mock(RoleService.class);
+        when(roleService.loadAll()).thenReturn(ImmutableSet.of(role("1", "Admin"), role("2", "Reader")));
+        resolver = new RoleNameResolver(roleService, MoreExecutors.directExecutor(), ticker);
+    }
+
+    private static Role role(String id, String name) {
+        final RoleImpl role = new RoleImpl();
+        role._id = id;
+        role.name = name;
+        return role;
+    }
+
+    @Test
+    public void resolvesCaseInsensitively() {
+        assertThat(resolver.resolve(ImmutableList.of("admin", "READER", "Admin"))).containsOnly("1", "2");
+        assertThat(resolver.resolve("reader")).isEqualTo("2");
+        verify(roleService, times(1)).loadAll();
+    }
+
+    @Test
+    public void unknownNamesAreCachedNegatively() {
+        assertThat(resolver.resolve("admin")).isEqualTo("1");
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(resolver.resolve(ImmutableList.of("admin", "unknown"))).containsOnly("1");
+        // first load plus one reload for the unknown name
+        verify(roleService, times(2)).loadAll();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(resolver.resolve(ImmutableList.of("admin", "unknown"))).containsOnly("1");
+        verify(roleService, times(2)).loadAll();
+    }
+
+    @Test
+    public void newRolesAreFoundAfterRefresh() {
+        assertThat(resolver.resolve("ops")).isNull();
+
+        when(roleService.loadAll()).thenReturn(ImmutableSet.of(role("1", "Admin"), role("2", "Reader"), role("3", "Ops")));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(2));
+
+        // the first call after the refresh interval triggers a refresh
+        resolver.resolve("admin");
+        assertThat(resolver.resolve("ops")).isEqualTo("3");
+    }
+
+    @Test
+    public void reloadsForgetUnknownNames() {
+        assertThat(resolver.resolve("ops")).isNull();
+
+        when(roleService.loadAll()).thenReturn(ImmutableSet.of(role("1", "Admin"), role("2", "Reader"), role("3", "Ops")));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        resolver.reload();
+
+        assertThat(resolver.resolve("ops")).isEqualTo("3");
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.hash.HashCode;
+import org.glassfish.jersey.internal.util.collection.MultivaluedStringMap;
+import org.junit.Test;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionTrackerTest {
+    private static final HashCode FINGERPRINT = HashCode.fromLong(42L);
+    private static final HashCode OTHER_FINGERPRINT = HashCode.fromLong(23L);
+
+    private static final String FIREFOX = "Mozilla/5.0 (X11; Linux x86_64; rv:80.0) Gecko/20100101 Firefox/80.0";
+
+    private final SessionTracker tracker = new SessionTracker();
+
+    private static CompiledSsoAuthConfig config(SsoAuthConfig.SessionPolicy policy, long reuseSeconds) {
+        return CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                     .usernameHeader("Remote-User")
+                                                     .autoCreateUser(true)
+                                                     .requireTrustedProxies(true)
+                                                     .sessionPolicy(policy)
+                                                     .sessionReuseSeconds(reuseSeconds)
+                                                     .build());
+    }
+
+    private static MultivaluedMap<String, String> headers(String userAgent) {
+        final MultivaluedStringMap headers = new MultivaluedStringMap();
+        if (userAgent != null) {
+            headers.putSingle("user-agent", userAgent);
+        }
+        return headers;
+    }
+
+    @Test
+    public void alwaysCreatesSessions() {
+        final CompiledSsoAuthConfig config = config(SsoAuthConfig.SessionPolicy.ALWAYS, 60);
+
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isTrue();
+    }
+
+    @Test
+    public void browserOnlySkipsOtherClients() {
+        final CompiledSsoAuthConfig config = config(SsoAuthConfig.SessionPolicy.BROWSER_ONLY, 60);
+
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT,
+                                               headers(FIREFOX))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers("curl/7.68.0"))).isFalse();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isFalse();
+    }
+
+    @Test
+    public void perFingerprintCreatesOneSessionPerUserAndHeaders() {
+        final CompiledSsoAuthConfig config = config(SsoAuthConfig.SessionPolicy.PER_FINGERPRINT, 60);
+
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isFalse();
+        assertThat(tracker.shouldCreateSession(config, "horst", OTHER_FINGERPRINT, headers(null))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "karl", FINGERPRINT, headers(null))).isTrue();
+        assertThat(tracker.size()).isEqualTo(3);
+
+        // a new config starts over
+        final CompiledSsoAuthConfig changedConfig = config(SsoAuthConfig.SessionPolicy.PER_FINGERPRINT, 60);
+        assertThat(tracker.shouldCreateSession(changedConfig, "horst", FINGERPRINT, headers(null))).isTrue();
+    }
+
+    @Test
+    public void perFingerprintWithoutReusePeriodCreatesSessions() {
+        final CompiledSsoAuthConfig config = config(SsoAuthConfig.SessionPolicy.PER_FINGERPRINT, 0);
+
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(null))).isTrue();
+    }
+
+    @Test
+    public void perFingerprintAlwaysCreatesSessionsForBrowsers() {
+        final CompiledSsoAuthConfig config = config(SsoAuthConfig.SessionPolicy.PER_FINGERPRINT, 60);
+
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(FIREFOX))).isTrue();
+        assertThat(tracker.shouldCreateSession(config, "horst", FINGERPRINT, headers(FIREFOX))).isTrue();
+        assertThat(tracker.size()).isZero();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SignedTokenCacheTest {
+    private static final String SECRET = SignedTokens.hmacSecret();
+
+    private final AtomicLong nowMillis = new AtomicLong(TimeUnit.DAYS.toMillis(18000));
+    private final Clock clock = new Clock() {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(nowMillis.get());
+        }
+    };
+
+    private SsoAuthMetrics metrics;
+    private SignedTokenCache cache;
+
+    @Before
+    public void setUp() {
+        metrics = new SsoAuthMetrics(new MetricRegistry());
+        cache = new SignedTokenCache(metrics, clock);
+    }
+
+    private static CompiledSsoAuthConfig config(long cacheSize) {
+        return CompiledSsoAuthConfig.compile(SsoAuthConfig.builder()
+                                                     .usernameHeader("Remote-User")
+                                                     .autoCreateUser(true)
+                                                     .requireTrustedProxies(true)
+                                                     .signedTokenHeader("X-Identity")
+                                                     .signedTokenHmacSecret(SECRET)
+                                                     .signedTokenCacheSize(cacheSize)
+                                                     .build());
+    }
+
+    private String token(String subject, long validForSeconds) {
+        final long expiresAt = TimeUnit.MILLISECONDS.toSeconds(nowMillis.get()) + validForSeconds;
+        return SignedTokens.hmac("HS256", SECRET, SignedTokens.claims(subject, expiresAt));
+    }
+
+    @Test
+    public void tokensAreVerifiedOnce() {
+        final CompiledSsoAuthConfig config = config(100);
+        final String token = token("horst", 300);
+
+        for (int i = 0; i < 3; i++) {
+            final SignedIdentity identity = cache.verify(config, token, SignedTokenCache.digest(token));
+            assertThat(identity).isNotNull();
+            assertThat(identity.username()).isEqualTo("horst");
+        }
+
+        assertThat(metrics.tokenVerification().timer().getCount()).isEqualTo(1);
+        assertThat(cache.stats().hitCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void expiredTokensAreNotServedFromCache() {
+        final CompiledSsoAuthConfig config = config(100);
+        final String token = token("horst", 60);
+
+        assertThat(cache.verify(config, token, SignedTokenCache.digest(token))).isNotNull();
+        nowMillis.addAndGet(TimeUnit.MINUTES.toMillis(2));
+
+        assertThat(cache.verify(config, token, SignedTokenCache.digest(token))).isNull();
+    }
+
+    @Test
+    public void invalidTokensAreNotCached() {
+        final CompiledSsoAuthConfig config = config(100);
+        final String token = token("horst", 300) + "x";
+
+        assertThat(cache.verify(config, token, SignedTokenCache.digest(token))).isNull();
+        assertThat(cache.verify(config, token, SignedTokenCache.digest(token))).isNull();
+
+        assertThat(metrics.tokenVerification().timer().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void disabledCacheVerifiesEveryTime() {
+        final CompiledSsoAuthConfig config = config(0);
+        final String token = token("horst", 300);
+
+        cache.verify(config, token, SignedTokenCache.digest(token));
+        cache.verify(config, token, SignedTokenCache.digest(token));
+
+        assertThat(metrics.tokenVerification().timer().getCount()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SignedTokenVerifierTest {
+    private static final long NOW_MILLIS = TimeUnit.DAYS.toMillis(18000);
+    private static final long IN_FIVE_MINUTES = TimeUnit.MILLISECONDS.toSeconds(NOW_MILLIS) + 300;
+
+    private static final String SECRET = SignedTokens.hmacSecret();
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void generateKeys() {
+        keyPair = SignedTokens.rsaKeyPair();
+    }
+
+    private static SsoAuthConfig.Builder config() {
+        return SsoAuthConfig.builder()
+                .usernameHeader("Remote-User")
+                .autoCreateUser(true)
+                .requireTrustedProxies(true)
+                .signedTokenHeader("X-Identity");
+    }
+
+    private static SignedTokenVerifier hmacVerifier() {
+        return SignedTokenVerifier.fromConfig(config().signedTokenHmacSecret(SECRET).build());
+    }
+
+    private static SignedTokenVerifier rsaVerifier() {
+        return SignedTokenVerifier.fromConfig(config().signedTokenPublicKey(SignedTokens.pem(keyPair.getPublic())).build());
+    }
+
+    @Test
+    public void disabledWithoutHeader() {
+        assertThat(SignedTokenVerifier.fromConfig(config().signedTokenHeader(null).build())).isNull();
+    }
+
+    @Test
+    public void keysAreRequiredAndValidated() {
+        assertThatThrownBy(() -> SignedTokenVerifier.fromConfig(config().build()))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SignedTokenVerifier.fromConfig(config().signedTokenHmacSecret("not base64!").build()))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SignedTokenVerifier.fromConfig(config().signedTokenPublicKey("AAAA").build()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void hmacSignedTokenIsVerified() {
+        for (String algorithm : new String[]{"HS256", "HS384", "HS512"}) {
+            final String token = SignedTokens.hmac(algorithm, SECRET, SignedTokens.claims("horst", IN_FIVE_MINUTES, "Admin", "Reader"));
+
+            final SignedIdentity identity = hmacVerifier().verify(token, NOW_MILLIS);
+
+            assertThat(identity).isNotNull();
+            assertThat(identity.username()).isEqualTo("horst");
+            assertThat(identity.fullName()).isEqualTo("horst Example");
+            assertThat(identity.email()).isEqualTo("horst@example.org");
+            assertThat(identity.groups()).containsOnly("Admin", "Reader");
+        }
+    }
+
+    @Test
+    public void rsaSignedTokenIsVerified() {
+        for (String algorithm : new String[]{"RS256", "RS384", "RS512"}) {
+            final String token = SignedTokens.rsa(algorithm, keyPair.getPrivate(), SignedTokens.claims("horst", IN_FIVE_MINUTES));
+
+            final SignedIdentity identity = rsaVerifier().verify(token, NOW_MILLIS);
+
+            assertThat(identity).isNotNull();
+            assertThat(identity.username()).isEqualTo("horst");
+            assertThat(identity.groups()).isEmpty();
+        }
+    }
+
+    @Test
+    public void tamperedTokenIsRejected() {
+        final String token = SignedTokens.hmac("HS256", SECRET, SignedTokens.claims("horst", IN_FIVE_MINUTES));
+        final String otherPayload = SignedTokens.hmac("HS256", SECRET, SignedTokens.claims("admin", IN_FIVE_MINUTES)).split("\\.")[1];
+        final String[] parts = token.split("\\.");
+
+        assertThat(hmacVerifier().verify(parts[0] + "." + otherPayload + "." + parts[2], NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(parts[0] + "." + parts[1] + ".", NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(parts[0] + "." + parts[1], NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify("garbage", NOW_MILLIS)).isNull();
+    }
+
+    @Test
+    public void tokenSignedWithOtherKeyIsRejected() {
+        final String token = SignedTokens.hmac("HS256", SignedTokens.hmacSecret(), SignedTokens.claims("horst", IN_FIVE_MINUTES));
+
+        assertThat(hmacVerifier().verify(token, NOW_MILLIS)).isNull();
+    }
+
+    @Test
+    public void unconfiguredAlgorithmIsRejected() {
+        final String hmacToken = SignedTokens.hmac("HS256", SECRET, SignedTokens.claims("horst", IN_FIVE_MINUTES));
+        final String rsaToken = SignedTokens.rsa("RS256", keyPair.getPrivate(), SignedTokens.claims("horst", IN_FIVE_MINUTES));
+        final String unsignedToken = hmacToken.substring(0, hmacToken.lastIndexOf('.') + 1)
+                .replaceFirst("^[^.]+", Base64.getUrlEncoder().withoutPadding().encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(rsaVerifier().verify(hmacToken, NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(rsaToken, NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(unsignedToken, NOW_MILLIS)).isNull();
+    }
+
+    @Test
+    public void expirationIsChecked() {
+        final long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(NOW_MILLIS);
+        final Map<String, Object> withinSkew = SignedTokens.claims("horst", nowSeconds - 10);
+        final Map<String, Object> expired = SignedTokens.claims("horst", nowSeconds - 60);
+        final Map<String, Object> withoutExpiration = SignedTokens.claims("horst", 0);
+        withoutExpiration.remove("exp");
+        final Map<String, Object> notYetValid = SignedTokens.claims("horst", IN_FIVE_MINUTES);
+        notYetValid.put("nbf", nowSeconds + 120);
+
+        assertThat(hmacVerifier().verify(SignedTokens.hmac("HS256", SECRET, withinSkew), NOW_MILLIS)).isNotNull();
+        assertThat(hmacVerifier().verify(SignedTokens.hmac("HS256", SECRET, expired), NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(SignedTokens.hmac("HS256", SECRET, withoutExpiration), NOW_MILLIS)).isNull();
+        assertThat(hmacVerifier().verify(SignedTokens.hmac("HS256", SECRET, notYetValid), NOW_MILLIS)).isNull();
+    }
+
+    @Test
+    public void audienceIsChecked() {
+        final SignedTokenVerifier verifier = SignedTokenVerifier.fromConfig(config()
+                                                                                    .signedTokenHmacSecret(SECRET)
+                                                                                    .signedTokenAudience("graylog")
+                                                                                    .build());
+        final Map<String, Object> forGraylog = SignedTokens.claims("horst", IN_FIVE_MINUTES);
+        forGraylog.put("aud", Arrays.asList("wiki", "graylog"));
+        final Map<String, Object> forWiki = SignedTokens.claims("horst", IN_FIVE_MINUTES);
+        forWiki.put("aud", "wiki");
+
+        assertThat(verifier.verify(SignedTokens.hmac("HS256", SECRET, forGraylog), NOW_MILLIS)).isNotNull();
+        assertThat(verifier.verify(SignedTokens.hmac("HS256", SECRET, forWiki), NOW_MILLIS)).isNull();
+        assertThat(verifier.verify(SignedTokens.hmac("HS256", SECRET, SignedTokens.claims("horst", IN_FIVE_MINUTES)), NOW_MILLIS)).isNull();
+    }
+
+    @Test
+    public void groupsMayBeCommaSeparated() {
+        final Map<String, Object> claims = SignedTokens.claims("horst", IN_FIVE_MINUTES);
+        claims.put("groups", "Admin, Reader");
+
+        final SignedIdentity identity = hmacVerifier().verify(SignedTokens.hmac("HS256", SECRET, claims), NOW_MILLIS);
+
+        assertThat(identity).isNotNull();
+        assertThat(identity.groups()).containsOnly("Admin", "Reader");
+    }
+}
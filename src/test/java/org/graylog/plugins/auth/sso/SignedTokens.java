@@ -0,0 +1,130 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Issues signed identity tokens with locally generated keys, for tests and benchmarks.
+ */
+public final class SignedTokens {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+
+    private SignedTokens() {
+    }
+
+    /**
+     * @return a random 256 bit secret, Base64 encoded as expected by {@link SsoAuthConfig#signedTokenHmacSecret()}
+     */
+    public static String hmacSecret() {
+        final byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return Base64.getEncoder().encodeToString(secret);
+    }
+
+    public static KeyPair rsaKeyPair() {
+        try {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the PEM encoding of the public key, as expected by {@link SsoAuthConfig#signedTokenPublicKey()}
+     */
+    public static String pem(PublicKey publicKey) {
+        return "-----BEGIN PUBLIC KEY-----\n"
+                + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(publicKey.getEncoded())
+                + "\n-----END PUBLIC KEY-----\n";
+    }
+
+    /**
+     * @return claims for the given subject which expire at the given epoch second
+     */
+    public static Map<String, Object> claims(String subject, long expiresAtSeconds, String... groups) {
+        final Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("sub", subject);
+        claims.put("exp", expiresAtSeconds);
+        claims.put("name", subject + " Example");
+        claims.put("email", subject + "@example.org");
+        claims.put("groups", Arrays.asList(groups));
+        return claims;
+    }
+
+    /**
+     * @param algorithm one of {@code HS256}, {@code HS384} or {@code HS512}
+     */
+    public static String hmac(String algorithm, String base64Secret, Map<String, Object> claims) {
+        final String signingInput = signingInput(algorithm, claims);
+        try {
+            final String jcaAlgorithm = "HmacSHA" + algorithm.substring(2);
+            final Mac mac = Mac.getInstance(jcaAlgorithm);
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(base64Secret), jcaAlgorithm));
+            return signingInput + "." + BASE64_URL.encodeToString(mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param algorithm one of {@code RS256}, {@code RS384} or {@code RS512}
+     */
+    public static String rsa(String algorithm, PrivateKey privateKey, Map<String, Object> claims) {
+        final String signingInput = signingInput(algorithm, claims);
+        try {
+            final Signature signature = Signature.getInstance("SHA" + algorithm.substring(2) + "withRSA");
+            signature.initSign(privateKey);
+            signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + "." + BASE64_URL.encodeToString(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String signingInput(String algorithm, Map<String, Object> claims) {
+        return encode(ImmutableMap.of("alg", algorithm, "typ", "JWT")) + "." + encode(claims);
+    }
+
+    private static String encode(Object json) {
+        try {
+            return BASE64_URL.encodeToString(OBJECT_MAPPER.writeValueAsBytes(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
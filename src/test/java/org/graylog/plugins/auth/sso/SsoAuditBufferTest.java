@@ -0,0 +1,96 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.graylog.plugins.auth.sso.audit.SsoAuthAuditEventTypes;
+import org.graylog2.audit.AuditEventSender;
+import org.graylog2.plugin.system.NodeId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class SsoAuditBufferTest {
+    private AuditEventSender sender;
+    private SsoAuthMetrics metrics;
+    private SsoAuditBuffer buffer;
+
+    @Before
+    public void setUp() {
+        sender = mock(AuditEventSender.class);
+        metrics = new SsoAuthMetrics(new MetricRegistry());
+        buffer = new SsoAuditBuffer(sender, mock(NodeId.class), metrics);
+    }
+
+    @After
+    public void tearDown() {
+        buffer.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void eventsAreSentInTheBackground() {
+        buffer.startAsync().awaitRunning();
+
+        buffer.loginRejected("mallory", "10.0.0.1", RejectionTracker.Reason.UNKNOWN_USER, 0);
+        buffer.loginRejected(null, "10.0.0.2", RejectionTracker.Reason.INVALID_TOKEN, 41);
+        buffer.rolesSynced("horst", ImmutableSet.of("reader"), ImmutableSet.of("admin"));
+
+        verify(sender, timeout(TimeUnit.SECONDS.toMillis(5))).failure(any(), eq(SsoAuthAuditEventTypes.LOGIN_REJECT),
+                                                                      eq(ImmutableMap.<String, Object>of("remote_address", "10.0.0.1",
+                                                                                                         "reason", "unknown_user")));
+        verify(sender, timeout(TimeUnit.SECONDS.toMillis(5))).failure(any(), eq(SsoAuthAuditEventTypes.LOGIN_REJECT),
+                                                                      eq(ImmutableMap.<String, Object>of("remote_address", "10.0.0.2",
+                                                                                                         "reason", "invalid_token",
+                                                                                                         "previous_rejections", 41L)));
+        verify(sender, timeout(TimeUnit.SECONDS.toMillis(5))).success(any(), eq(SsoAuthAuditEventTypes.USER_ROLES_UPDATE),
+                                                                      eq(ImmutableMap.<String, Object>of("previous_role_ids", ImmutableSet.of("reader"),
+                                                                                                         "role_ids", ImmutableSet.of("admin"))));
+    }
+
+    @Test
+    public void eventsAreDroppedWhenFullOrNotRunning() {
+        buffer.userCreated("horst", "127.0.0.1");
+        assertThat(metrics.auditDropped().getCount()).isEqualTo(1);
+
+        buffer.startAsync().awaitRunning();
+        for (int i = 0; i <= SsoAuditBuffer.CAPACITY; i++) {
+            buffer.userCreated("user-" + i, "127.0.0.1");
+        }
+        assertThat(buffer.size()).isEqualTo(SsoAuditBuffer.CAPACITY);
+        assertThat(metrics.auditDropped().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void pendingEventsAreSentOnShutdown() {
+        buffer.startAsync().awaitRunning();
+        buffer.userCreated("horst", "127.0.0.1");
+        buffer.stopAsync().awaitTerminated();
+
+        verify(sender).success(any(), eq(SsoAuthAuditEventTypes.USER_CREATE), eq(ImmutableMap.<String, Object>of("remote_address", "127.0.0.1")));
+    }
+}
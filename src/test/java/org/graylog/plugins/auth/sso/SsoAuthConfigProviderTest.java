@@ -0,0 +1,94 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.shiro.authc.SimpleAccount;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SsoAuthConfigProviderTest {
+    private static final HashCode FINGERPRINT = HashCode.fromLong(42L);
+
+    private final InMemoryClusterConfigService clusterConfig = new InMemoryClusterConfigService();
+    private final InMemoryRoleService roles = new InMemoryRoleService();
+    private final RoleNameResolver roleNameResolver = new RoleNameResolver(roles.service(), MoreExecutors.directExecutor(), Ticker.systemTicker());
+    private final SsoAuthConfigProvider provider = new SsoAuthConfigProvider(
+            clusterConfig.service(),
+            new SsoAuthMetrics(new MetricRegistry()),
+            new EventBus());
+
+    @Test
+    public void etagIgnoresTrustedProxies() {
+        final SsoAuthConfig config = SsoAuthConfig.defaultConfig("127.0.0.1/32");
+
+        assertThat(CompiledSsoAuthConfig.etag(config))
+                .isEqualTo(CompiledSsoAuthConfig.etag(config.toBuilder().trustedProxies("10.0.0.0/8").build()))
+                .isNotEqualTo(CompiledSsoAuthConfig.etag(config.toBuilder().usernameHeader("X-Remote-User").build()));
+    }
+
+    @Test
+    public void listenersAreNotifiedAboutChanges() {
+        final List<CompiledSsoAuthConfig> changes = new ArrayList<>();
+        final Consumer<CompiledSsoAuthConfig> listener = changes::add;
+        provider.addChangeListener(listener);
+
+        final CompiledSsoAuthConfig initial = provider.get();
+        provider.reload();
+        assertThat(changes).isEmpty();
+
+        clusterConfig.with(SsoAuthConfig.class, initial.source().toBuilder().usernameHeader("X-Remote-User").build());
+        final CompiledSsoAuthConfig changed = provider.reload();
+        assertThat(changes).containsExactly(changed);
+        assertThat(changed.etag()).isNotEqualTo(initial.etag());
+
+        provider.removeChangeListener(listener);
+        clusterConfig.with(SsoAuthConfig.class, initial.source());
+        provider.reload();
+        assertThat(changes).containsExactly(changed);
+    }
+
+    @Test
+    public void roleChangesDoNotFlushTheCaches() {
+        clusterConfig.with(SsoAuthConfig.class, SsoAuthConfig.defaultConfig("").toBuilder()
+                .defaultGroup("Support")
+                .authCacheMaxSize(100)
+                .authCacheTtlSeconds(60)
+                .build());
+        final SsoAuthenticationCache authenticationCache = new SsoAuthenticationCache();
+        final SimpleAccount account = new SimpleAccount("horst", null, "sso");
+        final CompiledSsoAuthConfig initial = provider.get();
+        authenticationCache.put(initial, "horst", FINGERPRINT, account);
+        final long roleVersion = roleNameResolver.version();
+
+        roles.add("Support");
+        roleNameResolver.reload();
+
+        assertThat(roleNameResolver.version()).isNotEqualTo(roleVersion);
+        assertThat(provider.get()).isSameAs(initial);
+        assertThat(authenticationCache.getIfPresent(provider.get(), "horst", FINGERPRINT)).isSameAs(account);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.glassfish.jersey.internal.util.collection.MultivaluedStringMap;
+import org.graylog2.audit.AuditEventSender;
+import org.graylog2.plugin.system.NodeId;
+import org.graylog2.shared.security.HttpHeadersToken;
+import org.graylog2.utilities.IpSubnet;
+
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Wires a {@link SsoAuthRealm} to the in-memory stand-ins, for benchmarks and load tests.
+ */
+public class SsoAuthRealmFixture {
+    private final InMemoryUserService users = new InMemoryUserService();
+    private final InMemoryRoleService roles = new InMemoryRoleService();
+    private final InMemoryClusterConfigService clusterConfig = new InMemoryClusterConfigService();
+    private final InMemoryLdapDirectory ldap = new InMemoryLdapDirectory(users).enabled(false);
+    private final InMemoryUserFieldUpdater userFieldUpdater = new InMemoryUserFieldUpdater(users);
+    private final Set<IpSubnet> trustedProxies = new LinkedHashSet<>();
+    private final SsoAuthMetrics metrics = new SsoAuthMetrics(new MetricRegistry());
+    private final RejectionTracker rejections = new RejectionTracker();
+    private final AuditEventSender auditEventSender = mock(AuditEventSender.class);
+    private final SsoAuditBuffer auditBuffer = new SsoAuditBuffer(auditEventSender, mock(NodeId.class), metrics);
+    private final UserWriteBehindQueue writeBehindQueue = new UserWriteBehindQueue(userFieldUpdater, metrics);
+    private final SessionTracker sessionTracker = new SessionTracker();
+    private final SsoAuthenticationCache authenticationCache = new SsoAuthenticationCache();
+    private final LdapSyncScheduler ldapSyncScheduler = new LdapSyncScheduler();
+    private final WarmedUserCache warmedUsers = new WarmedUserCache();
+
+    public SsoAuthRealmFixture() {
+        // starting it does nothing, but only a started service is shut down when stopped
+        ldapSyncScheduler.startAsync().awaitRunning();
+    }
+
+    public InMemoryUserService users() {
+        return users;
+    }
+
+    public InMemoryRoleService roles() {
+        return roles;
+    }
+
+    public InMemoryClusterConfigService clusterConfig() {
+        return clusterConfig;
+    }
+
+    public InMemoryLdapDirectory ldap() {
+        return ldap;
+    }
+
+    public InMemoryUserFieldUpdater userFieldUpdater() {
+        return userFieldUpdater;
+    }
+
+    /**
+     * Not started, start it to use write-behind.
+     */
+    public UserWriteBehindQueue writeBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    public SsoAuthMetrics metrics() {
+        return metrics;
+    }
+
+    public SessionTracker sessionTracker() {
+        return sessionTracker;
+    }
+
+    /**
+     * Running, its threads are started on demand and time out when idle. Stop it to end them right away.
+     */
+    public LdapSyncScheduler ldapSyncScheduler() {
+        return ldapSyncScheduler;
+    }
+
+    public WarmedUserCache warmedUsers() {
+        return warmedUsers;
+    }
+
+    public SsoAuthenticationCache authenticationCache() {
+        return authenticationCache;
+    }
+
+    public RejectionTracker rejections() {
+        return rejections;
+    }
+
+    public AuditEventSender auditEventSender() {
+        return auditEventSender;
+    }
+
+    /**
+     * Not started, start it to record audit events.
+     */
+    public SsoAuditBuffer auditBuffer() {
+        return auditBuffer;
+    }
+
+    public SsoAuthRealmFixture config(SsoAuthConfig config) {
+        clusterConfig.with(SsoAuthConfig.class, config);
+        return this;
+    }
+
+    public SsoAuthRealmFixture trustedProxies(String... cidrs) {
+        for (String cidr : cidrs) {
+            try {
+                trustedProxies.add(new IpSubnet(cidr));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(cidr, e);
+            }
+        }
+        return this;
+    }
+
+    public SsoAuthRealm buildRealm() {
+        final RoleNameResolver roleNameResolver = new RoleNameResolver(roles.service(),
+                                                                       MoreExecutors.directExecutor(),
+                                                                       Ticker.systemTicker());
+        final SsoAuthConfigProvider configProvider = new SsoAuthConfigProvider(clusterConfig.service(),
+                                                                               metrics,
+                                                                               new EventBus());
+        final SsoCircuitBreakers circuitBreakers = new SsoCircuitBreakers(configProvider,
+                                                                          metrics,
+                                                                          MoreExecutors.directExecutor(),
+                                                                          Ticker.systemTicker());
+        return new SsoAuthRealm(users.service(),
+                                configProvider,
+                                roleNameResolver,
+                                new LdapUserSync(ldap.authenticator(),
+                                                 users.service(),
+                                                 metrics,
+                                                 circuitBreakers,
+                                                 ldapSyncScheduler,
+                                                 warmedUsers),
+                                Collections.unmodifiableSet(trustedProxies),
+                                new SsoUserFactory(users.service(), roleNameResolver),
+                                userFieldUpdater,
+                                writeBehindQueue,
+                                new SsoAuthRealmContext(authenticationCache,
+                                                        new UnknownUserCache(),
+                                                        new SignedTokenCache(metrics),
+                                                        new AdmissionController(metrics),
+                                                        circuitBreakers,
+                                                        sessionTracker,
+                                                        rejections,
+                                                        auditBuffer),
+                                metrics);
+    }
+
+    /**
+     * @param headers alternating header names and values
+     */
+    public static HttpHeadersToken token(String remoteAddr, String... headers) {
+        final MultivaluedStringMap headerMap = new MultivaluedStringMap();
+        for (int i = 0; i < headers.length; i += 2) {
+            // Jersey lowercases all header names
+            headerMap.add(headers[i].toLowerCase(Locale.ENGLISH), headers[i + 1]);
+        }
+        return new HttpHeadersToken(headerMap, remoteAddr, remoteAddr);
+    }
+}
@@ -16,35 +16,37 @@
  */
 package org.graylog.plugins.auth.sso;
 
-import com.google.common.collect.Maps;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
 import org.apache.shiro.authc.AuthenticationInfo;
-import org.glassfish.jersey.internal.util.collection.MultivaluedStringMap;
+import org.graylog.plugins.auth.sso.audit.SsoAuthAuditEventTypes;
+import org.graylog2.audit.AuditActor;
+import org.graylog2.cluster.ClusterConfigChangedEvent;
 import org.graylog2.plugin.cluster.ClusterConfigService;
 import org.graylog2.plugin.database.users.User;
-import org.graylog2.security.PasswordAlgorithmFactory;
-import org.graylog2.security.hashing.SHA1HashPasswordAlgorithm;
-import org.graylog2.security.realm.LdapUserAuthenticator;
-import org.graylog2.shared.security.HttpHeadersToken;
-import org.graylog2.shared.security.Permissions;
-import org.graylog2.shared.users.UserService;
-import org.graylog2.users.RoleImpl;
-import org.graylog2.users.RoleService;
-import org.graylog2.users.UserImpl;
-import org.graylog2.utilities.IpSubnet;
+import org.graylog2.shared.security.ShiroSecurityContext;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Test;
-import org.mockito.Mockito;
 
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.core.MultivaluedHashMap;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -53,150 +55,729 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SsoAuthRealmTest {
 
+    private static SsoAuthMetrics metrics() {
+        return new SsoAuthMetrics(new MetricRegistry());
+    }
+
     @Test
-    public void checkSubnetConfig() throws UnknownHostException {
-        Set<IpSubnet> trustedProxies = Collections.singleton(new IpSubnet("192.168.0.0/24"));
-        final ClusterConfigService configService = mock(ClusterConfigService.class);
+    public void checkSubnetConfig() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .trustedProxies("192.168.0.0/24")
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .emailHeader("")
+                                .fullnameHeader("")
+                                .requireTrustedProxies(false)
+                                .syncRoles(false)
+                                .rolesHeader("Roles")
+                                .build());
+        fixture.users().add("horst");
+        final SsoAuthRealm realmSpy = spy(fixture.buildRealm());
+
+        final AuthenticationInfo info = realmSpy.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"));
+
+        assertThat(info).isNotNull();
+        assertThat(info.getPrincipals().getPrimaryPrincipal()).isEqualTo("horst");
+        assertThat(fixture.users().loads()).isEqualTo(1);
+        verify(realmSpy, never()).isTrustedProxy(anyString(), any());
+    }
+
+    @Test
+    public void testDefaultDomain() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .emailHeader(null)
+                                .fullnameHeader(null)
+                                .requireTrustedProxies(false)
+                                .defaultEmailDomain("domain.de")
+                                .syncRoles(false)
+                                .rolesHeader("Roles")
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"))).isNotNull();
+
+        assertThat(fixture.users().size()).isEqualTo(1);
+        assertThat(fixture.users().service().load("horst").getEmail()).isEqualTo("horst@domain.de");
+    }
+
+    @Test
+    public void testDefaultDomainNotSet() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .emailHeader(null)
+                                .fullnameHeader(null)
+                                .requireTrustedProxies(false)
+                                .syncRoles(false)
+                                .rolesHeader("Roles")
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"))).isNotNull();
+
+        assertThat(fixture.users().size()).isEqualTo(1);
+        assertThat(fixture.users().service().load("horst").getEmail()).isEqualTo("horst@localhost");
+    }
+
+    @Test
+    public void configIsNotLookedUpPerRequest() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .build());
+        fixture.users().add("horst");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"))).isNotNull();
+        final long roleQueries = fixture.roles().queries();
+        for (int i = 0; i < 99; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"))).isNotNull();
+        }
+
+        assertThat(fixture.clusterConfig().reads()).isEqualTo(1);
+        assertThat(fixture.roles().queries()).isEqualTo(roleQueries);
+    }
 
+    @Test
+    public void configIsReloadedOnClusterConfigChange() {
+        final ClusterConfigService configService = mock(ClusterConfigService.class);
         when(configService.getOrDefault(any(), any()))
                 .thenReturn(SsoAuthConfig.builder()
                                     .usernameHeader("X-Remote-User")
                                     .autoCreateUser(false)
-                                    .emailHeader("")
-                                    .fullnameHeader("")
                                     .requireTrustedProxies(false)
-                                    .syncRoles(false)
-                                    .rolesHeader("Roles")
+                                    .build())
+                .thenReturn(SsoAuthConfig.builder()
+                                    .usernameHeader("X-Other-User")
+                                    .autoCreateUser(false)
+                                    .requireTrustedProxies(false)
                                     .build());
 
-        final UserService userService = mock(UserService.class);
-        when(userService.load(eq("horst"))).thenReturn(new UserImpl(mock(PasswordAlgorithmFactory.class),
-                                                                    mock(Permissions.class),
-                                                                    Maps.newHashMap()));
-        final SsoAuthRealm realm = new SsoAuthRealm(userService,
-                                                    configService,
-                                                    mock(RoleService.class),
-                                                    mock(LdapUserAuthenticator.class),
-                                                    trustedProxies);
-
-        final MultivaluedStringMap headers = new MultivaluedStringMap();
-        // headers must be lowercase, jersey does this the same way
-        headers.put("x-remote-user", Collections.singletonList("horst"));
-        final HttpHeadersToken headersToken = new HttpHeadersToken(headers, "192.168.0.1", "192.168.0.1");
-        final SsoAuthRealm realmSpy = spy(realm);
-        final AuthenticationInfo info = realmSpy.doGetAuthenticationInfo(headersToken);
+        final EventBus eventBus = new EventBus();
+        final SsoAuthConfigProvider configProvider = new SsoAuthConfigProvider(configService, metrics(), eventBus);
+        assertThat(configProvider.get().usernameHeader()).isEqualTo("x-remote-user");
 
-        assertThat(info).isNotNull();
-        assertThat(info.getPrincipals().getPrimaryPrincipal()).isNotNull();
+        // unrelated config changes must not trigger a reload
+        eventBus.post(ClusterConfigChangedEvent.create(DateTime.now(DateTimeZone.UTC), "node", "some.other.Config"));
+        assertThat(configProvider.get().usernameHeader()).isEqualTo("x-remote-user");
 
-        verify(userService).load(eq("horst"));
-        verify(realmSpy, never()).inTrustedSubnets(anyString());
+        eventBus.post(ClusterConfigChangedEvent.create(DateTime.now(DateTimeZone.UTC), "node", SsoAuthConfig.class.getCanonicalName()));
+        assertThat(configProvider.get().usernameHeader()).isEqualTo("x-other-user");
+        verify(configService, times(2)).getOrDefault(eq(SsoAuthConfig.class), any());
     }
 
     @Test
-    public void testDefaultDomain() {
+    public void repeatedRequestsAreServedFromCache() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .emailHeader("X-Email")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .authCacheMaxSize(100)
+                                .authCacheTtlSeconds(60)
+                                .build());
+        fixture.users().add("horst");
+        final SsoAuthRealm realm = fixture.buildRealm();
 
-        final ClusterConfigService configService = mock(ClusterConfigService.class);
+        for (int i = 0; i < 10; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst", "X-Email", "horst@example.com"))).isNotNull();
+        }
+        assertThat(fixture.users().loads()).isEqualTo(1);
 
-        when(configService.getOrDefault(any(), any()))
-                .thenReturn(SsoAuthConfig.builder()
-                                    .usernameHeader("X-Remote-User")
-                                    .autoCreateUser(true)
-                                    .emailHeader(null)
-                                    .fullnameHeader(null)
-                                    .requireTrustedProxies(false)
-                                    .defaultEmailDomain("domain.de")
-                                    .syncRoles(false)
-                                    .rolesHeader("Roles")
-                                    .build());
+        // a different email header must not be served from the cache
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst", "X-Email", "horst@example.org"))).isNotNull();
+        assertThat(fixture.users().loads()).isEqualTo(2);
+
+        assertThat(fixture.authenticationCache().stats().hitCount()).isEqualTo(9);
+        assertThat(fixture.authenticationCache().stats().missCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void outcomesAreCounted() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .trustedProxies("192.168.0.0/24")
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(true)
+                                .build());
+        fixture.users().add("horst");
+        final SsoAuthRealm realm = fixture.buildRealm();
+        final SsoAuthMetrics metrics = fixture.metrics();
+
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "horst"));
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "horst"));
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "X-Remote-User", "unknown"));
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1"));
+
+        assertThat(metrics.authenticated().getCount()).isEqualTo(1);
+        assertThat(metrics.untrustedProxy().getCount()).isEqualTo(1);
+        assertThat(metrics.unknownUser().getCount()).isEqualTo(1);
+        assertThat(metrics.noHeader().getCount()).isEqualTo(1);
+        assertThat(metrics.userLoad().timer().getCount()).isEqualTo(2);
+        assertThat(metrics.registry().getNames()).allMatch(name -> name.startsWith("org.graylog.plugins.auth.sso."));
+    }
+
+    @Test
+    public void createdUsersGetTheDefaultGroup() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .defaultGroup("Support")
+                                .build());
+        final String supportRoleId = fixture.roles().add("Support");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+
+        assertThat(fixture.users().service().load("horst").getRoleIds()).containsOnly(supportRoleId);
+    }
+
+    @Test
+    public void createdUsersGetTheReaderRoleIfTheDefaultGroupDoesNotExist() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .defaultGroup("Support")
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+
+        assertThat(fixture.users().service().load("horst").getRoleIds()).containsOnly(fixture.roles().readerRoleId());
+    }
+
+    @Test
+    public void unknownUsersAreRememberedIfAutoCreateIsDisabled() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNull();
+        }
+
+        assertThat(fixture.users().loads()).isEqualTo(1);
+        assertThat(fixture.metrics().unknownUser().getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void unknownUsersCreatedElsewhereAreAccepted() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .unknownUserCacheTtlSeconds(60)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNull();
+        // created by an admin or on another node, neither of which the realm gets to know about
+        fixture.users().add("ghost");
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNotNull();
+        assertThat(fixture.metrics().unknownUser().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void unknownUsersAreNotRememberedIfCacheIsDisabled() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .unknownUserCacheTtlSeconds(0)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"));
+        fixture.users().add("ghost");
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNotNull();
+    }
+
+    @Test
+    public void autoCreationIsLimitedPerProxy() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .admissionProxyRate(1)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "user1"))).isNotNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "user2"))).isNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.2", "X-Remote-User", "user2"))).isNotNull();
+        // existing users are not subject to admission
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "user1"))).isNotNull();
 
-        final UserService userService = mock(UserService.class);
-        final UserImpl user = new UserImpl(
-                new PasswordAlgorithmFactory(Collections.emptyMap(),
-                                             new SHA1HashPasswordAlgorithm("1234567890")),
-                mock(Permissions.class),
-                Maps.newHashMap());
-        when(userService.create()).thenReturn(user);
-
-        final RoleService roleService = mock(RoleService.class);
-        when(roleService.getReaderRoleObjectId()).thenReturn("57a1d276227c473674e1d997");
-        final SsoAuthRealm realm = new SsoAuthRealm(userService,
-                                                    configService,
-                                                    roleService,
-                                                    mock(LdapUserAuthenticator.class),
-                                                    Collections.emptySet());
-
-        final MultivaluedStringMap headers = new MultivaluedStringMap();
-        // headers must be lowercase, jersey does this the same way
-        headers.put("x-remote-user", Collections.singletonList("horst"));
-        final HttpHeadersToken headersToken = new HttpHeadersToken(headers, "192.168.0.1", "192.168.0.1");
-        final SsoAuthRealm realmSpy = spy(realm);
-        final AuthenticationInfo info = realmSpy.doGetAuthenticationInfo(headersToken);
+        assertThat(fixture.users().size()).isEqualTo(2);
+        assertThat(fixture.metrics().admissionRejected(AdmissionController.Operation.AUTO_CREATE).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectedRoleWritesKeepStoredRoles() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture();
+        final User user = fixture.users().add("horst", "stored");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.syncUserRoles(Collections.emptySet(), user, () -> false, false, null)).isFalse();
+
+        assertThat(user.getRoleIds()).containsOnly("stored");
+        assertThat(fixture.userFieldUpdater().updates()).isZero();
+    }
+
+    @Test
+    public void signedTokenModeUsesVerifiedClaims() {
+        final String secret = SignedTokens.hmacSecret();
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .syncRoles(true)
+                                .signedTokenHeader("X-Identity")
+                                .signedTokenHmacSecret(secret)
+                                .build());
+        final String adminRoleId = fixture.roles().add("Admin");
+        final SsoAuthRealm realm = fixture.buildRealm();
+        final long expiresAt = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 300;
+        final String token = SignedTokens.hmac("HS256", secret, SignedTokens.claims("horst", expiresAt, "Admin"));
+
+        // plain headers are ignored in signed token mode
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "admin"))).isNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Identity", token + "x"))).isNull();
+        final AuthenticationInfo info = realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Identity", token));
 
         assertThat(info).isNotNull();
-        verify(userService).create();
-        assertThat(user.getEmail()).isEqualTo("horst@domain.de");
+        assertThat(info.getPrincipals().getPrimaryPrincipal()).isEqualTo("horst");
+        final User user = fixture.users().service().load("horst");
+        assertThat(user.getEmail()).isEqualTo("horst@example.org");
+        assertThat(user.getFullName()).isEqualTo("horst Example");
+        assertThat(user.getRoleIds()).containsOnly(adminRoleId);
+        assertThat(fixture.metrics().noHeader().getCount()).isEqualTo(1);
+        assertThat(fixture.metrics().invalidToken().getCount()).isEqualTo(1);
     }
 
     @Test
-    public void testDefaultDomainNotSet() {
+    public void groupsAreMappedToRoles() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .syncRoles(true)
+                                .rolesHeader("X-Groups")
+                                .roleMappingRules(ImmutableList.of(
+                                        RoleMappingRule.create(RoleMappingRule.Type.PREFIX, "Graylog-Admins-", "Admin"),
+                                        RoleMappingRule.create(RoleMappingRule.Type.GLOB, "*.readers.*", "Reader")))
+                                .roleMappingPassthrough(false)
+                                .build());
+        final String adminRoleId = fixture.roles().add("Admin");
+        final String readerRoleId = fixture.roles().add("Reader");
+        fixture.roles().add("Other");
+        final SsoAuthRealm realm = fixture.buildRealm();
 
-        final ClusterConfigService configService = mock(ClusterConfigService.class);
+        realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1",
+                                                                "X-Remote-User", "horst",
+                                                                "X-Groups", "graylog-admins-eu, team.Readers.all, Other"));
 
-        when(configService.getOrDefault(any(), any()))
-                .thenReturn(SsoAuthConfig.builder()
-                                    .usernameHeader("X-Remote-User")
-                                    .autoCreateUser(true)
-                                    .emailHeader(null)
-                                    .fullnameHeader(null)
-                                    .requireTrustedProxies(false)
-                                    .syncRoles(false)
-                                    .rolesHeader("Roles")
-                                    .build());
+        assertThat(fixture.users().service().load("horst").getRoleIds()).containsOnly(adminRoleId, readerRoleId);
+    }
+
+    @Test
+    public void roleChangesAreWrittenBehind() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .syncRoles(true)
+                                .rolesHeader("X-Roles")
+                                .writeBehind(true)
+                                .build());
+        final String adminRoleId = fixture.roles().add("Admin");
+        final SsoAuthRealm realm = fixture.buildRealm();
+        fixture.writeBehindQueue().startAsync().awaitRunning();
 
-        final UserService userService = mock(UserService.class);
-        final UserImpl user = new UserImpl(
-                new PasswordAlgorithmFactory(Collections.emptyMap(),
-                                             new SHA1HashPasswordAlgorithm("1234567890")),
-                mock(Permissions.class),
-                Maps.newHashMap());
-        when(userService.create()).thenReturn(user);
-
-        final RoleService roleService = mock(RoleService.class);
-        when(roleService.getReaderRoleObjectId()).thenReturn("57a1d276227c473674e1d997");
-        final SsoAuthRealm realm = new SsoAuthRealm(userService,
-                                                    configService,
-                                                    roleService,
-                                                    mock(LdapUserAuthenticator.class),
-                                                    Collections.emptySet());
-
-        final MultivaluedStringMap headers = new MultivaluedStringMap();
-        // headers must be lowercase, jersey does this the same way
-        headers.put("x-remote-user", Collections.singletonList("horst"));
-        final HttpHeadersToken headersToken = new HttpHeadersToken(headers, "192.168.0.1", "192.168.0.1");
-        final SsoAuthRealm realmSpy = spy(realm);
-        final AuthenticationInfo info = realmSpy.doGetAuthenticationInfo(headersToken);
+        final AuthenticationInfo info = realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1",
+                                                                                                "X-Remote-User", "horst",
+                                                                                                "X-Roles", "Admin"));
+        fixture.writeBehindQueue().stopAsync().awaitTerminated();
 
         assertThat(info).isNotNull();
-        verify(userService).create();
-        assertThat(user.getEmail()).isEqualTo("horst@localhost");
+        assertThat(fixture.users().service().load("horst").getRoleIds()).containsOnly(adminRoleId);
+        assertThat(fixture.userFieldUpdater().updates()).isEqualTo(1);
+        assertThat(fixture.metrics().writeBehindRejected().getCount()).isZero();
     }
-    
+
+    @Test
+    public void rolesOfLocalUsersAreNotSynced() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .syncRoles(true)
+                                .rolesHeader("X-Roles")
+                                .circuitBreaker(true)
+                                .circuitBreakerWindowSize(1)
+                                .circuitBreakerFailureRate(100)
+                                .circuitBreakerOpenSeconds(60)
+                                .build());
+        final String adminRoleId = fixture.roles().add("Admin");
+        fixture.users().addLocal("admin", adminRoleId);
+        fixture.users().add("horst");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "admin", "X-Roles", "Reader"))).isNotNull();
+
+        assertThat(fixture.users().service().load("admin").getRoleIds()).containsOnly(adminRoleId);
+        assertThat(fixture.userFieldUpdater().updates()).isZero();
+        // the skipped write did not count as a MongoDB failure
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+        assertThat(fixture.metrics().mongoCircuitOpen().getCount()).isZero();
+    }
+
+    @Test
+    public void storedRolesFingerprintSkipsRoleResolutionOnOtherNodes() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .syncRoles(true)
+                                .rolesHeader("X-Roles")
+                                .build());
+        final String adminRoleId = fixture.roles().add("Admin");
+        fixture.users().add("horst", adminRoleId);
+
+        // roles are in sync already, only the fingerprint is written
+        assertThat(fixture.buildRealm().doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Roles", "Admin"))).isNotNull();
+        assertThat(fixture.userFieldUpdater().updates()).isEqualTo(1);
+        assertThat(fixture.metrics().roleSyncSkipped().getCount()).isZero();
+
+        // a node with cold caches finds the fingerprint on the user
+        assertThat(fixture.buildRealm().doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Roles", "Admin"))).isNotNull();
+        assertThat(fixture.metrics().roleSyncSkipped().getCount()).isEqualTo(1);
+        assertThat(fixture.userFieldUpdater().updates()).isEqualTo(1);
+
+        // roles changed by somebody else invalidate the fingerprint
+        fixture.users().service().load("horst").setRoleIds(Collections.emptySet());
+        assertThat(fixture.buildRealm().doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Roles", "Admin"))).isNotNull();
+        assertThat(fixture.metrics().roleSyncSkipped().getCount()).isEqualTo(1);
+        assertThat(fixture.users().service().load("horst").getRoleIds()).containsOnly(adminRoleId);
+        assertThat(fixture.userFieldUpdater().updates()).isEqualTo(2);
+    }
+
+    @Test
+    public void concurrentFirstRequestsCreateTheUserOnce() throws Exception {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .build());
+        fixture.users().withLatency(5, TimeUnit.MILLISECONDS);
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<AuthenticationInfo>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))));
+            }
+            for (Future<AuthenticationInfo> result : results) {
+                assertThat(result.get()).isNotNull();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(fixture.users().duplicateCreations()).isZero();
+        assertThat(fixture.users().saves()).isEqualTo(1);
+    }
+
+    @Test
+    public void sessionsAreOnlyCreatedForTheFirstRequestPerFingerprint() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .authCacheMaxSize(100)
+                                .sessionPolicy(SsoAuthConfig.SessionPolicy.PER_FINGERPRINT)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+            assertThat(ShiroSecurityContext.isSessionCreationRequested()).isEqualTo(i == 0);
+        }
+
+        assertThat(fixture.metrics().sessionsCreated().getCount()).isEqualTo(1);
+        assertThat(fixture.metrics().sessionsSkipped().getCount()).isEqualTo(2);
+
+        // a browser without a session cookie, e.g. after a logout, always gets a new session
+        for (int i = 0; i < 2; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst",
+                                                                               "User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:80.0) Gecko/20100101 Firefox/80.0"))).isNotNull();
+            assertThat(ShiroSecurityContext.isSessionCreationRequested()).isTrue();
+        }
+
+        assertThat(fixture.metrics().sessionsCreated().getCount()).isEqualTo(3);
+        assertThat(fixture.metrics().sessionsSkipped().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void headerProfilesAreSelectedBySourceSubnet() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .trustedProxies("127.0.0.1/32")
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(true)
+                                .headerProfiles(ImmutableList.of(
+                                        SsoHeaderProfile.create("partner", ImmutableList.of("10.0.0.0/8"), "X-Partner-User",
+                                                                null, null, false, false, null),
+                                        SsoHeaderProfile.create("gateway", ImmutableList.of("10.1.0.0/16"), "X-Gateway-User",
+                                                                null, null, true, false, null)))
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        // the more specific subnet wins
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.1.2.3", "X-Gateway-User", "bot"))).isNotNull();
+        // the partner profile does not create users and ignores the default header
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.2.0.1", "X-Partner-User", "guest"))).isNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.2.0.1", "Remote-User", "horst"))).isNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.2.0.1", "X-Partner-User", "bot"))).isNotNull();
+        // other addresses use the default headers and trusted proxies
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "Remote-User", "horst"))).isNotNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("192.168.0.1", "Remote-User", "horst"))).isNull();
+
+        assertThat(fixture.users().size()).isEqualTo(2);
+        assertThat(fixture.metrics().profile("gateway").requests().getCount()).isEqualTo(1);
+        assertThat(fixture.metrics().profile("gateway").authenticated().getCount()).isEqualTo(1);
+        assertThat(fixture.metrics().profile("partner").requests().getCount()).isEqualTo(3);
+        assertThat(fixture.metrics().profile("partner").authenticated().getCount()).isEqualTo(1);
+        assertThat(fixture.metrics().untrustedProxy().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectionsAreCountedPerSource() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .trustedProxies("127.0.0.1/32")
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(true)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "Remote-User", "horst"))).isNull();
+        }
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "Remote-User", "nobody"))).isNull();
+
+        assertThat(fixture.rejections().top(10)).containsExactly(
+                SourceRejections.create("10.0.0.1", 3, 0, 0),
+                SourceRejections.create("127.0.0.1", 0, 0, 1));
+    }
+
+    @Test
+    public void createdUsersRoleChangesAndRejectionsAreAudited() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .trustedProxies("127.0.0.1/32")
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(true)
+                                .syncRoles(true)
+                                .rolesHeader("X-Roles")
+                                .build());
+        fixture.roles().add("Admin");
+        final SsoAuthRealm realm = fixture.buildRealm();
+        fixture.auditBuffer().startAsync().awaitRunning();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Roles", "Admin"))).isNotNull();
+        for (int i = 0; i < 3; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "mallory"))).isNull();
+        }
+        fixture.auditBuffer().stopAsync().awaitTerminated();
+
+        verify(fixture.auditEventSender()).success(any(), eq(SsoAuthAuditEventTypes.USER_CREATE),
+                                                   eq(ImmutableMap.<String, Object>of("remote_address", "127.0.0.1")));
+        verify(fixture.auditEventSender()).success(any(), eq(SsoAuthAuditEventTypes.USER_ROLES_UPDATE), any());
+        // the later rejections fall into the audit window of the first one
+        verify(fixture.auditEventSender()).failure(any(), eq(SsoAuthAuditEventTypes.LOGIN_REJECT),
+                                                   eq(ImmutableMap.<String, Object>of("remote_address", "10.0.0.1",
+                                                                                      "reason", "untrusted_proxy")));
+        verify(fixture.auditEventSender()).failure(any(), eq(SsoAuthAuditEventTypes.LOGIN_REJECT), any());
+        assertThat(fixture.metrics().auditDropped().getCount()).isZero();
+    }
+
+    @Test
+    public void rejectedUsersOfOneProxyAreAuditedSeparately() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .build());
+        final SsoAuthRealm realm = fixture.buildRealm();
+        fixture.auditBuffer().startAsync().awaitRunning();
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "horst"))).isNull();
+            assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("10.0.0.1", "X-Remote-User", "karl"))).isNull();
+        }
+        fixture.auditBuffer().stopAsync().awaitTerminated();
+
+        final Map<String, Object> context = ImmutableMap.<String, Object>of("remote_address", "10.0.0.1", "reason", "unknown_user");
+        verify(fixture.auditEventSender()).failure(eq(AuditActor.user("horst")), eq(SsoAuthAuditEventTypes.LOGIN_REJECT), eq(context));
+        verify(fixture.auditEventSender()).failure(eq(AuditActor.user("karl")), eq(SsoAuthAuditEventTypes.LOGIN_REJECT), eq(context));
+        verify(fixture.auditEventSender(), times(2)).failure(any(), eq(SsoAuthAuditEventTypes.LOGIN_REJECT), any());
+    }
+
+    @Test
+    public void invalidHeaderProfilesAreRejected() {
+        final SsoAuthConfig config = SsoAuthConfig.defaultConfig("").toBuilder()
+                .headerProfiles(ImmutableList.of(SsoHeaderProfile.create("partner", ImmutableList.of("not-a-subnet"), "X-Partner-User",
+                                                                         null, null, false, false, null)))
+                .build();
+
+        assertThatThrownBy(() -> CompiledSsoAuthConfig.validate(config))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("partner");
+    }
+
+    @Test
+    public void newUsersAreNotCreatedWhileTheirLdapSyncIsRunning() throws InterruptedException {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .ldapSyncTimeoutMillis(20)
+                                .build());
+        fixture.ldap().add("horst").withLatency(300, TimeUnit.MILLISECONDS);
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNull();
+        assertThat(fixture.metrics().ldapSyncTimeouts().getCount()).isEqualTo(1);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (fixture.users().size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+        assertThat(fixture.users().size()).isEqualTo(1);
+        assertThat(fixture.users().duplicateCreations()).isZero();
+    }
+
+    @Test
+    public void failingLdapIsSkippedOnceItsCircuitBreakerOpens() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .autoCreateUser(true)
+                                .requireTrustedProxies(false)
+                                .circuitBreaker(true)
+                                .circuitBreakerWindowSize(2)
+                                .circuitBreakerOpenSeconds(60)
+                                .build());
+        fixture.users().add("horst");
+        fixture.ldap().add("horst").add("new").failWith(new IllegalStateException("LDAP is down"));
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst")))
+                    .isInstanceOf(IllegalStateException.class);
+        }
+        assertThat(fixture.ldap().syncs()).isEqualTo(2);
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst"))).isNotNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "new"))).isNull();
+        assertThat(fixture.ldap().syncs()).isEqualTo(2);
+        assertThat(fixture.users().size()).isEqualTo(1);
+        assertThat(fixture.metrics().ldapCircuitOpen().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void cachedUsersAreServedWhileTheMongoCircuitBreakerIsOpen() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture()
+                .config(SsoAuthConfig.builder()
+                                .usernameHeader("X-Remote-User")
+                                .emailHeader("X-Email")
+                                .autoCreateUser(false)
+                                .requireTrustedProxies(false)
+                                .authCacheMaxSize(100)
+                                .authCacheTtlSeconds(60)
+                                .unknownUserCacheTtlSeconds(60)
+                                .circuitBreaker(true)
+                                .circuitBreakerWindowSize(2)
+                                .circuitBreakerFailureRate(100)
+                                .circuitBreakerOpenSeconds(60)
+                                .build());
+        fixture.users().add("horst");
+        fixture.users().add("kevin");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Email", "old@example.com"))).isNotNull();
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNull();
+        fixture.users().failWith(new IllegalStateException("MongoDB is down"));
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "kevin")))
+                    .isInstanceOf(IllegalStateException.class);
+        }
+        final long loads = fixture.users().loads();
+
+        // changed headers miss the cache, the last account of the user is used instead
+        final AuthenticationInfo info = realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "horst", "X-Email", "new@example.com"));
+        assertThat(info).isNotNull();
+        assertThat(info.getPrincipals().getPrimaryPrincipal()).isEqualTo("horst");
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "ghost"))).isNull();
+        // fails closed for users nothing is known about
+        assertThat(realm.doGetAuthenticationInfo(SsoAuthRealmFixture.token("127.0.0.1", "X-Remote-User", "kevin"))).isNull();
+        assertThat(fixture.users().loads()).isEqualTo(loads);
+        assertThat(fixture.metrics().mongoCircuitOpen().getCount()).isEqualTo(3);
+        assertThat(fixture.metrics().unknownUser().getCount()).isEqualTo(2);
+    }
+
     @Test
     public void testHeaderValuesCsv() {
         MultivaluedHashMap<String, String> m = new MultivaluedHashMap<>();
         m.put("roles", Arrays.asList(new String[]{"role1, role2, role3"}));
         m.put("roles_1", Arrays.asList(new String[]{"asdf1"}));
         m.put("roles_2", Arrays.asList(new String[]{"asdf2"}));
+        m.put("x-other", Arrays.asList(new String[]{"other"}));
         
-        SsoAuthRealm r = new SsoAuthRealm(null, null, null, null, Collections.emptySet());
-        Optional<List<String>> s = r.headerValues(m, "Roles");
-        Set<String> actual = r.csv(s.get());
+        Set<String> actual = SsoHeaders.prefixedCsvValues(m, "roles");
         List<String> expected = Arrays.asList(new String[]{"role1","role2","role3","asdf1","asdf2"});
         
         assertEquals(actual.size(), expected.size());
@@ -207,59 +788,56 @@ public class SsoAuthRealmTest {
         }
         
     }
+
+    @Test
+    public void testSplitCsv() {
+        final List<String> tokens = new ArrayList<>();
+        SsoHeaders.splitCsv(" a,b , ,c,,  d d ,", tokens);
+        assertThat(tokens).containsExactly("a", "b", "c", "d d");
+
+        tokens.clear();
+        SsoHeaders.splitCsv("", tokens);
+        SsoHeaders.splitCsv(" , ", tokens);
+        assertThat(tokens).isEmpty();
+
+        final String single = "single";
+        SsoHeaders.splitCsv(single, tokens);
+        assertThat(tokens.get(0)).isSameAs(single);
+    }
     
     @Test
-    public void testSyncRoles() throws Exception {
-        List<String> rolesCsv = Arrays.asList(new String[]{"role1","role2", "role3, role4"});
-        
-        User u = Mockito.spy(User.class);
-        Set<String> existingRoles = new HashSet<>();
-        
-        when(u.getRoleIds()).thenReturn(existingRoles);
-        
-        RoleService roleService = mock(RoleService.class);
-        UserService userService = mock(UserService.class);
-        
-        
-        when(roleService.exists(anyString())).thenReturn(true);
-        RoleImpl role1 = new RoleImpl();
-        role1._id = "1";
-        role1.name = "role1";
-        
-        when(roleService.load("role1")).thenReturn(role1);
-        
-        RoleImpl role2 = new RoleImpl();
-        role2._id = "2";
-        role2.name = "role2";
-        
-        when(roleService.load("role2")).thenReturn(role2);
-        
-        RoleImpl role3 = new RoleImpl();
-        role3._id = "3";
-        role3.name = "role3";
-        
-        when(roleService.load("role3")).thenReturn(role3);
-        RoleImpl role4 = new RoleImpl();
-        role4._id = "4";
-        role4.name = "role4";
-        
-        when(roleService.load("role4")).thenReturn(role4);
-        
-        Set<String> syncRoles = new HashSet<>();
-        syncRoles.add(role1._id);
-        syncRoles.add(role2._id);
-        syncRoles.add(role3._id);
-        syncRoles.add(role4._id);
-        
-        Mockito.doNothing().when(u).setRoleIds(syncRoles);
-        
-        when(userService.save(u)).thenReturn("user");
-        
-        SsoAuthRealm r = new SsoAuthRealm(userService, null, roleService, null, Collections.emptySet());
-        r.syncUserRoles(rolesCsv, u);
-        
-        verify(u).getRoleIds();
-        verify(u).setRoleIds(syncRoles);
-        verify(userService).save(u);
+    public void testSyncRoles() {
+        final Set<String> roleNames = new HashSet<>();
+        for (String rolesCsv : Arrays.asList("role1", "role2", "role3, role4")) {
+            SsoHeaders.splitCsv(rolesCsv, roleNames);
+        }
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture();
+        final Set<String> syncRoles = new HashSet<>();
+        for (String roleName : roleNames) {
+            syncRoles.add(fixture.roles().add(roleName));
+        }
+        final User user = fixture.users().add("horst");
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        realm.syncUserRoles(roleNames, user, () -> true, false, null);
+
+        assertThat(user.getRoleIds()).isEqualTo(syncRoles);
+        assertThat(fixture.userFieldUpdater().updates()).isEqualTo(1);
+        assertThat(fixture.users().saves()).isZero();
+        // all roles are resolved from a single bulk load
+        assertThat(fixture.roles().queries()).isEqualTo(1);
+    }
+
+    @Test
+    public void unchangedRolesAreNotWritten() {
+        final SsoAuthRealmFixture fixture = new SsoAuthRealmFixture();
+        final String roleId = fixture.roles().add("role1");
+        final User user = fixture.users().add("horst", roleId);
+        final SsoAuthRealm realm = fixture.buildRealm();
+
+        realm.syncUserRoles(Collections.singleton("Role1"), user, () -> true, false, null);
+
+        assertThat(fixture.userFieldUpdater().updates()).isZero();
+        assertThat(fixture.users().saves()).isZero();
     }
-}
\ No newline at end of file
+}
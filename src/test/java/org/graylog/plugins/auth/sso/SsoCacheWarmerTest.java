@@ -0,0 +1,143 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.graylog2.plugin.database.users.User;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SsoCacheWarmerTest {
+    private static final long INTERVAL = TimeUnit.MINUTES.toNanos(5);
+
+    private final SsoAuthMetrics metrics = new SsoAuthMetrics(new MetricRegistry());
+    private final InMemoryClusterConfigService clusterConfig = new InMemoryClusterConfigService();
+    private final InMemoryRoleService roles = new InMemoryRoleService();
+    private final InMemoryUserService users = new InMemoryUserService();
+    private final InMemoryLdapDirectory ldap = new InMemoryLdapDirectory(users);
+    private final RoleNameResolver roleNameResolver = new RoleNameResolver(roles.service(), MoreExecutors.directExecutor(), Ticker.systemTicker());
+    private final WarmedUserCache warmedUsers = new WarmedUserCache();
+    // background refreshes are not executed, so every sync in these tests happened on the calling thread
+    private final LdapUserSync ldapUserSync = new LdapUserSync(ldap.authenticator(),
+                                                               users.service(),
+                                                               metrics,
+                                                               SsoCircuitBreakers.disabled(metrics),
+                                                               new LdapSyncScheduler(mock(ExecutorService.class), Ticker.systemTicker()),
+                                                               warmedUsers);
+
+    private SsoCacheWarmer warmer(SsoAuthConfig config, SsoCacheWarmer.UserSource userSource) {
+        clusterConfig.with(SsoAuthConfig.class, config);
+        final SsoAuthConfigProvider configProvider = new SsoAuthConfigProvider(clusterConfig.service(), metrics, new EventBus());
+        return new SsoCacheWarmer(configProvider, roleNameResolver, ldapUserSync, warmedUsers, userSource);
+    }
+
+    private static SsoCacheWarmer.UserSource userSource(List<User> source) {
+        return (limit, consumer) -> {
+            int count = 0;
+            for (User user : source) {
+                if (count == limit) {
+                    break;
+                }
+                count++;
+                if (!consumer.test(user)) {
+                    break;
+                }
+            }
+            return count;
+        };
+    }
+
+    @Test
+    public void warmUpLoadsRolesAndUsers() {
+        final User horst = users.add("horst");
+        final User karl = users.add("karl");
+        ldap.add("horst").add("karl");
+        final SsoAuthConfig config = SsoAuthConfig.defaultConfig("").toBuilder().warmUp(true).warmUpMaxUsers(1).build();
+
+        warmer(config, userSource(ImmutableList.of(horst, karl))).startUp();
+        final long roleQueries = roles.queries();
+        final long userLoads = users.loads();
+
+        assertThat(roleNameResolver.resolve("Reader")).isEqualTo(roles.readerRoleId());
+        assertThat(roles.queries()).isEqualTo(roleQueries);
+        // warmed users are served from memory and synced in the background
+        assertThat(ldapUserSync.loadUser("horst", INTERVAL)).isSameAs(horst);
+        assertThat(users.loads()).isEqualTo(userLoads);
+        assertThat(ldap.syncs()).isZero();
+        // users beyond the limit are loaded and synced on first use
+        assertThat(ldapUserSync.loadUser("karl", INTERVAL)).isNotNull();
+        assertThat(ldap.syncs()).isEqualTo(1);
+    }
+
+    @Test
+    public void warmUpLoadsUsersWithoutLdap() {
+        final User horst = users.add("horst");
+        ldap.enabled(false);
+        final SsoAuthConfig config = SsoAuthConfig.defaultConfig("").toBuilder().warmUp(true).build();
+
+        warmer(config, userSource(ImmutableList.of(horst))).startUp();
+        final long userLoads = users.loads();
+
+        assertThat(ldapUserSync.loadUser("horst", INTERVAL)).isSameAs(horst);
+        assertThat(users.loads()).isEqualTo(userLoads);
+        // every warmed user is handed out once, later loads see the stored user
+        assertThat(ldapUserSync.loadUser("horst", INTERVAL)).isNotNull();
+        assertThat(users.loads()).isEqualTo(userLoads + 1);
+    }
+
+    @Test
+    public void warmUpIsSkippedIfDisabled() {
+        final AtomicInteger calls = new AtomicInteger();
+        final SsoCacheWarmer warmer = warmer(SsoAuthConfig.defaultConfig(""), (limit, consumer) -> calls.incrementAndGet());
+
+        warmer.startUp();
+
+        assertThat(calls.get()).isZero();
+    }
+
+    @Test
+    public void startUpDoesNotWaitLongerThanTheTimeout() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final SsoAuthConfig config = SsoAuthConfig.defaultConfig("").toBuilder().warmUp(true).warmUpTimeoutSeconds(1).build();
+        final SsoCacheWarmer warmer = warmer(config, (limit, consumer) -> {
+            int count = 0;
+            while (consumer.test(users.add("user" + count))) {
+                count++;
+            }
+            interrupted.countDown();
+            return count;
+        });
+
+        final long start = System.nanoTime();
+        warmer.startUp();
+
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(10));
+        assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SsoConfigResourceTest {
+    @Test
+    public void matchesEntityTags() {
+        assertThat(SsoConfigResource.matches(null, "abc")).isFalse();
+        assertThat(SsoConfigResource.matches("\"abc\"", "abc")).isTrue();
+        assertThat(SsoConfigResource.matches("W/\"abc\"", "abc")).isTrue();
+        assertThat(SsoConfigResource.matches("\"xyz\", \"abc\"", "abc")).isTrue();
+        assertThat(SsoConfigResource.matches("*", "abc")).isTrue();
+        assertThat(SsoConfigResource.matches("\"xyz\"", "abc")).isFalse();
+        assertThat(SsoConfigResource.matches("\"abcd\"", "abc")).isFalse();
+    }
+
+    @Test
+    public void secretsAreMaskedAndRestored() {
+        final SsoAuthConfig stored = config().signedTokenHmacSecret("c2VjcmV0").build();
+
+        final SsoAuthConfig masked = SsoConfigResource.masked(stored);
+        assertThat(masked.signedTokenHmacSecret()).isEqualTo(SsoConfigResource.MASKED_SECRET);
+        assertThat(SsoConfigResource.unmasked(masked, stored)).isEqualTo(stored);
+
+        final SsoAuthConfig changed = config().signedTokenHmacSecret("b3RoZXI=").build();
+        assertThat(SsoConfigResource.unmasked(changed, stored)).isEqualTo(changed);
+
+        final SsoAuthConfig withoutSecret = config().build();
+        assertThat(SsoConfigResource.masked(withoutSecret)).isEqualTo(withoutSecret);
+        assertThat(SsoConfigResource.unmasked(withoutSecret, stored)).isEqualTo(withoutSecret);
+    }
+
+    @Test
+    public void entityTagDependsOnTheSecretWithoutContainingIt() {
+        final SsoAuthConfig config = config().signedTokenHmacSecret("c2VjcmV0").build();
+
+        assertThat(CompiledSsoAuthConfig.etag(config))
+                .isEqualTo(CompiledSsoAuthConfig.etag(config().signedTokenHmacSecret("c2VjcmV0").build()))
+                .isNotEqualTo(CompiledSsoAuthConfig.etag(config().signedTokenHmacSecret("b3RoZXI=").build()))
+                .isNotEqualTo(CompiledSsoAuthConfig.etag(SsoConfigResource.masked(config)))
+                .isNotEqualTo(CompiledSsoAuthConfig.etag(config().signedTokenHmacSecret(null).build()));
+    }
+
+    private static SsoAuthConfig.Builder config() {
+        return SsoAuthConfig.builder()
+                .usernameHeader("Remote-User")
+                .requireTrustedProxies(true);
+    }
+}
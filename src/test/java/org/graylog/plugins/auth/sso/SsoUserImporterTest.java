@@ -0,0 +1,231 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.mongodb.DBCollection;
+import org.graylog2.plugin.database.ValidationException;
+import org.graylog2.plugin.database.users.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SsoUserImporterTest {
+    private InMemoryUserService users;
+    private InMemoryRoleService roles;
+    private InMemoryClusterConfigService clusterConfig;
+    private AtomicInteger existenceQueries;
+    private AtomicInteger inserts;
+    private SsoUserImporter importer;
+    private List<UserImportResult> results;
+    private int completedBatches;
+
+    @Before
+    public void setUp() {
+        users = new InMemoryUserService();
+        roles = new InMemoryRoleService();
+        clusterConfig = new InMemoryClusterConfigService()
+                .with(SsoAuthConfig.class, SsoAuthConfig.builder()
+                        .usernameHeader("Remote-User")
+                        .autoCreateUser(true)
+                        .requireTrustedProxies(true)
+                        .defaultEmailDomain("example.org")
+                        .build());
+        existenceQueries = new AtomicInteger();
+        inserts = new AtomicInteger();
+
+        final SsoAuthMetrics metrics = new SsoAuthMetrics(new MetricRegistry());
+        final RoleNameResolver roleNameResolver = new RoleNameResolver(roles.service(), MoreExecutors.directExecutor(), Ticker.systemTicker());
+        final UserBatchWriter userBatchWriter = new UserBatchWriter((DBCollection) null) {
+            @Override
+            public Set<String> existingUsernames(Collection<String> usernames) {
+                existenceQueries.incrementAndGet();
+                final Set<String> existing = new HashSet<>();
+                for (String username : usernames) {
+                    if (users.service().load(username) != null) {
+                        existing.add(username);
+                    }
+                }
+                return existing;
+            }
+
+            @Override
+            public Map<Integer, String> insert(List<User> newUsers) {
+                inserts.incrementAndGet();
+                for (User user : newUsers) {
+                    try {
+                        users.service().save(user);
+                    } catch (ValidationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return Collections.emptyMap();
+            }
+        };
+        importer = new SsoUserImporter(new SsoAuthConfigProvider(clusterConfig.service(), metrics, new EventBus()),
+                                       roleNameResolver,
+                                       new SsoUserFactory(users.service(), roleNameResolver),
+                                       users.service(),
+                                       userBatchWriter,
+                                       new UnknownUserCache());
+        results = new ArrayList<>();
+        completedBatches = 0;
+    }
+
+    private Map<UserImportResult.Status, Long> importUsers(String input, SsoUserImporter.Format format) throws IOException {
+        final UserImportSummary summary = new UserImportSummary();
+        importer.importUsers(new StringReader(input), format, new SsoUserImporter.ResultListener() {
+            @Override
+            public void onResult(UserImportResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onBatchComplete() {
+                completedBatches++;
+            }
+        }, summary);
+        return summary.counts();
+    }
+
+    @Test
+    public void importsNdjsonWithDefaults() throws Exception {
+        final String adminRoleId = roles.add("Admin");
+        users.add("existing");
+
+        final Map<UserImportResult.Status, Long> counts = importUsers(
+                "{\"username\":\"horst\",\"email\":\"horst@graylog.org\",\"full_name\":\"Horst Example\",\"groups\":[\"Admin\",\"Missing\"]}\n" +
+                        "\n" +
+                        "{\"username\":\"bernd\"}\n" +
+                        "{\"username\":\"existing\"}\n" +
+                        "{\"username\":\"horst\"}\n" +
+                        "{\"email\":\"nobody@example.org\"}\n" +
+                        "not json\n",
+                SsoUserImporter.Format.NDJSON);
+
+        assertThat(counts).containsOnly(entry(UserImportResult.Status.CREATED, 2L),
+                                        entry(UserImportResult.Status.EXISTS, 1L),
+                                        entry(UserImportResult.Status.DUPLICATE, 1L),
+                                        entry(UserImportResult.Status.INVALID, 2L));
+        assertThat(results).contains(UserImportResult.create(1, "horst", UserImportResult.Status.CREATED, "Unknown roles: [Missing]"),
+                                     UserImportResult.create(3, "bernd", UserImportResult.Status.CREATED, null),
+                                     UserImportResult.create(4, "existing", UserImportResult.Status.EXISTS, null),
+                                     UserImportResult.create(5, "horst", UserImportResult.Status.DUPLICATE, "User has already been imported in an earlier line"));
+
+        final User horst = users.service().load("horst");
+        assertThat(horst.getEmail()).isEqualTo("horst@graylog.org");
+        assertThat(horst.getFullName()).isEqualTo("Horst Example");
+        assertThat(horst.getRoleIds()).containsOnly(adminRoleId);
+        assertThat(horst.isExternalUser()).isTrue();
+
+        final User bernd = users.service().load("bernd");
+        assertThat(bernd.getEmail()).isEqualTo("bernd@example.org");
+        assertThat(bernd.getFullName()).isEqualTo("bernd");
+        assertThat(bernd.getRoleIds()).containsOnly(roles.readerRoleId());
+    }
+
+    @Test
+    public void importsCsv() throws Exception {
+        final String adminRoleId = roles.add("Admin");
+        final String editorRoleId = roles.add("Editor");
+
+        importUsers("Username,Groups,Email,Ignored\n" +
+                            "horst,\"Admin, Editor\",horst@graylog.org,x\n" +
+                            "bernd,,,\n",
+                    SsoUserImporter.Format.CSV);
+
+        assertThat(results).extracting(UserImportResult::status)
+                .containsExactly(UserImportResult.Status.CREATED, UserImportResult.Status.CREATED);
+        assertThat(users.service().load("horst").getRoleIds()).containsOnly(adminRoleId, editorRoleId);
+        assertThat(users.service().load("horst").getEmail()).isEqualTo("horst@graylog.org");
+        assertThat(users.service().load("bernd").getEmail()).isEqualTo("bernd@example.org");
+    }
+
+    @Test
+    public void csvWithoutUsernameColumnIsRejected() throws Exception {
+        importUsers("email,groups\nhorst@graylog.org,Admin\n", SsoUserImporter.Format.CSV);
+
+        assertThat(results).containsExactly(
+                UserImportResult.create(1, null, UserImportResult.Status.INVALID, "The CSV header has no username column"));
+        assertThat(users.size()).isZero();
+    }
+
+    @Test
+    public void summaryCoversTheRecordsBeforeAFailure() {
+        final UserImportSummary summary = new UserImportSummary();
+        final SsoUserImporter.ResultListener failingListener = new SsoUserImporter.ResultListener() {
+            @Override
+            public void onResult(UserImportResult result) throws IOException {
+                if (result.status() == UserImportResult.Status.INVALID) {
+                    throw new IOException("Client went away");
+                }
+            }
+
+            @Override
+            public void onBatchComplete() {
+            }
+        };
+
+        assertThatThrownBy(() -> importer.importUsers(new StringReader("{\"username\":\"horst\"}\n{\"username\":\"horst\"}\nnot json\n"),
+                                                      SsoUserImporter.Format.NDJSON,
+                                                      failingListener,
+                                                      summary))
+                .isInstanceOf(IOException.class);
+
+        assertThat(summary.counts()).containsOnly(entry(UserImportResult.Status.DUPLICATE, 1L),
+                                                  entry(UserImportResult.Status.INVALID, 1L));
+    }
+
+    @Test
+    public void writesInBatches() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        final int count = SsoUserImporter.BATCH_SIZE * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            input.append("{\"username\":\"user").append(i).append("\"}\n");
+        }
+
+        importUsers(input.toString(), SsoUserImporter.Format.NDJSON);
+
+        assertThat(users.size()).isEqualTo(count);
+        assertThat(existenceQueries.get()).isEqualTo(3);
+        assertThat(inserts.get()).isEqualTo(3);
+        // one notification per batch plus one at the end
+        assertThat(completedBatches).isEqualTo(4);
+    }
+
+    @Test
+    public void parsesQuotedCsvValues() {
+        assertThat(SsoUserImporter.parseCsvLine("a,\"b, c\",\"say \"\"hi\"\"\",")).containsExactly("a", "b, c", "say \"hi\"", "");
+    }
+}
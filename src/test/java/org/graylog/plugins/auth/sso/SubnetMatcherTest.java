@@ -0,0 +1,79 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.utilities.IpSubnet;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SubnetMatcherTest {
+
+    @Test
+    public void matchesIpv4AndIpv6Subnets() throws UnknownHostException {
+        final SubnetMatcher<Boolean> matcher = SubnetMatcher.of(ImmutableSet.of(
+                new IpSubnet("192.168.0.0/24"),
+                new IpSubnet("10.0.0.1/32"),
+                new IpSubnet("2001:db8::/32")));
+
+        assertThat(matcher.match("192.168.0.1")).isTrue();
+        assertThat(matcher.match("192.168.0.255")).isTrue();
+        assertThat(matcher.match("192.168.1.1")).isNull();
+        assertThat(matcher.match("10.0.0.1")).isTrue();
+        assertThat(matcher.match("10.0.0.2")).isNull();
+        assertThat(matcher.match("2001:db8::1")).isTrue();
+        assertThat(matcher.match("2001:db9::1")).isNull();
+        assertThat(matcher.match("::ffff:192.168.0.1")).isTrue();
+    }
+
+    @Test
+    public void returnsMostSpecificSubnet() {
+        final SubnetMatcher<String> matcher = SubnetMatcher.<String>builder()
+                .add(new byte[]{10, 0, 0, 0}, 8, "wide")
+                .add(new byte[]{10, 1, 0, 0}, 16, "narrow")
+                .build();
+
+        assertThat(matcher.match("10.1.2.3")).isEqualTo("narrow");
+        assertThat(matcher.match("10.2.2.3")).isEqualTo("wide");
+        assertThat(matcher.match("11.1.2.3")).isNull();
+    }
+
+    @Test
+    public void zeroPrefixMatchesWholeAddressFamily() {
+        final SubnetMatcher<String> matcher = SubnetMatcher.<String>builder()
+                .add(new byte[4], 0, "any")
+                .build();
+
+        assertThat(matcher.match("8.8.8.8")).isEqualTo("any");
+        assertThat(matcher.match("2001:db8::1")).isNull();
+    }
+
+    @Test
+    public void doesNotMatchInvalidAddresses() {
+        final SubnetMatcher<String> matcher = SubnetMatcher.<String>builder()
+                .add(new byte[4], 0, "any")
+                .build();
+
+        assertThat(matcher.match((String) null)).isNull();
+        assertThat(matcher.match("localhost")).isNull();
+        assertThat(matcher.match("300.1.1.1")).isNull();
+        assertThat(SubnetMatcher.<String>builder().build().isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import org.bson.types.ObjectId;
+import org.graylog2.database.MongoConnection;
+import org.graylog2.plugin.database.users.User;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UserFieldUpdaterTest {
+    private static final String USER_ID = "5b8f8a9c0a975a1b2c3d4e5f";
+    private static final String ROLE_ID = "5b8f8a9c0a975a1b2c3d4e60";
+
+    private DBCollection collection;
+    private UserFieldUpdater updater;
+    private User user;
+
+    @Before
+    public void setUp() {
+        final MongoConnection mongoConnection = mock(MongoConnection.class);
+        final DB db = mock(DB.class);
+        collection = mock(DBCollection.class);
+        when(mongoConnection.getDatabase()).thenReturn(db);
+        when(db.getCollection(UserFieldUpdater.COLLECTION_NAME)).thenReturn(collection);
+        final WriteResult writeResult = mock(WriteResult.class);
+        when(writeResult.getN()).thenReturn(1);
+        when(collection.update(any(DBObject.class), any(DBObject.class))).thenReturn(writeResult);
+
+        user = mock(User.class);
+        when(user.getId()).thenReturn(USER_ID);
+        when(user.getName()).thenReturn("horst");
+        updater = new UserFieldUpdater(mongoConnection);
+    }
+
+    @Test
+    public void updateRolesOnlySetsRolesField() {
+        assertThat(updater.updateRoles(user, ImmutableSet.of(ROLE_ID))).isTrue();
+
+        final ArgumentCaptor<DBObject> query = ArgumentCaptor.forClass(DBObject.class);
+        final ArgumentCaptor<DBObject> update = ArgumentCaptor.forClass(DBObject.class);
+        verify(collection).update(query.capture(), update.capture());
+
+        assertThat(query.getValue().keySet()).containsExactly("_id");
+        assertThat(query.getValue().get("_id")).isEqualTo(new ObjectId(USER_ID));
+        assertThat(update.getValue().keySet()).containsExactly("$set");
+        final DBObject set = (DBObject) update.getValue().get("$set");
+        assertThat(set.keySet()).containsExactly(UserFieldUpdater.ROLES);
+        assertThat((List<?>) set.get(UserFieldUpdater.ROLES)).containsExactly(new ObjectId(ROLE_ID));
+
+        verify(user).setRoleIds(ImmutableSet.of(ROLE_ID));
+    }
+
+    @Test
+    public void existsOnlyReadsTheId() {
+        when(collection.findOne(any(DBObject.class), any(DBObject.class))).thenReturn(new BasicDBObject("_id", new ObjectId(USER_ID)));
+
+        assertThat(updater.exists("horst")).isTrue();
+
+        final ArgumentCaptor<DBObject> query = ArgumentCaptor.forClass(DBObject.class);
+        final ArgumentCaptor<DBObject> projection = ArgumentCaptor.forClass(DBObject.class);
+        verify(collection).findOne(query.capture(), projection.capture());
+        assertThat(query.getValue().get("username")).isEqualTo("horst");
+        assertThat(projection.getValue().keySet()).containsExactly("_id");
+    }
+
+    @Test
+    public void updateRolesWithFingerprintSetsBothFields() {
+        final Map<String, Object> fields = new HashMap<>();
+        when(user.getFields()).thenReturn(fields);
+
+        assertThat(updater.updateRoles(user, ImmutableSet.of(ROLE_ID), "fingerprint")).isTrue();
+
+        final ArgumentCaptor<DBObject> update = ArgumentCaptor.forClass(DBObject.class);
+        verify(collection).update(any(DBObject.class), update.capture());
+        final DBObject set = (DBObject) update.getValue().get("$set");
+        assertThat(set.keySet()).containsOnly(UserFieldUpdater.ROLES, UserFieldUpdater.ROLES_FINGERPRINT);
+        assertThat(set.get(UserFieldUpdater.ROLES_FINGERPRINT)).isEqualTo("fingerprint");
+
+        verify(user).setRoleIds(ImmutableSet.of(ROLE_ID));
+        assertThat(UserFieldUpdater.rolesFingerprint(user)).isEqualTo("fingerprint");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnsavedUsers() {
+        when(user.getId()).thenReturn(null);
+        updater.updateRoles(user, ImmutableSet.of(ROLE_ID));
+    }
+}
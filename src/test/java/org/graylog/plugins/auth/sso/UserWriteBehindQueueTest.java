@@ -0,0 +1,196 @@
+/**
+ * This file is part of Graylog Archive.
+ *
+ * Graylog Archive is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Archive is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Archive.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.auth.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.mongodb.DBCollection;
+import org.graylog2.plugin.database.users.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UserWriteBehindQueueTest {
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+
+    private RecordingUpdater updater;
+    private SsoAuthMetrics metrics;
+    private UserWriteBehindQueue queue;
+
+    @Before
+    public void setUp() {
+        updater = new RecordingUpdater();
+        metrics = new SsoAuthMetrics(new MetricRegistry());
+        queue = new UserWriteBehindQueue(updater, metrics, ticker);
+    }
+
+    @After
+    public void tearDown() {
+        updater.release(Integer.MAX_VALUE / 2);
+        queue.stopAsync().awaitTerminated();
+    }
+
+    private static User user(String id) {
+        final User user = mock(User.class);
+        when(user.getId()).thenReturn(id);
+        when(user.getName()).thenReturn("user-" + id);
+        return user;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("condition not met in time").isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void updatesAreRejectedIfNotRunning() {
+        assertThat(queue.enqueue(user("a"), ImmutableMap.of("roles", "x"))).isFalse();
+        assertThat(metrics.writeBehindRejected().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void updatesOfTheSameUserAreCoalesced() throws Exception {
+        queue.startAsync().awaitRunning();
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "first"));
+        updater.entered.await();
+
+        // the writer is busy with the first update
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "second", "email", "a@example.org"));
+        queue.enqueue(user("b"), ImmutableMap.of("roles", "b"));
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "third"));
+        assertThat(queue.size()).isEqualTo(2);
+
+        updater.release(2);
+        waitFor(() -> updater.calls.size() == 2);
+
+        assertThat(updater.calls.get(0)).containsOnly(entry("a", ImmutableMap.of("roles", "first")));
+        assertThat(updater.calls.get(1)).containsOnly(entry("a", ImmutableMap.of("roles", "third", "email", "a@example.org")),
+                                                      entry("b", ImmutableMap.of("roles", "b")));
+        assertThat(metrics.writeBehindBatchSize().getSnapshot().getMax()).isEqualTo(2);
+    }
+
+    @Test
+    public void failedWritesAreRetriedWithBackoff() throws Exception {
+        updater.failures.add("a");
+        queue.startAsync().awaitRunning();
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "first"));
+        updater.release(2);
+        waitFor(() -> updater.calls.size() == 1 && queue.size() == 1);
+
+        Thread.sleep(50);
+        assertThat(updater.calls).hasSize(1);
+
+        now.addAndGet(UserWriteBehindQueue.INITIAL_BACKOFF_NANOS);
+        waitFor(() -> updater.calls.size() == 2);
+        assertThat(updater.calls.get(1)).containsOnly(entry("a", ImmutableMap.of("roles", "first")));
+        assertThat(metrics.writeBehindRetried().getCount()).isEqualTo(1);
+        assertThat(queue.size()).isZero();
+    }
+
+    @Test
+    public void retriesDoNotOverwriteNewerValues() throws Exception {
+        updater.failures.add("a");
+        queue.startAsync().awaitRunning();
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "first", "email", "a@example.org"));
+        updater.entered.await();
+
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "second"));
+        updater.release(2);
+        waitFor(() -> updater.calls.size() == 2);
+
+        assertThat(updater.calls.get(1)).containsOnly(entry("a", ImmutableMap.of("roles", "second", "email", "a@example.org")));
+    }
+
+    @Test
+    public void pendingUpdatesAreWrittenOnShutdown() throws Exception {
+        updater.failures.add("a");
+        queue.startAsync().awaitRunning();
+        queue.enqueue(user("a"), ImmutableMap.of("roles", "first"));
+        updater.release(2);
+        waitFor(() -> updater.calls.size() == 1 && queue.size() == 1);
+
+        // still backing off, but written anyway
+        queue.stopAsync().awaitTerminated();
+
+        assertThat(updater.calls).hasSize(2);
+        assertThat(queue.enqueue(user("a"), ImmutableMap.of("roles", "late"))).isFalse();
+    }
+
+    private static Map.Entry<String, Map<String, Object>> entry(String userId, Map<String, Object> fields) {
+        return new AbstractMap.SimpleImmutableEntry<>(userId, fields);
+    }
+
+    /**
+     * Records all bulk updates. Every call waits for a permit, and fails once for each user id in {@code failures}.
+     */
+    private static class RecordingUpdater extends UserFieldUpdater {
+        private final List<Map<String, Map<String, Object>>> calls = new CopyOnWriteArrayList<>();
+        private final Set<String> failures = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final Semaphore permits = new Semaphore(0);
+
+        RecordingUpdater() {
+            super((DBCollection) null);
+        }
+
+        void release(int count) {
+            permits.release(count);
+        }
+
+        @Override
+        public Set<String> updateFields(Map<String, Map<String, Object>> fieldsByUserId) {
+            entered.countDown();
+            permits.acquireUninterruptibly();
+            calls.add(ImmutableMap.copyOf(fieldsByUserId));
+            final Set<String> failed = new HashSet<>();
+            for (String userId : fieldsByUserId.keySet()) {
+                if (failures.remove(userId)) {
+                    failed.add(userId);
+                }
+            }
+            return failed;
+        }
+    }
+}
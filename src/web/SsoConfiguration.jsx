@@ -46,6 +46,84 @@ class SsoConfiguration extends React.Component {
     this._setSetting(ev.target.name, ev.target.value);
   };
 
+  _bindNumber = (ev) => {
+    this._setSetting(ev.target.name, Number(ev.target.value));
+  };
+
+  _addRoleMappingRule = () => {
+    const rules = (this.state.config.role_mapping_rules || []).concat([{ type: 'exact', pattern: '', role: '' }]);
+    this._setSetting('role_mapping_rules', rules);
+  };
+
+  _removeRoleMappingRule = (index) => {
+    const rules = this.state.config.role_mapping_rules.filter((rule, i) => i !== index);
+    this._setSetting('role_mapping_rules', rules);
+  };
+
+  _bindRoleMappingRule = (index, attribute) => (ev) => {
+    const rules = this.state.config.role_mapping_rules.map((rule, i) => (i === index ? Object.assign({}, rule, { [attribute]: ev.target.value }) : rule));
+    this._setSetting('role_mapping_rules', rules);
+  };
+
+  _addAdmissionLimit = () => {
+    const limits = (this.state.config.admission_limits || []).concat([{
+      operation: 'ldap_sync',
+      global_rate: 0,
+      global_burst: 0,
+      proxy_rate: 0,
+      proxy_burst: 0,
+    }]);
+    this._setSetting('admission_limits', limits);
+  };
+
+  _removeAdmissionLimit = (index) => {
+    const limits = this.state.config.admission_limits.filter((limit, i) => i !== index);
+    this._setSetting('admission_limits', limits);
+  };
+
+  _bindAdmissionLimit = (index, attribute) => (ev) => {
+    const value = attribute === 'operation' ? ev.target.value : Number(ev.target.value);
+    const limits = this.state.config.admission_limits.map((limit, i) => (i === index ? Object.assign({}, limit, { [attribute]: value }) : limit));
+    this._setSetting('admission_limits', limits);
+  };
+
+  _addHeaderProfile = () => {
+    const profiles = (this.state.config.header_profiles || []).concat([{
+      name: '',
+      trusted_proxies: [],
+      username_header: 'Remote-User',
+      fullname_header: null,
+      email_header: null,
+      auto_create_user: true,
+      sync_roles: false,
+      roles_header: null,
+    }]);
+    this._setSetting('header_profiles', profiles);
+  };
+
+  _removeHeaderProfile = (index) => {
+    const profiles = this.state.config.header_profiles.filter((profile, i) => i !== index);
+    this._setSetting('header_profiles', profiles);
+  };
+
+  _updateHeaderProfile = (index, attribute, value) => {
+    const profiles = this.state.config.header_profiles.map((profile, i) => (i === index ? Object.assign({}, profile, { [attribute]: value }) : profile));
+    this._setSetting('header_profiles', profiles);
+  };
+
+  _bindHeaderProfile = (index, attribute) => (ev) => {
+    this._updateHeaderProfile(index, attribute, ev.target.value === '' && attribute !== 'name' ? null : ev.target.value);
+  };
+
+  _bindHeaderProfileChecked = (index, attribute) => (ev) => {
+    this._updateHeaderProfile(index, attribute, ev.target.checked);
+  };
+
+  _bindHeaderProfileSubnets = (index) => (ev) => {
+    // keep the input as typed, blank entries are ignored by the server
+    this._updateHeaderProfile(index, 'trusted_proxies', ev.target.value.split(','));
+  };
+
   render() {
     let content;
     if (!this.state.config || !this.state.roles) {
@@ -79,6 +157,87 @@ class SsoConfiguration extends React.Component {
                        value={this.state.config.username_header} help="HTTP header containing the implicitly trusted name of the Graylog user"
                        onChange={this._bindValue} required/>
               </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Header profiles</legend>
+                <div className="form-group">
+                  <div className="col-sm-12">
+                    <table className="table table-condensed">
+                      <thead>
+                        <tr>
+                          <th>Name</th><th>Proxy subnets</th><th>Username header</th><th>Full name header</th>
+                          <th>Email header</th><th>Roles header</th><th>Create users</th><th>Sync roles</th><th />
+                        </tr>
+                      </thead>
+                      <tbody>
+                        {(this.state.config.header_profiles || []).map((profile, index) => (
+                          <tr key={"header-profile-" + index}>
+                            <td>
+                              <input type="text" className="form-control" value={profile.name} required
+                                     onChange={this._bindHeaderProfile(index, 'name')}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={profile.trusted_proxies.join(',')} required
+                                     placeholder="10.0.0.0/8, 192.168.1.1/32" onChange={this._bindHeaderProfileSubnets(index)}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={profile.username_header || ''} required
+                                     onChange={this._bindHeaderProfile(index, 'username_header')}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={profile.fullname_header || ''}
+                                     onChange={this._bindHeaderProfile(index, 'fullname_header')}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={profile.email_header || ''}
+                                     onChange={this._bindHeaderProfile(index, 'email_header')}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={profile.roles_header || ''}
+                                     onChange={this._bindHeaderProfile(index, 'roles_header')} disabled={!profile.sync_roles}/>
+                            </td>
+                            <td>
+                              <input type="checkbox" checked={profile.auto_create_user}
+                                     onChange={this._bindHeaderProfileChecked(index, 'auto_create_user')}/>
+                            </td>
+                            <td>
+                              <input type="checkbox" checked={profile.sync_roles}
+                                     onChange={this._bindHeaderProfileChecked(index, 'sync_roles')}/>
+                            </td>
+                            <td>
+                              <Button bsStyle="danger" bsSize="small" onClick={() => this._removeHeaderProfile(index)}>Remove</Button>
+                            </td>
+                          </tr>
+                        ))}
+                      </tbody>
+                    </table>
+                    <Button bsSize="small" onClick={this._addHeaderProfile}>Add profile</Button>
+                    <span className="help-block">Requests from the comma-separated subnets of a profile are trusted and read with the headers of the profile. If subnets of several profiles contain an address, the most specific subnet wins. Requests from other addresses use the header configuration above.</span>
+                  </div>
+                </div>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Signed identity token</legend>
+                <Input type="text" id="signed_token_header" name="signed_token_header" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="X-Identity-Token" label="Token Header"
+                       value={this.state.config.signed_token_header} help="HTTP header containing a signed JWT with the user name (sub), full name (name), email (email) and roles (groups). If set, only verified tokens are accepted and the other headers are ignored."
+                       onChange={this._bindValue}/>
+                <Input type="password" id="signed_token_hmac_secret" name="signed_token_hmac_secret" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" label="HMAC Secret"
+                       value={this.state.config.signed_token_hmac_secret} help="Base64 encoded secret to verify HS256, HS384 and HS512 signed tokens. The stored secret is never shown, leave the mask unchanged to keep it."
+                       onChange={this._bindValue} disabled={!this.state.config.signed_token_header}/>
+                <Input type="textarea" id="signed_token_public_key" name="signed_token_public_key" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="-----BEGIN PUBLIC KEY-----" label="RSA Public Key" rows={4}
+                       value={this.state.config.signed_token_public_key} help="PEM encoded RSA public key to verify RS256, RS384 and RS512 signed tokens."
+                       onChange={this._bindValue} disabled={!this.state.config.signed_token_header}/>
+                <Input type="text" id="signed_token_audience" name="signed_token_audience" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="graylog" label="Audience"
+                       value={this.state.config.signed_token_audience} help="If set, tokens have to contain this value in their audience (aud) claim."
+                       onChange={this._bindValue} disabled={!this.state.config.signed_token_header}/>
+                <Input type="number" id="signed_token_cache_size" name="signed_token_cache_size" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="10000" label="Verified Token Cache Size" min="0"
+                       value={this.state.config.signed_token_cache_size} help="Maximum number of verified tokens to remember until they expire. Set to 0 to verify the signature on every request."
+                       onChange={this._bindNumber} disabled={!this.state.config.signed_token_header}/>
+              </fieldset>
               <fieldset>
                 <legend className="col-sm-12">Security</legend>
                 <Input type="checkbox" label="Request must come from a trusted proxy"
@@ -137,6 +296,211 @@ class SsoConfiguration extends React.Component {
                        wrapperClassName="col-sm-9" placeholder="Roles header" label="Roles Header"
                        value={this.state.config.roles_header} help="Prefix of the HTTP header, can contain a comma-separated list of roles in one header, otherwise all headers with that prefix will be recognized."
                        onChange={this._bindValue} disabled={!this.state.config.sync_roles}/>
+                <div className="form-group">
+                  <label className="control-label col-sm-3">Role Mapping</label>
+                  <div className="col-sm-9">
+                    <table className="table table-condensed">
+                      <thead>
+                        <tr><th>Match</th><th>Group pattern</th><th>Role</th><th /></tr>
+                      </thead>
+                      <tbody>
+                        {(this.state.config.role_mapping_rules || []).map((rule, index) => (
+                          <tr key={"role-mapping-rule-" + index}>
+                            <td>
+                              <select className="form-control" value={rule.type} onChange={this._bindRoleMappingRule(index, 'type')}
+                                      disabled={!this.state.config.sync_roles}>
+                                <option value="exact">Exact</option>
+                                <option value="prefix">Prefix</option>
+                                <option value="glob">Glob</option>
+                                <option value="regex">Regex</option>
+                              </select>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={rule.pattern} required
+                                     onChange={this._bindRoleMappingRule(index, 'pattern')} disabled={!this.state.config.sync_roles}/>
+                            </td>
+                            <td>
+                              <input type="text" className="form-control" value={rule.role} required list="role-mapping-roles"
+                                     onChange={this._bindRoleMappingRule(index, 'role')} disabled={!this.state.config.sync_roles}/>
+                            </td>
+                            <td>
+                              <Button bsStyle="danger" bsSize="small" onClick={() => this._removeRoleMappingRule(index)}
+                                      disabled={!this.state.config.sync_roles}>Remove</Button>
+                            </td>
+                          </tr>
+                        ))}
+                      </tbody>
+                    </table>
+                    <datalist id="role-mapping-roles">
+                      {this.state.roles.map((role) => <option key={"role-mapping-role-" + role} value={role} />)}
+                    </datalist>
+                    <Button bsSize="small" onClick={this._addRoleMappingRule} disabled={!this.state.config.sync_roles}>Add rule</Button>
+                    <span className="help-block">Maps the groups of the roles header or signed token to Graylog roles. Groups are matched case-insensitively; glob patterns support <code>*</code> and <code>?</code>. A group may match several rules.</span>
+                  </div>
+                </div>
+                <Input type="checkbox" label="Use unmapped groups as role names"
+                       id="role_mapping_passthrough"
+                       help="If enabled, groups which do not match any rule are used as role names as they are."
+                       wrapperClassName="col-sm-offset-3 col-sm-9"
+                       name="role_mapping_passthrough"
+                       checked={this.state.config.role_mapping_passthrough}
+                       onChange={this._bindChecked} disabled={!this.state.config.sync_roles}/>
+                <Input type="checkbox" label="Write role changes in the background"
+                       id="write_behind"
+                       help="If enabled, the request is authenticated with the new roles right away and the role change is written to the database by a background writer, which batches and retries the writes. New users are still created immediately."
+                       wrapperClassName="col-sm-offset-3 col-sm-9"
+                       name="write_behind"
+                       checked={this.state.config.write_behind}
+                       onChange={this._bindChecked} disabled={!this.state.config.sync_roles}/>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Caching</legend>
+                <Input type="number" id="auth_cache_max_size" name="auth_cache_max_size" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="Authentication Cache Size" min="0"
+                       value={this.state.config.auth_cache_max_size} help="Maximum number of authenticated users to cache per node. Requests with unchanged headers are authenticated from the cache. Set to 0 to disable the cache."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="auth_cache_ttl_seconds" name="auth_cache_ttl_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="60" label="Authentication Cache TTL" min="1"
+                       value={this.state.config.auth_cache_ttl_seconds} help="Number of seconds a cached authentication stays valid."
+                       onChange={this._bindNumber} disabled={!this.state.config.auth_cache_max_size}/>
+                <Input type="number" id="ldap_sync_interval_seconds" name="ldap_sync_interval_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="LDAP Sync Interval" min="0"
+                       value={this.state.config.ldap_sync_interval_seconds} help="Minimum number of seconds between two LDAP synchronizations of the same user if LDAP is enabled. Stale users are refreshed in the background. Set to 0 to synchronize on every request."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="ldap_sync_timeout_millis" name="ldap_sync_timeout_millis" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="LDAP Sync Timeout (ms)" min="0"
+                       value={this.state.config.ldap_sync_timeout_millis} help="Maximum number of milliseconds a request waits for an LDAP synchronization before it continues with the stored user. The synchronization finishes in the background. Set to 0 to wait without a limit."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="unknown_user_cache_ttl_seconds" name="unknown_user_cache_ttl_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="30" label="Unknown User Cache TTL" min="0"
+                       value={this.state.config.unknown_user_cache_ttl_seconds} help="Number of seconds to remember users which do not exist if automatic user creation is disabled. Set to 0 to look up unknown users on every request."
+                       onChange={this._bindNumber}/>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Warm-up</legend>
+                <Input type="checkbox" label="Warm up caches when the node starts"
+                       id="warm_up"
+                       help="Load the role names and, if LDAP is enabled, the most recent external users before the node reports itself as running. Takes effect on the next restart."
+                       wrapperClassName="col-sm-offset-3 col-sm-9"
+                       name="warm_up"
+                       checked={this.state.config.warm_up}
+                       onChange={this._bindChecked}/>
+                <Input type="number" id="warm_up_max_users" name="warm_up_max_users" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="10000" label="Warm-up Users" min="0"
+                       value={this.state.config.warm_up_max_users} help="Maximum number of users to load during warm-up, which bounds its memory use."
+                       onChange={this._bindNumber} disabled={!this.state.config.warm_up}/>
+                <Input type="number" id="warm_up_timeout_seconds" name="warm_up_timeout_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="30" label="Warm-up Timeout" min="0"
+                       value={this.state.config.warm_up_timeout_seconds} help="Maximum number of seconds the warm-up may delay the startup of a node."
+                       onChange={this._bindNumber} disabled={!this.state.config.warm_up}/>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Circuit breakers</legend>
+                <Input type="checkbox" label="Skip failing LDAP and MongoDB calls"
+                       id="circuit_breaker"
+                       help="Stop calling LDAP or MongoDB once too many recent calls failed or were slow. Requests then continue with the stored user, or are rejected if the user is not cached, until a background probe succeeds."
+                       wrapperClassName="col-sm-offset-3 col-sm-9"
+                       name="circuit_breaker"
+                       checked={this.state.config.circuit_breaker}
+                       onChange={this._bindChecked}/>
+                <Input type="number" id="circuit_breaker_window_size" name="circuit_breaker_window_size" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="20" label="Window Size" min="1"
+                       value={this.state.config.circuit_breaker_window_size} help="Number of recent calls the failure and slow call rates are computed from."
+                       onChange={this._bindNumber} disabled={!this.state.config.circuit_breaker}/>
+                <Input type="number" id="circuit_breaker_failure_rate" name="circuit_breaker_failure_rate" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="50" label="Failure Rate (%)" min="0" max="100"
+                       value={this.state.config.circuit_breaker_failure_rate} help="Percentage of failed calls which opens the breaker. Set to 0 to ignore failures."
+                       onChange={this._bindNumber} disabled={!this.state.config.circuit_breaker}/>
+                <Input type="number" id="circuit_breaker_slow_call_millis" name="circuit_breaker_slow_call_millis" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="2000" label="Slow Call (ms)" min="0"
+                       value={this.state.config.circuit_breaker_slow_call_millis} help="Duration from which on a call counts as slow. Set to 0 to ignore slow calls."
+                       onChange={this._bindNumber} disabled={!this.state.config.circuit_breaker}/>
+                <Input type="number" id="circuit_breaker_slow_call_rate" name="circuit_breaker_slow_call_rate" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="80" label="Slow Call Rate (%)" min="0" max="100"
+                       value={this.state.config.circuit_breaker_slow_call_rate} help="Percentage of slow calls which opens the breaker. Set to 0 to ignore slow calls."
+                       onChange={this._bindNumber} disabled={!this.state.config.circuit_breaker}/>
+                <Input type="number" id="circuit_breaker_open_seconds" name="circuit_breaker_open_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="30" label="Open Period (s)" min="0"
+                       value={this.state.config.circuit_breaker_open_seconds} help="Number of seconds an open breaker waits before it probes the dependency again."
+                       onChange={this._bindNumber} disabled={!this.state.config.circuit_breaker}/>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Sessions</legend>
+                <Input type="select" id="session_policy" name="session_policy" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" label="Session Policy"
+                       value={this.state.config.session_policy} help="When to create a server session for a header-authenticated request. Requests which do not get a session are authenticated from the headers alone."
+                       onChange={this._bindValue}>
+                  <option value="always">On every request</option>
+                  <option value="browser_only">Only for browsers</option>
+                  <option value="per_fingerprint">For browsers, otherwise only the first request per user and headers</option>
+                </Input>
+                <Input type="number" id="session_reuse_seconds" name="session_reuse_seconds" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="28800" label="Session Reuse Period" min="0"
+                       value={this.state.config.session_reuse_seconds} help="Number of seconds during which only the first request of the same user and headers creates a session, except for browsers. Clients which do not send the session cookie back leave that session unused. Set to 0 to create a session on every request."
+                       onChange={this._bindNumber} disabled={this.state.config.session_policy !== 'per_fingerprint'}/>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Admission Control</legend>
+                <Input type="number" id="admission_global_rate" name="admission_global_rate" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="Global Rate Limit" min="0"
+                       value={this.state.config.admission_global_rate} help="Maximum number of LDAP synchronizations, user creations and role updates per second across all proxies, each counted separately. Requests over the limit use the stored user or are rejected. Set to 0 to disable the limit."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="admission_global_burst" name="admission_global_burst" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="Global Burst" min="0"
+                       value={this.state.config.admission_global_burst} help="Number of these operations which may run at once before the global rate limit applies. Set to 0 to allow one second worth of operations."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="admission_proxy_rate" name="admission_proxy_rate" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="Per-Proxy Rate Limit" min="0"
+                       value={this.state.config.admission_proxy_rate} help="Maximum number of LDAP synchronizations, user creations and role updates per second for each proxy address, each counted separately. Set to 0 to disable the limit."
+                       onChange={this._bindNumber}/>
+                <Input type="number" id="admission_proxy_burst" name="admission_proxy_burst" labelClassName="col-sm-3"
+                       wrapperClassName="col-sm-9" placeholder="0" label="Per-Proxy Burst" min="0"
+                       value={this.state.config.admission_proxy_burst} help="Number of these operations which may run at once for each proxy address before the rate limit applies. Set to 0 to allow one second worth of operations."
+                       onChange={this._bindNumber}/>
+                <div className="form-group">
+                  <label className="control-label col-sm-3">Operation Limits</label>
+                  <div className="col-sm-9">
+                    <table className="table table-condensed">
+                      <thead>
+                        <tr><th>Operation</th><th>Global rate</th><th>Global burst</th><th>Per-proxy rate</th><th>Per-proxy burst</th><th /></tr>
+                      </thead>
+                      <tbody>
+                        {(this.state.config.admission_limits || []).map((limit, index) => (
+                          <tr key={"admission-limit-" + index}>
+                            <td>
+                              <select className="form-control" value={limit.operation} onChange={this._bindAdmissionLimit(index, 'operation')}>
+                                <option value="ldap_sync">LDAP synchronization</option>
+                                <option value="auto_create">User creation</option>
+                                <option value="role_write">Role update</option>
+                              </select>
+                            </td>
+                            {['global_rate', 'global_burst', 'proxy_rate', 'proxy_burst'].map((attribute) => (
+                              <td key={"admission-limit-" + index + "-" + attribute}>
+                                <input type="number" className="form-control" min="0" value={limit[attribute]}
+                                       onChange={this._bindAdmissionLimit(index, attribute)}/>
+                              </td>
+                            ))}
+                            <td>
+                              <Button bsStyle="danger" bsSize="small" onClick={() => this._removeAdmissionLimit(index)}>Remove</Button>
+                            </td>
+                          </tr>
+                        ))}
+                      </tbody>
+                    </table>
+                    <Button bsSize="small" onClick={this._addAdmissionLimit}>Add limit</Button>
+                    <span className="help-block">Replaces the limits above for an operation, for example to admit first logins at a higher rate than LDAP synchronizations. Each operation may be listed once.</span>
+                  </div>
+                </div>
+              </fieldset>
+              <fieldset>
+                <legend className="col-sm-12">Monitoring</legend>
+                <Input type="checkbox" label="Record timings of each authentication stage"
+                       id="stage_timing"
+                       help="Enable this to record timers for LDAP synchronization, user loading, user creation and role synchronization in the Graylog metrics. Outcome counters are always recorded."
+                       wrapperClassName="col-sm-offset-3 col-sm-9"
+                       name="stage_timing"
+                       checked={this.state.config.stage_timing}
+                       onChange={this._bindChecked}/>
               </fieldset>
               <fieldset>
                 <legend className="col-sm-12">Store settings</legend>